@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2013 Charon Chui <charon.chui@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.charon.video.buffer;
+
+import io.vov.vitamio.MediaPlayer;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Adjusts the Vitamio buffer size while playing, from the download rate and
+ * the buffering events. The buffer size is the data filled before the
+ * playback starts or resumes, so a small one starts fast and a large one
+ * rebuffers less; how to trade them is decided by a {@link Policy}.
+ * <p>
+ * The download rates are recorded in a {@link BufferSimulator.Trace}, which
+ * can be replayed by {@link BufferSimulator} to compare the policies offline.
+ *
+ * @author Charon Chui
+ *
+ */
+public class AdaptiveBufferController {
+	private static final String TAG = "AdaptiveBufferController";
+
+	/**
+	 * A buffering started this soon after prepared is part of the startup.
+	 */
+	private static final long STARTUP_BUFFERING_WINDOW = 500;
+
+	public interface Policy {
+		/**
+		 * @return the buffer size in bytes before anything is known
+		 */
+		long getInitialBufferSize();
+
+		/**
+		 * @param bufferSize
+		 *            the current buffer size in bytes
+		 * @param rate
+		 *            the download rate in KB/s
+		 * @return the new buffer size in bytes
+		 */
+		long onDownloadRate(long bufferSize, int rate);
+
+		/**
+		 * Called when a rebuffering is over.
+		 *
+		 * @param bufferSize
+		 *            the current buffer size in bytes
+		 * @param rebufferCount
+		 *            the rebufferings so far, including this one
+		 * @param stallTime
+		 *            how long this rebuffering took in milliseconds
+		 * @return the new buffer size in bytes
+		 */
+		long onRebuffer(long bufferSize, int rebufferCount, long stallTime);
+	}
+
+	/**
+	 * Where the buffer size is applied, usually the Vitamio player.
+	 */
+	public interface Target {
+		void setBufferSize(long bufferSize);
+	}
+
+	/**
+	 * Sizes the buffer to be filled in a target time at the smoothed download
+	 * rate. The target time starts short for a fast startup, grows after every
+	 * rebuffering and shrinks back slowly while the download rate stays up.
+	 */
+	public static class DefaultPolicy implements Policy {
+		private final long mMinSize;
+		private final long mMaxSize;
+		private final long mInitialSize;
+		private float mTargetSeconds;
+		private final float mMinTargetSeconds;
+		private final float mMaxTargetSeconds;
+		private float mSmoothedRate = -1;
+
+		public DefaultPolicy() {
+			this(128 * 1024, 8 * 1024 * 1024, 512 * 1024, 2, 12);
+		}
+
+		public DefaultPolicy(long minSize, long maxSize, long initialSize,
+				float minTargetSeconds, float maxTargetSeconds) {
+			mMinSize = minSize;
+			mMaxSize = maxSize;
+			mInitialSize = initialSize;
+			mMinTargetSeconds = minTargetSeconds;
+			mMaxTargetSeconds = maxTargetSeconds;
+			mTargetSeconds = minTargetSeconds;
+		}
+
+		@Override
+		public long getInitialBufferSize() {
+			return mInitialSize;
+		}
+
+		@Override
+		public long onDownloadRate(long bufferSize, int rate) {
+			if (rate <= 0) {
+				return bufferSize;
+			}
+			mSmoothedRate = mSmoothedRate < 0 ? rate : mSmoothedRate * 0.7f
+					+ rate * 0.3f;
+			// relax slowly, a rebuffering raised it for a reason
+			mTargetSeconds = Math.max(mMinTargetSeconds, mTargetSeconds * 0.98f);
+			return size();
+		}
+
+		@Override
+		public long onRebuffer(long bufferSize, int rebufferCount,
+				long stallTime) {
+			mTargetSeconds = Math.min(mMaxTargetSeconds, mTargetSeconds * 1.5f);
+			return mSmoothedRate < 0 ? Math.min(mMaxSize, bufferSize * 2)
+					: size();
+		}
+
+		private long size() {
+			long size = (long) (mSmoothedRate * 1024 * mTargetSeconds);
+			return Math.max(mMinSize, Math.min(mMaxSize, size));
+		}
+	}
+
+	private final Policy mPolicy;
+	private Target mTarget;
+	private long mBufferSize;
+	private BufferSimulator.Trace mTrace = new BufferSimulator.Trace();
+
+	private long mOpenTime;
+	private long mPreparedTime = -1;
+	private long mStartupDelay = -1;
+	private long mBufferingSince = -1;
+	private boolean mStartupBuffering;
+	private boolean mStarted;
+	private int mRebufferCount;
+	private long mStallTime;
+
+	public AdaptiveBufferController() {
+		this(new DefaultPolicy());
+	}
+
+	public AdaptiveBufferController(Policy policy) {
+		mPolicy = policy;
+	}
+
+	public Policy getPolicy() {
+		return mPolicy;
+	}
+
+	/**
+	 * Called before a new video is prepared, the statistics are reset.
+	 */
+	public void onOpen(Target target) {
+		onOpen(target, SystemClock.uptimeMillis());
+	}
+
+	public void onPrepared() {
+		onPrepared(SystemClock.uptimeMillis());
+	}
+
+	/**
+	 * Apply the size a new video would start with to a player prepared ahead,
+	 * e.g. the next item of a playlist. The current video is not affected,
+	 * {@link #onOpen(Target)} is still called when the player is switched to.
+	 */
+	public void applyTo(Target target) {
+		target.setBufferSize(getOpenBufferSize());
+	}
+
+	/**
+	 * Feed the info events of the Vitamio player.
+	 */
+	public void onInfo(int what, int extra) {
+		onInfo(what, extra, SystemClock.uptimeMillis());
+	}
+
+	void onOpen(Target target, long now) {
+		mTarget = target;
+		mOpenTime = now;
+		mPreparedTime = -1;
+		mStartupDelay = -1;
+		mBufferingSince = -1;
+		mStartupBuffering = false;
+		mStarted = false;
+		mRebufferCount = 0;
+		mStallTime = 0;
+		mTrace = new BufferSimulator.Trace();
+		// a new player, keep the size learned from the last video
+		long bufferSize = getOpenBufferSize();
+		mBufferSize = 0;
+		apply(bufferSize);
+	}
+
+	private long getOpenBufferSize() {
+		return mBufferSize > 0 ? mBufferSize : mPolicy.getInitialBufferSize();
+	}
+
+	void onPrepared(long now) {
+		mPreparedTime = now;
+		mStartupDelay = now - mOpenTime;
+	}
+
+	void onInfo(int what, int extra, long now) {
+		switch (what) {
+		case MediaPlayer.MEDIA_INFO_DOWNLOAD_RATE_CHANGED:
+			mTrace.add(now - mOpenTime, extra);
+			apply(mPolicy.onDownloadRate(mBufferSize, extra));
+			break;
+		case MediaPlayer.MEDIA_INFO_BUFFERING_START:
+			mBufferingSince = now;
+			mStartupBuffering = !mStarted
+					&& (mPreparedTime < 0 || now - mPreparedTime <= STARTUP_BUFFERING_WINDOW);
+			mStarted = true;
+			break;
+		case MediaPlayer.MEDIA_INFO_BUFFERING_END:
+			if (mBufferingSince < 0) {
+				break;
+			}
+			long stall = now - mBufferingSince;
+			mBufferingSince = -1;
+			if (mStartupBuffering) {
+				mStartupDelay = now - mOpenTime;
+				mStartupBuffering = false;
+			} else {
+				mRebufferCount++;
+				mStallTime += stall;
+				apply(mPolicy.onRebuffer(mBufferSize, mRebufferCount, stall));
+			}
+			break;
+		}
+	}
+
+	private void apply(long bufferSize) {
+		if (bufferSize <= 0 || bufferSize == mBufferSize) {
+			return;
+		}
+		mBufferSize = bufferSize;
+		if (mTarget != null) {
+			Log.d(TAG, "buffer size " + bufferSize);
+			mTarget.setBufferSize(bufferSize);
+		}
+	}
+
+	public long getBufferSize() {
+		return mBufferSize;
+	}
+
+	/**
+	 * @return the milliseconds from open to the playback start, -1 if not
+	 *         started yet
+	 */
+	public long getStartupDelay() {
+		return mStartupDelay;
+	}
+
+	public int getRebufferCount() {
+		return mRebufferCount;
+	}
+
+	/**
+	 * @return the total milliseconds of rebuffering
+	 */
+	public long getStallTime() {
+		return mStallTime;
+	}
+
+	/**
+	 * @return the download rates of the current video, to be replayed by
+	 *         {@link BufferSimulator}
+	 */
+	public BufferSimulator.Trace getTrace() {
+		return mTrace;
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2013 Charon Chui <charon.chui@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.charon.video.buffer;
+
+import io.vov.vitamio.MediaPlayer;
+
+/**
+ * Replays a recorded download rate trace against a
+ * {@link AdaptiveBufferController.Policy}, to see the startup delay and the
+ * rebufferings it would give without playing anything.
+ * <p>
+ * The model is simple: the data comes at the rate of the trace, the playback
+ * consumes it at the bit rate of the video, it stalls when the buffer is
+ * empty and resumes when the buffer size of the policy is filled again.
+ *
+ * <pre>
+ * Trace trace = Trace.parse(recorded);
+ * Result result = BufferSimulator.run(new DefaultPolicy(), trace, 150,
+ * 		10 * 60 * 1000, 100);
+ * </pre>
+ *
+ * @author Charon Chui
+ *
+ */
+public class BufferSimulator {
+
+	/**
+	 * The download rates in KB/s by the milliseconds from the open.
+	 */
+	public static class Trace {
+		private long[] mTimes = new long[16];
+		private int[] mRates = new int[16];
+		private int mSize;
+
+		public void add(long time, int rate) {
+			if (mSize == mTimes.length) {
+				long[] times = new long[mSize * 2];
+				int[] rates = new int[mSize * 2];
+				System.arraycopy(mTimes, 0, times, 0, mSize);
+				System.arraycopy(mRates, 0, rates, 0, mSize);
+				mTimes = times;
+				mRates = rates;
+			}
+			mTimes[mSize] = time;
+			mRates[mSize] = rate;
+			mSize++;
+		}
+
+		public int size() {
+			return mSize;
+		}
+
+		public long getTime(int index) {
+			return mTimes[index];
+		}
+
+		public int getRate(int index) {
+			return mRates[index];
+		}
+
+		/**
+		 * Parse the lines of "time,rate" written by {@link #toString()}, the
+		 * bad lines are skipped.
+		 */
+		public static Trace parse(String text) {
+			Trace trace = new Trace();
+			for (String line : text.split("\n")) {
+				int comma = line.indexOf(',');
+				if (comma < 0) {
+					continue;
+				}
+				try {
+					trace.add(Long.parseLong(line.substring(0, comma).trim()),
+							Integer.parseInt(line.substring(comma + 1).trim()));
+				} catch (NumberFormatException e) {
+				}
+			}
+			return trace;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder(mSize * 12);
+			for (int i = 0; i < mSize; i++) {
+				builder.append(mTimes[i]).append(',').append(mRates[i])
+						.append('\n');
+			}
+			return builder.toString();
+		}
+	}
+
+	public static class Result {
+		private final long mStartupDelay;
+		private final int mRebufferCount;
+		private final long mStallTime;
+		private final boolean mFinished;
+
+		Result(long startupDelay, int rebufferCount, long stallTime,
+				boolean finished) {
+			mStartupDelay = startupDelay;
+			mRebufferCount = rebufferCount;
+			mStallTime = stallTime;
+			mFinished = finished;
+		}
+
+		/**
+		 * @return the milliseconds to the playback start, -1 if never started
+		 */
+		public long getStartupDelay() {
+			return mStartupDelay;
+		}
+
+		public int getRebufferCount() {
+			return mRebufferCount;
+		}
+
+		public long getStallTime() {
+			return mStallTime;
+		}
+
+		/**
+		 * @return false if the trace ran dry before the end of the video
+		 */
+		public boolean isFinished() {
+			return mFinished;
+		}
+
+		@Override
+		public String toString() {
+			return "startup " + mStartupDelay + "ms, " + mRebufferCount
+					+ " rebuffers, stalled " + mStallTime + "ms"
+					+ (mFinished ? "" : ", not finished");
+		}
+	}
+
+	private static final AdaptiveBufferController.Target NO_TARGET = new AdaptiveBufferController.Target() {
+		@Override
+		public void setBufferSize(long bufferSize) {
+		}
+	};
+
+	private BufferSimulator() {
+	}
+
+	/**
+	 * @param policy
+	 *            a new policy, it keeps its state across the calls
+	 * @param trace
+	 *            the download rates, the last one is kept to the end
+	 * @param videoRate
+	 *            the bit rate of the video in KB/s
+	 * @param duration
+	 *            the duration of the video in milliseconds
+	 * @param step
+	 *            the simulated time step in milliseconds
+	 */
+	public static Result run(AdaptiveBufferController.Policy policy,
+			Trace trace, int videoRate, long duration, long step) {
+		if (trace.size() == 0 || step <= 0) {
+			throw new IllegalArgumentException("empty trace or bad step");
+		}
+		AdaptiveBufferController controller = new AdaptiveBufferController(
+				policy);
+		long total = (long) videoRate * 1024 * duration / 1000;
+		long consumePerStep = (long) videoRate * 1024 * step / 1000;
+		// give up when the trace ends with no data coming
+		long maxTime = trace.getTime(trace.size() - 1) + duration * 10;
+
+		controller.onOpen(NO_TARGET, 0);
+		controller.onPrepared(0);
+		controller.onInfo(MediaPlayer.MEDIA_INFO_BUFFERING_START, 0, 0);
+		boolean buffering = true;
+		long downloaded = 0;
+		long played = 0;
+		int next = 0;
+		int rate = 0;
+		long time = 0;
+		while (played < total && time <= maxTime) {
+			while (next < trace.size() && trace.getTime(next) <= time) {
+				rate = trace.getRate(next);
+				controller.onInfo(MediaPlayer.MEDIA_INFO_DOWNLOAD_RATE_CHANGED,
+						rate, time);
+				next++;
+			}
+			downloaded = Math.min(total, downloaded + (long) rate * 1024
+					* step / 1000);
+			long buffered = downloaded - played;
+			if (buffering) {
+				if (buffered >= controller.getBufferSize()
+						|| downloaded == total) {
+					controller.onInfo(MediaPlayer.MEDIA_INFO_BUFFERING_END, 0,
+							time);
+					buffering = false;
+				}
+			} else if (buffered <= 0) {
+				controller.onInfo(MediaPlayer.MEDIA_INFO_BUFFERING_START, 0,
+						time);
+				buffering = true;
+			} else {
+				played += Math.min(buffered, consumePerStep);
+			}
+			time += step;
+		}
+		if (buffering) {
+			controller.onInfo(MediaPlayer.MEDIA_INFO_BUFFERING_END, 0, time);
+		}
+		return new Result(controller.getStartupDelay(),
+				controller.getRebufferCount(), controller.getStallTime(),
+				played >= total);
+	}
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2013 Charon Chui <charon.chui@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.charon.video.cache;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * A disk cache of http resources split into fixed size segments, so a video
+ * can be cached by the ranges which have been played. The least recently used
+ * segments are deleted when the cache is over {@link #getMaxSize()}.
+ * <p>
+ * Every url has a directory named by its md5, which holds an info file with
+ * the content length and type and a file per cached segment. The last access
+ * time of a segment is kept as its modified time, so the LRU order survives
+ * a restart.
+ *
+ * @author Charon Chui
+ *
+ */
+public class HttpCache {
+	private static final String TAG = "HttpCache";
+
+	public static final int DEFAULT_SEGMENT_SIZE = 256 * 1024;
+	private static final String INFO_FILE = "info";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private final File mDir;
+	private final long mMaxSize;
+	private final int mSegmentSize;
+	/**
+	 * The size of the segments by "key/index", in access order.
+	 */
+	private final LinkedHashMap<String, Long> mSegments = new LinkedHashMap<String, Long>(
+			16, 0.75f, true);
+	private long mSize;
+
+	public HttpCache(File dir, long maxSize) {
+		this(dir, maxSize, DEFAULT_SEGMENT_SIZE);
+	}
+
+	public HttpCache(File dir, long maxSize, int segmentSize) {
+		mDir = dir;
+		mMaxSize = maxSize;
+		mSegmentSize = segmentSize;
+		load();
+	}
+
+	public int getSegmentSize() {
+		return mSegmentSize;
+	}
+
+	public long getMaxSize() {
+		return mMaxSize;
+	}
+
+	public synchronized long getSize() {
+		return mSize;
+	}
+
+	/**
+	 * The key of an url in this cache.
+	 */
+	public static String key(String url) {
+		try {
+			MessageDigest md5 = MessageDigest.getInstance("MD5");
+			byte[] digest = md5.digest(url.getBytes());
+			StringBuilder builder = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+				builder.append(Character.forDigit(b & 0xf, 16));
+			}
+			return builder.toString();
+		} catch (NoSuchAlgorithmException e) {
+			return Integer.toHexString(url.hashCode());
+		}
+	}
+
+	/**
+	 * Get the content length and type saved when the first segment of the url
+	 * was fetched.
+	 *
+	 * @return null if not known yet
+	 */
+	public synchronized Info getInfo(String key) {
+		File file = new File(new File(mDir, key), INFO_FILE);
+		if (!file.exists()) {
+			return null;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(file));
+			long length = Long.parseLong(reader.readLine());
+			String type = reader.readLine();
+			return new Info(length, type);
+		} catch (Exception e) {
+			Log.e(TAG, "read info failed:" + key, e);
+			return null;
+		} finally {
+			closeSilently(reader);
+		}
+	}
+
+	public synchronized void putInfo(String key, Info info) {
+		File dir = new File(mDir, key);
+		dir.mkdirs();
+		FileWriter writer = null;
+		try {
+			writer = new FileWriter(new File(dir, INFO_FILE));
+			writer.write(info.length + "\n"
+					+ (info.type == null ? "" : info.type) + "\n");
+		} catch (IOException e) {
+			Log.e(TAG, "write info failed:" + key, e);
+		} finally {
+			closeSilently(writer);
+		}
+	}
+
+	/**
+	 * Read a cached segment.
+	 *
+	 * @return the bytes read, or -1 if the segment is not cached
+	 */
+	public int readSegment(String key, int index, byte[] buffer) {
+		File file;
+		synchronized (this) {
+			if (mSegments.get(name(key, index)) == null) {
+				return -1;
+			}
+			file = segmentFile(key, index);
+			file.setLastModified(System.currentTimeMillis());
+		}
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			int length = (int) Math.min(raf.length(), buffer.length);
+			raf.readFully(buffer, 0, length);
+			return length;
+		} catch (IOException e) {
+			// evicted by another thread
+			return -1;
+		} finally {
+			closeSilently(raf);
+		}
+	}
+
+	/**
+	 * Save a complete segment, the old segments are evicted if the cache is
+	 * full.
+	 */
+	public void putSegment(String key, int index, byte[] data, int length) {
+		if (length > mMaxSize) {
+			return;
+		}
+		File file = segmentFile(key, index);
+		File temp = new File(file.getPath() + TEMP_SUFFIX);
+		file.getParentFile().mkdirs();
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(temp);
+			out.write(data, 0, length);
+			out.close();
+			out = null;
+			synchronized (this) {
+				if (!temp.renameTo(file)) {
+					temp.delete();
+					return;
+				}
+				Long old = mSegments.put(name(key, index), (long) length);
+				if (old != null) {
+					mSize -= old;
+				}
+				mSize += length;
+				trimToSize();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "write segment failed:" + key + "/" + index, e);
+			temp.delete();
+		} finally {
+			closeSilently(out);
+		}
+	}
+
+	/**
+	 * Delete all the cached segments.
+	 */
+	public synchronized void clear() {
+		for (String name : mSegments.keySet()) {
+			new File(mDir, name).delete();
+		}
+		mSegments.clear();
+		mSize = 0;
+	}
+
+	private void trimToSize() {
+		Iterator<Map.Entry<String, Long>> it = mSegments.entrySet().iterator();
+		while (mSize > mMaxSize && it.hasNext()) {
+			Map.Entry<String, Long> entry = it.next();
+			new File(mDir, entry.getKey()).delete();
+			mSize -= entry.getValue();
+			it.remove();
+		}
+	}
+
+	private void load() {
+		mDir.mkdirs();
+		File[] dirs = mDir.listFiles();
+		if (dirs == null) {
+			return;
+		}
+		List<File> files = new ArrayList<File>();
+		for (File dir : dirs) {
+			File[] segments = dir.listFiles();
+			if (segments == null) {
+				continue;
+			}
+			for (File segment : segments) {
+				if (segment.getName().endsWith(TEMP_SUFFIX)) {
+					segment.delete();
+				} else if (!INFO_FILE.equals(segment.getName())) {
+					files.add(segment);
+				}
+			}
+		}
+		// oldest first, like the access order
+		Collections.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File lhs, File rhs) {
+				long l = lhs.lastModified();
+				long r = rhs.lastModified();
+				return l < r ? -1 : (l == r ? 0 : 1);
+			}
+		});
+		for (File file : files) {
+			mSegments.put(file.getParentFile().getName() + "/" + file.getName(),
+					file.length());
+			mSize += file.length();
+		}
+		trimToSize();
+		Log.d(TAG, "loaded " + mSegments.size() + " segments, " + mSize
+				+ " bytes");
+	}
+
+	private File segmentFile(String key, int index) {
+		return new File(mDir, name(key, index));
+	}
+
+	private static String name(String key, int index) {
+		return key + "/" + index;
+	}
+
+	private static void closeSilently(Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	public static class Info {
+		public final long length;
+		public final String type;
+
+		public Info(long length, String type) {
+			this.length = length;
+			this.type = type;
+		}
+	}
+}
@@ -0,0 +1,510 @@
+/*
+ * Copyright (C) 2013 Charon Chui <charon.chui@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.charon.video.cache;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * A http server on the loopback interface which serves the ranges of remote
+ * videos from a {@link HttpCache}, and fetches the missing segments from the
+ * origin server. The system media player is given
+ * {@link #getProxyUrl(String)} instead of the remote url, so a replay costs no
+ * network and a seek back into a played range is served from the disk.
+ * <p>
+ * An origin which doesn't support range requests is passed through without
+ * caching.
+ * <p>
+ * The proxy only serves the urls given to {@link #getProxyUrl(String)}, by a
+ * random token in the path, so the other apps on the device can't use it to
+ * fetch arbitrary urls.
+ *
+ * @author Charon Chui
+ *
+ */
+public class HttpCacheProxy {
+	private static final String TAG = "HttpCacheProxy";
+
+	private static final int CONNECT_TIMEOUT = 10 * 1000;
+	private static final int READ_TIMEOUT = 20 * 1000;
+	/**
+	 * The connections served at the same time, the players open one or two.
+	 */
+	private static final int MAX_CONNECTIONS = 4;
+
+	private final HttpCache mCache;
+	private ServerSocket mServer;
+	private Thread mAcceptThread;
+	private ThreadPoolExecutor mExecutor;
+	private final SecureRandom mRandom = new SecureRandom();
+	// guarded by this
+	private final Map<String, String> mUrls = new HashMap<String, String>();
+	private final Map<String, String> mTokens = new HashMap<String, String>();
+
+	private final AtomicLong mCacheBytes = new AtomicLong();
+	private final AtomicLong mOriginBytes = new AtomicLong();
+
+	public HttpCacheProxy(HttpCache cache) {
+		mCache = cache;
+	}
+
+	public HttpCache getCache() {
+		return mCache;
+	}
+
+	/**
+	 * Start listening on a free port of 127.0.0.1.
+	 */
+	public synchronized void start() throws IOException {
+		if (mServer != null) {
+			return;
+		}
+		mServer = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+		// a connection over the limit is answered 503 by the accept thread
+		mExecutor = new ThreadPoolExecutor(0, MAX_CONNECTIONS, 30,
+				TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+				new ThreadFactory() {
+					private final AtomicInteger mCount = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						return new Thread(r, "HttpCacheProxy #"
+								+ mCount.incrementAndGet());
+					}
+				});
+		final ServerSocket server = mServer;
+		mAcceptThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept(server);
+			}
+		}, "HttpCacheProxy accept");
+		mAcceptThread.start();
+		Log.d(TAG, "listening on port " + mServer.getLocalPort());
+	}
+
+	public synchronized void stop() {
+		if (mServer == null) {
+			return;
+		}
+		try {
+			mServer.close();
+		} catch (IOException e) {
+		}
+		mExecutor.shutdownNow();
+		mServer = null;
+		mAcceptThread = null;
+		mExecutor = null;
+		mUrls.clear();
+		mTokens.clear();
+	}
+
+	public synchronized boolean isRunning() {
+		return mServer != null;
+	}
+
+	/**
+	 * Get the url to play a http video through this proxy. The url is given a
+	 * token which stays valid until {@link #stop()}.
+	 *
+	 * @return the url itself if the proxy is not running or the url is not
+	 *         http or https
+	 */
+	public synchronized String getProxyUrl(String url) {
+		if (mServer == null || !isHttp(url)) {
+			return url;
+		}
+		String token = mTokens.get(url);
+		if (token == null) {
+			byte[] bytes = new byte[16];
+			mRandom.nextBytes(bytes);
+			StringBuilder builder = new StringBuilder(bytes.length * 2);
+			for (byte b : bytes) {
+				builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+				builder.append(Character.forDigit(b & 0xf, 16));
+			}
+			token = builder.toString();
+			mTokens.put(url, token);
+			mUrls.put(token, url);
+		}
+		return "http://127.0.0.1:" + mServer.getLocalPort() + "/" + token;
+	}
+
+	private synchronized String getOriginUrl(String token) {
+		return mUrls.get(token);
+	}
+
+	/**
+	 * @return the bytes served from the disk cache
+	 */
+	public long getCacheBytes() {
+		return mCacheBytes.get();
+	}
+
+	/**
+	 * @return the bytes fetched from the origin servers
+	 */
+	public long getOriginBytes() {
+		return mOriginBytes.get();
+	}
+
+	private void accept(ServerSocket server) {
+		while (!server.isClosed()) {
+			try {
+				final Socket socket = server.accept();
+				try {
+					mExecutor.execute(new Runnable() {
+						@Override
+						public void run() {
+							serve(socket);
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					Log.w(TAG, "too many connections");
+					reject(socket, "503 Service Unavailable");
+				}
+			} catch (SocketException e) {
+				// closed by stop()
+				return;
+			} catch (Exception e) {
+				Log.e(TAG, "accept failed", e);
+				return;
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			String requestLine = readLine(in);
+			if (requestLine == null) {
+				return;
+			}
+			String rangeHeader = null;
+			String line;
+			while ((line = readLine(in)) != null && line.length() > 0) {
+				int colon = line.indexOf(':');
+				if (colon > 0
+						&& line.substring(0, colon).trim()
+								.equalsIgnoreCase("Range")) {
+					rangeHeader = line.substring(colon + 1).trim();
+				}
+			}
+			String[] parts = requestLine.split(" ");
+			if (parts.length < 2 || parts[1].length() < 2) {
+				writeStatus(socket.getOutputStream(), "400 Bad Request");
+				return;
+			}
+			boolean head = "HEAD".equals(parts[0]);
+			String url = getOriginUrl(parts[1].substring(1));
+			if (url == null) {
+				writeStatus(socket.getOutputStream(), "404 Not Found");
+				return;
+			}
+			if (!isHttp(url)) {
+				writeStatus(socket.getOutputStream(), "400 Bad Request");
+				return;
+			}
+			serve(url, rangeHeader, head, socket.getOutputStream());
+		} catch (IOException e) {
+			// the player closes the connection when it seeks
+			Log.d(TAG, "connection closed: " + e.getMessage());
+		} catch (RuntimeException e) {
+			Log.e(TAG, "serve failed", e);
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private void serve(String url, String rangeHeader, boolean head,
+			OutputStream out) throws IOException {
+		String key = HttpCache.key(url);
+		int segmentSize = mCache.getSegmentSize();
+		byte[] buffer = new byte[segmentSize];
+		long[] range = parseRange(rangeHeader);
+		long start = range == null ? 0 : range[0];
+
+		HttpCache.Info info = mCache.getInfo(key);
+		int firstLength = -1;
+		if (info == null) {
+			// the length comes with the first segment fetched
+			firstLength = fetchSegment(url, key, (int) (start / segmentSize),
+					buffer);
+			info = mCache.getInfo(key);
+			if (info == null) {
+				passThrough(url, rangeHeader, head, out);
+				return;
+			}
+		}
+
+		if (start >= info.length) {
+			writeStatus(out, "416 Requested Range Not Satisfiable");
+			return;
+		}
+		long end = info.length - 1;
+		if (range != null && range[1] >= 0 && range[1] < end) {
+			end = range[1];
+		}
+
+		StringBuilder headers = new StringBuilder();
+		headers.append(range == null ? "HTTP/1.1 200 OK\r\n"
+				: "HTTP/1.1 206 Partial Content\r\n");
+		if (info.type != null && info.type.length() > 0) {
+			headers.append("Content-Type: ").append(info.type).append("\r\n");
+		}
+		headers.append("Accept-Ranges: bytes\r\n");
+		headers.append("Content-Length: ").append(end - start + 1)
+				.append("\r\n");
+		if (range != null) {
+			headers.append("Content-Range: bytes ").append(start).append('-')
+					.append(end).append('/').append(info.length).append("\r\n");
+		}
+		headers.append("Connection: close\r\n\r\n");
+		out.write(headers.toString().getBytes("US-ASCII"));
+		if (head) {
+			out.flush();
+			return;
+		}
+
+		long position = start;
+		while (position <= end) {
+			int index = (int) (position / segmentSize);
+			int length;
+			if (firstLength >= 0) {
+				// already in the buffer
+				length = firstLength;
+				firstLength = -1;
+			} else {
+				length = mCache.readSegment(key, index, buffer);
+				if (length >= 0) {
+					mCacheBytes.addAndGet(length);
+				} else {
+					length = fetchSegment(url, key, index, buffer);
+				}
+			}
+			int offset = (int) (position - (long) index * segmentSize);
+			int count = (int) Math.min(length - offset, end - position + 1);
+			if (count <= 0) {
+				throw new IOException("short segment " + index + " of " + url);
+			}
+			out.write(buffer, offset, count);
+			position += count;
+		}
+		out.flush();
+	}
+
+	/**
+	 * Fetch a segment from the origin and save it.
+	 *
+	 * @return the length of the segment, or -1 if the origin doesn't support
+	 *         range requests
+	 */
+	private int fetchSegment(String url, String key, int index, byte[] buffer)
+			throws IOException {
+		long start = (long) index * buffer.length;
+		HttpURLConnection conn = open(url);
+		conn.setRequestProperty("Range", "bytes=" + start + "-"
+				+ (start + buffer.length - 1));
+		try {
+			if (conn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+				return -1;
+			}
+			long total = parseTotal(conn.getHeaderField("Content-Range"));
+			if (total < 0) {
+				return -1;
+			}
+			if (mCache.getInfo(key) == null) {
+				mCache.putInfo(key, new HttpCache.Info(total, conn.getContentType()));
+			}
+			InputStream in = conn.getInputStream();
+			int length = 0;
+			int read;
+			while (length < buffer.length
+					&& (read = in.read(buffer, length, buffer.length - length)) != -1) {
+				length += read;
+			}
+			mOriginBytes.addAndGet(length);
+			long expected = Math.min(buffer.length, total - start);
+			if (length == expected) {
+				mCache.putSegment(key, index, buffer, length);
+			}
+			return length;
+		} finally {
+			conn.disconnect();
+		}
+	}
+
+	private void passThrough(String url, String rangeHeader, boolean head,
+			OutputStream out) throws IOException {
+		Log.d(TAG, "origin doesn't support range, pass through: " + url);
+		HttpURLConnection conn = open(url);
+		if (rangeHeader != null) {
+			conn.setRequestProperty("Range", rangeHeader);
+		}
+		try {
+			int code = conn.getResponseCode();
+			StringBuilder headers = new StringBuilder();
+			headers.append("HTTP/1.1 ").append(code).append(' ')
+					.append(conn.getResponseMessage()).append("\r\n");
+			String[] names = { "Content-Type", "Content-Length",
+					"Content-Range", "Accept-Ranges" };
+			for (String name : names) {
+				String value = conn.getHeaderField(name);
+				if (value != null) {
+					headers.append(name).append(": ").append(value)
+							.append("\r\n");
+				}
+			}
+			headers.append("Connection: close\r\n\r\n");
+			out.write(headers.toString().getBytes("US-ASCII"));
+			if (!head && code < 400) {
+				InputStream in = conn.getInputStream();
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+					mOriginBytes.addAndGet(read);
+				}
+			}
+			out.flush();
+		} finally {
+			conn.disconnect();
+		}
+	}
+
+	private static boolean isHttp(String url) {
+		String lower = url.toLowerCase(Locale.US);
+		return lower.startsWith("http://") || lower.startsWith("https://");
+	}
+
+	private static HttpURLConnection open(String url) throws IOException {
+		if (!isHttp(url)) {
+			throw new IOException("not a http url: " + url);
+		}
+		HttpURLConnection conn = (HttpURLConnection) new URL(url)
+				.openConnection();
+		conn.setConnectTimeout(CONNECT_TIMEOUT);
+		conn.setReadTimeout(READ_TIMEOUT);
+		// the ranges must be the raw bytes
+		conn.setRequestProperty("Accept-Encoding", "identity");
+		return conn;
+	}
+
+	/**
+	 * Parse "bytes=start-end", the end is -1 if open.
+	 *
+	 * @return null if there's no valid single range
+	 */
+	static long[] parseRange(String header) {
+		if (header == null) {
+			return null;
+		}
+		header = header.toLowerCase(Locale.US);
+		if (!header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+			return null;
+		}
+		int dash = header.indexOf('-');
+		if (dash < 0) {
+			return null;
+		}
+		try {
+			String start = header.substring(6, dash).trim();
+			String end = header.substring(dash + 1).trim();
+			if (start.length() == 0) {
+				// a suffix range is not used by the players
+				return null;
+			}
+			return new long[] { Long.parseLong(start),
+					end.length() == 0 ? -1 : Long.parseLong(end) };
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Parse the total length of "bytes start-end/total".
+	 */
+	static long parseTotal(String contentRange) {
+		if (contentRange == null) {
+			return -1;
+		}
+		int slash = contentRange.lastIndexOf('/');
+		try {
+			return Long.parseLong(contentRange.substring(slash + 1).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int c;
+		while ((c = in.read()) != -1 && c != '\n') {
+			if (c != '\r') {
+				line.write(c);
+			}
+		}
+		if (c == -1 && line.size() == 0) {
+			return null;
+		}
+		return line.toString("US-ASCII");
+	}
+
+	private static void reject(Socket socket, String status) {
+		try {
+			writeStatus(socket.getOutputStream(), status);
+		} catch (IOException e) {
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private static void writeStatus(OutputStream out, String status)
+			throws IOException {
+		out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+				.getBytes("US-ASCII"));
+		out.flush();
+	}
+}
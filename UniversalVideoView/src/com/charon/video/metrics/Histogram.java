@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2013 Charon Chui <charon.chui@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.charon.video.metrics;
+
+/**
+ * Durations in milliseconds counted into fixed buckets, so a session keeps
+ * the distribution of its rebufferings or seeks in a few ints.
+ *
+ * @author Charon Chui
+ *
+ */
+public class Histogram {
+	/**
+	 * The upper bounds of the buckets, the last bucket holds the rest.
+	 */
+	private static final long[] BOUNDS = { 50, 100, 200, 500, 1000, 2000,
+			5000, 10000 };
+
+	private final int[] mCounts = new int[BOUNDS.length + 1];
+	private int mCount;
+	private long mSum;
+	private long mMin = Long.MAX_VALUE;
+	private long mMax;
+
+	public void add(long value) {
+		int i = 0;
+		while (i < BOUNDS.length && value > BOUNDS[i]) {
+			i++;
+		}
+		mCounts[i]++;
+		mCount++;
+		mSum += value;
+		mMin = Math.min(mMin, value);
+		mMax = Math.max(mMax, value);
+	}
+
+	public Histogram copy() {
+		Histogram copy = new Histogram();
+		System.arraycopy(mCounts, 0, copy.mCounts, 0, mCounts.length);
+		copy.mCount = mCount;
+		copy.mSum = mSum;
+		copy.mMin = mMin;
+		copy.mMax = mMax;
+		return copy;
+	}
+
+	public int getCount() {
+		return mCount;
+	}
+
+	public long getSum() {
+		return mSum;
+	}
+
+	/**
+	 * @return 0 if empty
+	 */
+	public long getMin() {
+		return mCount == 0 ? 0 : mMin;
+	}
+
+	public long getMax() {
+		return mMax;
+	}
+
+	public long getAverage() {
+		return mCount == 0 ? 0 : mSum / mCount;
+	}
+
+	/**
+	 * @return the upper bounds of the buckets, {@link #getBucketCounts()} has
+	 *         one more for the values above the last bound
+	 */
+	public static long[] getBucketBounds() {
+		return BOUNDS.clone();
+	}
+
+	public int[] getBucketCounts() {
+		return mCounts.clone();
+	}
+
+	/**
+	 * @param percent
+	 *            from 0 to 100
+	 * @return the upper bound of the bucket holding the percentile, the max
+	 *         for the last bucket
+	 */
+	public long getPercentile(float percent) {
+		if (mCount == 0) {
+			return 0;
+		}
+		int rank = (int) Math.ceil(mCount * percent / 100f);
+		int seen = 0;
+		for (int i = 0; i < BOUNDS.length; i++) {
+			seen += mCounts[i];
+			if (seen >= rank) {
+				return Math.min(BOUNDS[i], mMax);
+			}
+		}
+		return mMax;
+	}
+
+	@Override
+	public String toString() {
+		return "count:" + mCount + " avg:" + getAverage() + " min:"
+				+ getMin() + " max:" + mMax + " p90:" + getPercentile(90);
+	}
+}
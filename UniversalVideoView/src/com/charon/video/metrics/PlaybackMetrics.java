@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2013 Charon Chui <charon.chui@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.charon.video.metrics;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.charon.video.view.UniversalVideoView.OnStateChangeListener.State;
+
+/**
+ * Collects the playback quality of the videos played by a
+ * {@link com.charon.video.view.UniversalVideoView}: the startup time, the
+ * prepare durations, the rebufferings, the seek latencies and the state
+ * transitions. A session lasts from a video set to its completion, its stop
+ * or the next video, and is summarized by a {@link SessionSummary}.
+ * <p>
+ * The buffering before the playback starts is part of the startup, not a
+ * rebuffering. The view reports playing as soon as start() is called, so the
+ * playback is only taken as started once the player is prepared. All the
+ * methods must be called on the main thread.
+ *
+ * @author Charon Chui
+ *
+ */
+public class PlaybackMetrics {
+	private static final String TAG = "PlaybackMetrics";
+
+	/**
+	 * The state transitions kept per session.
+	 */
+	private static final int MAX_TRANSITIONS = 64;
+	/**
+	 * A buffering started this soon after the playback is part of the
+	 * startup, the players report playing before the first buffering.
+	 */
+	private static final long STARTUP_BUFFERING_WINDOW = 500;
+
+	public interface OnSessionEndListener {
+		public void onSessionEnd(SessionSummary summary);
+	}
+
+	private OnSessionEndListener mOnSessionEndListener;
+
+	private boolean mActive;
+	private Uri mUri;
+	private long mStartTime;
+	private long mSessionStart;
+
+	private final State[] mStates = new State[MAX_TRANSITIONS];
+	private final long[] mStateTimes = new long[MAX_TRANSITIONS];
+	private int mTransitionCount;
+
+	private long mPrepareSince = -1;
+	private Histogram mPrepareTimes = new Histogram();
+
+	private long mStartupTime = -1;
+	private boolean mRebuffered;
+	private boolean mPrepared;
+	private boolean mPlaying;
+	private long mPlayingSince = -1;
+	private long mPlayingTime;
+
+	private long mBufferingSince = -1;
+	private Histogram mRebuffers = new Histogram();
+
+	private long mSeekSince = -1;
+	private Histogram mSeekLatencies = new Histogram();
+
+	private int mErrorCount;
+	private long mFramesRendered;
+	private long mFramesDropped;
+
+	public void setOnSessionEndListener(OnSessionEndListener l) {
+		mOnSessionEndListener = l;
+	}
+
+	/**
+	 * Start the session of a new video, the current one is ended.
+	 */
+	public void startSession(Uri uri) {
+		endSession();
+		mActive = true;
+		mUri = uri;
+		mStartTime = System.currentTimeMillis();
+		mSessionStart = SystemClock.elapsedRealtime();
+		mTransitionCount = 0;
+		mPrepareSince = -1;
+		mPrepareTimes = new Histogram();
+		mStartupTime = -1;
+		mRebuffered = false;
+		mPrepared = false;
+		mPlaying = false;
+		mPlayingSince = -1;
+		mPlayingTime = 0;
+		mBufferingSince = -1;
+		mRebuffers = new Histogram();
+		mSeekSince = -1;
+		mSeekLatencies = new Histogram();
+		mErrorCount = 0;
+		mFramesRendered = 0;
+		mFramesDropped = 0;
+	}
+
+	/**
+	 * End the current session and give its summary to the
+	 * {@link OnSessionEndListener}.
+	 *
+	 * @return null if there's no session
+	 */
+	public SessionSummary endSession() {
+		if (!mActive) {
+			return null;
+		}
+		long now = SystemClock.elapsedRealtime();
+		stopPlayingClock(now);
+		if (mBufferingSince >= 0 && mStartupTime >= 0) {
+			// stopped while rebuffering
+			mRebuffers.add(now - mBufferingSince);
+		}
+		mBufferingSince = -1;
+		SessionSummary summary = getSummary();
+		mActive = false;
+		Log.d(TAG, "session end " + summary);
+		if (mOnSessionEndListener != null) {
+			mOnSessionEndListener.onSessionEnd(summary);
+		}
+		return summary;
+	}
+
+	public boolean isActive() {
+		return mActive;
+	}
+
+	/**
+	 * @return the summary of the session so far, null if there's no session
+	 */
+	public SessionSummary getSummary() {
+		if (!mActive) {
+			return null;
+		}
+		long now = SystemClock.elapsedRealtime();
+		SessionSummary summary = new SessionSummary();
+		summary.uri = mUri == null ? null : mUri.toString();
+		summary.startTime = mStartTime;
+		summary.duration = now - mSessionStart;
+		summary.startupTime = mStartupTime;
+		summary.playingTime = mPlayingTime
+				+ (mPlayingSince >= 0 ? now - mPlayingSince : 0);
+		summary.errorCount = mErrorCount;
+		summary.framesRendered = mFramesRendered;
+		summary.framesDropped = mFramesDropped;
+		summary.prepareTimes = mPrepareTimes.copy();
+		summary.rebuffers = mRebuffers.copy();
+		summary.seekLatencies = mSeekLatencies.copy();
+		int kept = Math.min(mTransitionCount, MAX_TRANSITIONS);
+		summary.states = new State[kept];
+		summary.stateTimes = new long[kept];
+		System.arraycopy(mStates, 0, summary.states, 0, kept);
+		System.arraycopy(mStateTimes, 0, summary.stateTimes, 0, kept);
+		summary.droppedTransitions = mTransitionCount - kept;
+		return summary;
+	}
+
+	public void onStateChange(State state) {
+		if (!mActive) {
+			return;
+		}
+		long now = SystemClock.elapsedRealtime();
+		if (mTransitionCount < MAX_TRANSITIONS) {
+			mStates[mTransitionCount] = state;
+			mStateTimes[mTransitionCount] = now - mSessionStart;
+		}
+		mTransitionCount++;
+
+		switch (state) {
+		case PREPARING:
+			// the player is recreated, the playing resumes once prepared
+			mPrepareSince = now;
+			mPrepared = false;
+			stopPlayingClock(now);
+			break;
+		case PREPARED:
+			if (mPrepareSince >= 0) {
+				mPrepareTimes.add(now - mPrepareSince);
+				mPrepareSince = -1;
+			}
+			mPrepared = true;
+			// start() may have been called before, while preparing
+			if (mPlaying && mBufferingSince < 0) {
+				onStarted(now);
+				startPlayingClock(now);
+			}
+			break;
+		case PLAYING:
+			mPlaying = true;
+			if (mPrepared && mBufferingSince < 0) {
+				onStarted(now);
+				startPlayingClock(now);
+			}
+			break;
+		case PAUSED:
+		case SUSPEND:
+		case STOPPLAYBACK:
+		case PLAYBACK_COMPLETED:
+			mPlaying = false;
+			stopPlayingClock(now);
+			break;
+		case ERROR:
+			mErrorCount++;
+			mPlaying = false;
+			stopPlayingClock(now);
+			break;
+		default:
+			// the buffering comes from onBufferingStart/End
+			break;
+		}
+	}
+
+	public void onBufferingStart() {
+		if (!mActive || mBufferingSince >= 0) {
+			return;
+		}
+		long now = SystemClock.elapsedRealtime();
+		mBufferingSince = now;
+		stopPlayingClock(now);
+		if (mStartupTime >= 0 && !mRebuffered
+				&& now - mSessionStart - mStartupTime <= STARTUP_BUFFERING_WINDOW) {
+			// the startup ends with this buffering
+			mStartupTime = -1;
+		}
+		mRebuffered = true;
+	}
+
+	public void onBufferingEnd() {
+		if (!mActive || mBufferingSince < 0) {
+			return;
+		}
+		long now = SystemClock.elapsedRealtime();
+		if (mStartupTime >= 0) {
+			mRebuffers.add(now - mBufferingSince);
+		}
+		mBufferingSince = -1;
+		if (mPlaying && mPrepared) {
+			onStarted(now);
+			startPlayingClock(now);
+		}
+	}
+
+	/**
+	 * Set the frame counts of the player, only the software render of Vitamio
+	 * counts them.
+	 */
+	public void setFrameCounts(long rendered, long dropped) {
+		if (!mActive) {
+			return;
+		}
+		mFramesRendered = rendered;
+		mFramesDropped = dropped;
+	}
+
+	public void onSeekTo() {
+		if (!mActive) {
+			return;
+		}
+		// a seek over a pending one is measured from the first
+		if (mSeekSince < 0) {
+			mSeekSince = SystemClock.elapsedRealtime();
+		}
+	}
+
+	public void onSeekComplete() {
+		if (!mActive || mSeekSince < 0) {
+			return;
+		}
+		mSeekLatencies.add(SystemClock.elapsedRealtime() - mSeekSince);
+		mSeekSince = -1;
+	}
+
+	private void onStarted(long now) {
+		if (mStartupTime < 0) {
+			mStartupTime = now - mSessionStart;
+		}
+	}
+
+	private void startPlayingClock(long now) {
+		if (mPlayingSince < 0) {
+			mPlayingSince = now;
+		}
+	}
+
+	private void stopPlayingClock(long now) {
+		if (mPlayingSince >= 0) {
+			mPlayingTime += now - mPlayingSince;
+			mPlayingSince = -1;
+		}
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2013 Charon Chui <charon.chui@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.charon.video.metrics;
+
+import com.charon.video.view.UniversalVideoView.OnStateChangeListener.State;
+
+/**
+ * The playback quality of a video session collected by
+ * {@link PlaybackMetrics}, for the app to send to its own server. All the
+ * durations are in milliseconds.
+ *
+ * @author Charon Chui
+ *
+ */
+public class SessionSummary {
+	String uri;
+	long startTime;
+	long duration;
+	long startupTime = -1;
+	long playingTime;
+	int errorCount;
+	long framesRendered;
+	long framesDropped;
+	Histogram prepareTimes;
+	Histogram rebuffers;
+	Histogram seekLatencies;
+	State[] states;
+	long[] stateTimes;
+	int droppedTransitions;
+
+	SessionSummary() {
+	}
+
+	public String getUri() {
+		return uri;
+	}
+
+	/**
+	 * @return the wall clock time the session started, see
+	 *         {@link System#currentTimeMillis()}
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public long getDuration() {
+		return duration;
+	}
+
+	/**
+	 * @return from the video set to the playback started, -1 if never started
+	 */
+	public long getStartupTime() {
+		return startupTime;
+	}
+
+	/**
+	 * @return the time the video was playing, without the pauses and the
+	 *         rebufferings
+	 */
+	public long getPlayingTime() {
+		return playingTime;
+	}
+
+	public int getErrorCount() {
+		return errorCount;
+	}
+
+	/**
+	 * @return the frames drawn, 0 if the player doesn't count them
+	 */
+	public long getFramesRendered() {
+		return framesRendered;
+	}
+
+	/**
+	 * @return the frames decoded but not drawn, 0 if the player doesn't count
+	 *         them
+	 */
+	public long getFramesDropped() {
+		return framesDropped;
+	}
+
+	/**
+	 * @return from preparing to prepared, more than one if the player was
+	 *         recreated
+	 */
+	public Histogram getPrepareTimes() {
+		return prepareTimes;
+	}
+
+	/**
+	 * @return the rebufferings after the playback started
+	 */
+	public Histogram getRebuffers() {
+		return rebuffers;
+	}
+
+	public int getRebufferCount() {
+		return rebuffers.getCount();
+	}
+
+	public long getRebufferTime() {
+		return rebuffers.getSum();
+	}
+
+	/**
+	 * @return the part of the watching time spent rebuffering
+	 */
+	public float getRebufferRatio() {
+		long total = playingTime + rebuffers.getSum();
+		return total == 0 ? 0 : (float) rebuffers.getSum() / total;
+	}
+
+	/**
+	 * @return from seekTo() to the seek completed
+	 */
+	public Histogram getSeekLatencies() {
+		return seekLatencies;
+	}
+
+	/**
+	 * @return the states of the session in order, the first ones if there
+	 *         were too many
+	 */
+	public State[] getStates() {
+		return states;
+	}
+
+	/**
+	 * @return the times of {@link #getStates()} from the session start
+	 */
+	public long[] getStateTimes() {
+		return stateTimes;
+	}
+
+	/**
+	 * @return the transitions not kept in {@link #getStates()}
+	 */
+	public int getDroppedTransitions() {
+		return droppedTransitions;
+	}
+
+	@Override
+	public String toString() {
+		return "uri:" + uri + " duration:" + duration + " startup:"
+				+ startupTime + " playing:" + playingTime + " errors:"
+				+ errorCount + " frames:" + framesRendered + "/"
+				+ framesDropped + " prepare[" + prepareTimes + "] rebuffer["
+				+ rebuffers + "] seek[" + seekLatencies + "]";
+	}
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2013 Charon Chui <charon.chui@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.charon.video.view;
+
+import io.vov.vitamio.MediaFile;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Chooses between the system media player and Vitamio for a video. The system
+ * player decodes in hardware and needs no initialization, so it's preferred
+ * for the formats it plays; the others go to Vitamio.
+ * <p>
+ * The format is found from the extension by {@link MediaFile}, from the first
+ * bytes of a local video, or from the scheme of a stream. The result of every
+ * engine is counted per format and saved, so a format the system player fails
+ * on the device goes to Vitamio next time, and the other way round.
+ * <p>
+ * The table is loaded and saved, and the videos are sniffed, on a background
+ * thread, so {@link #select(Uri, Callback)} can be called from the UI thread.
+ * The results reported within {@link #SAVE_DELAY} are saved together.
+ *
+ * @author Charon Chui
+ *
+ */
+public class EngineSelector {
+	private static final String TAG = "EngineSelector";
+
+	private static final String TABLE_FILE = "engine_selector";
+	private static final String FORMAT_UNKNOWN = "unknown";
+	private static final String MIME_HLS = "application/x-mpegurl";
+	private static final int SNIFF_LENGTH = 512;
+	/**
+	 * The failures of an engine before a format is moved away from it.
+	 */
+	private static final int MIN_FAILURES = 2;
+	/**
+	 * How long the results are gathered before saved, in milliseconds.
+	 */
+	private static final long SAVE_DELAY = 2000;
+
+	/**
+	 * Runs the disk work of all the selectors in order, so a selection waits
+	 * for the table to be loaded.
+	 */
+	private static final ScheduledExecutorService sExecutor = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, TAG);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * Receives the engine chosen by {@link EngineSelector#select(Uri, Callback)}
+	 * on the UI thread.
+	 */
+	public interface Callback {
+		void onSelected(Uri uri, String format, boolean useVitamio);
+	}
+
+	private final Context mContext;
+	private final File mFile;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final HashMap<String, Stats> mTable = new HashMap<String, Stats>();
+	private boolean mSaveScheduled;
+
+	private final Runnable mSaveRunnable = new Runnable() {
+		@Override
+		public void run() {
+			save();
+		}
+	};
+
+	public EngineSelector(Context context) {
+		mContext = context.getApplicationContext();
+		mFile = new File(context.getFilesDir(), TABLE_FILE);
+		sExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				load();
+			}
+		});
+	}
+
+	/**
+	 * Find the format of the video and choose its engine in background.
+	 *
+	 * @param callback
+	 *            called on the UI thread
+	 */
+	public void select(final Uri uri, final Callback callback) {
+		sExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				final String format = getFormat(uri);
+				final boolean useVitamio = shouldUseVitamio(format);
+				mHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						callback.onSelected(uri, format, useVitamio);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * May read the first bytes of a local video, don't call it on the UI
+	 * thread.
+	 *
+	 * @return the mime type of the video, the scheme of a stream, or
+	 *         "unknown"
+	 */
+	public String getFormat(Uri uri) {
+		String scheme = uri.getScheme() == null ? "" : uri.getScheme()
+				.toLowerCase(Locale.US);
+		String path = uri.getPath() == null ? "" : uri.getPath();
+		if (path.toLowerCase(Locale.US).endsWith(".m3u8")) {
+			return MIME_HLS;
+		}
+		String mimeType = MediaFile.getMimeTypeForFile(path);
+		if (mimeType != null) {
+			return mimeType;
+		}
+		if (scheme.length() == 0 || ContentResolver.SCHEME_FILE.equals(scheme)
+				|| ContentResolver.SCHEME_CONTENT.equals(scheme)
+				|| ContentResolver.SCHEME_ANDROID_RESOURCE.equals(scheme)) {
+			mimeType = sniff(uri);
+			return mimeType == null ? FORMAT_UNKNOWN : mimeType;
+		}
+		if ("http".equals(scheme) || "https".equals(scheme)) {
+			// the bytes would cost a request, leave it to the learned table
+			return FORMAT_UNKNOWN;
+		}
+		return scheme;
+	}
+
+	public synchronized boolean shouldUseVitamio(String format) {
+		Stats stats = mTable.get(format);
+		if (stats != null) {
+			if (stats.systemFailures >= MIN_FAILURES
+					&& stats.systemFailures > stats.systemSuccesses) {
+				return true;
+			}
+			if (stats.systemSuccesses > stats.systemFailures) {
+				return false;
+			}
+			if (stats.vitamioFailures >= MIN_FAILURES
+					&& stats.vitamioFailures > stats.vitamioSuccesses) {
+				return false;
+			}
+		}
+		return !isSystemFormat(format);
+	}
+
+	/**
+	 * Count the result of an engine for a format, a video is reported once as
+	 * prepared or failed.
+	 */
+	public synchronized void reportResult(String format, boolean vitamio,
+			boolean success) {
+		Stats stats = mTable.get(format);
+		if (stats == null) {
+			stats = new Stats();
+			mTable.put(format, stats);
+		}
+		if (vitamio) {
+			if (success) {
+				stats.vitamioSuccesses++;
+			} else {
+				stats.vitamioFailures++;
+			}
+		} else {
+			if (success) {
+				stats.systemSuccesses++;
+			} else {
+				stats.systemFailures++;
+			}
+		}
+		if (!mSaveScheduled) {
+			mSaveScheduled = true;
+			sExecutor.schedule(mSaveRunnable, SAVE_DELAY,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Forget the learned results.
+	 */
+	public synchronized void clear() {
+		mTable.clear();
+		sExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				mFile.delete();
+			}
+		});
+	}
+
+	/**
+	 * The formats the system player is expected to play on this version, an
+	 * unknown one is tried on it first since Vitamio is the fallback.
+	 */
+	private static boolean isSystemFormat(String format) {
+		if (FORMAT_UNKNOWN.equals(format) || "rtsp".equals(format)
+				|| "video/mp4".equals(format) || "video/3gpp".equals(format)
+				|| "video/3gpp2".equals(format)) {
+			return true;
+		}
+		if ("video/mp2ts".equals(format)) {
+			return Build.VERSION.SDK_INT >= 12;
+		}
+		if (MIME_HLS.equals(format)) {
+			return Build.VERSION.SDK_INT >= 14;
+		}
+		return false;
+	}
+
+	private String sniff(Uri uri) {
+		byte[] b = new byte[SNIFF_LENGTH];
+		int length = 0;
+		InputStream in = null;
+		try {
+			if (uri.getScheme() == null) {
+				in = new FileInputStream(uri.getPath());
+			} else {
+				in = mContext.getContentResolver().openInputStream(uri);
+			}
+			int read;
+			while (length < b.length
+					&& (read = in.read(b, length, b.length - length)) != -1) {
+				length += read;
+			}
+		} catch (Exception e) {
+			Log.d(TAG, "can't sniff " + uri + ": " + e.getMessage());
+			return null;
+		} finally {
+			closeSilently(in);
+		}
+
+		if (length >= 12 && matches(b, 4, "ftyp")) {
+			if (matches(b, 8, "3g2")) {
+				return "video/3gpp2";
+			} else if (matches(b, 8, "3gp")) {
+				return "video/3gpp";
+			} else if (matches(b, 8, "qt  ")) {
+				return "video/quicktime";
+			}
+			return "video/mp4";
+		}
+		if (length >= 8 && (matches(b, 4, "moov") || matches(b, 4, "mdat"))) {
+			return "video/quicktime";
+		}
+		if (length >= 4 && (b[0] & 0xff) == 0x1a && (b[1] & 0xff) == 0x45
+				&& (b[2] & 0xff) == 0xdf && (b[3] & 0xff) == 0xa3) {
+			return "video/x-matroska";
+		}
+		if (length >= 3 && matches(b, 0, "FLV")) {
+			return "video/x-flv";
+		}
+		if (length >= 12 && matches(b, 0, "RIFF") && matches(b, 8, "AVI ")) {
+			return "video/x-divx";
+		}
+		if (length >= 4 && (b[0] & 0xff) == 0x30 && (b[1] & 0xff) == 0x26
+				&& (b[2] & 0xff) == 0xb2 && (b[3] & 0xff) == 0x75) {
+			return "video/x-ms-asf";
+		}
+		if (length >= 4 && matches(b, 0, ".RMF")) {
+			return "video/x-pn-realvideo";
+		}
+		if (length >= 4 && matches(b, 0, "OggS")) {
+			return "video/ogg";
+		}
+		if (length >= 4 && b[0] == 0 && b[1] == 0 && b[2] == 1
+				&& (b[3] & 0xff) == 0xba) {
+			return "video/mpeg";
+		}
+		if (length >= 7 && matches(b, 0, "#EXTM3U")) {
+			return MIME_HLS;
+		}
+		// the sync byte of every 188 bytes packet
+		if (length >= 377 && b[0] == 0x47 && b[188] == 0x47 && b[376] == 0x47) {
+			return "video/mp2ts";
+		}
+		return null;
+	}
+
+	private static boolean matches(byte[] b, int offset, String magic) {
+		for (int i = 0; i < magic.length(); i++) {
+			if (b[offset + i] != magic.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void load() {
+		if (!mFile.exists()) {
+			return;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(mFile));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split("\t");
+				if (parts.length != 5) {
+					continue;
+				}
+				Stats loaded = new Stats();
+				loaded.systemSuccesses = Integer.parseInt(parts[1]);
+				loaded.systemFailures = Integer.parseInt(parts[2]);
+				loaded.vitamioSuccesses = Integer.parseInt(parts[3]);
+				loaded.vitamioFailures = Integer.parseInt(parts[4]);
+				synchronized (this) {
+					// add to the results reported before the table was loaded
+					Stats stats = mTable.get(parts[0]);
+					if (stats == null) {
+						mTable.put(parts[0], loaded);
+					} else {
+						stats.add(loaded);
+					}
+				}
+			}
+		} catch (Exception e) {
+			Log.e(TAG, "load table failed", e);
+		} finally {
+			closeSilently(reader);
+		}
+	}
+
+	private void save() {
+		StringBuilder table = new StringBuilder();
+		synchronized (this) {
+			mSaveScheduled = false;
+			for (Map.Entry<String, Stats> entry : mTable.entrySet()) {
+				Stats stats = entry.getValue();
+				table.append(entry.getKey()).append('\t')
+						.append(stats.systemSuccesses).append('\t')
+						.append(stats.systemFailures).append('\t')
+						.append(stats.vitamioSuccesses).append('\t')
+						.append(stats.vitamioFailures).append('\n');
+			}
+		}
+		File temp = new File(mFile.getPath() + ".tmp");
+		FileWriter writer = null;
+		try {
+			writer = new FileWriter(temp);
+			writer.write(table.toString());
+			writer.close();
+			writer = null;
+			if (!temp.renameTo(mFile)) {
+				Log.e(TAG, "rename table failed");
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "save table failed", e);
+		} finally {
+			closeSilently(writer);
+		}
+	}
+
+	private static void closeSilently(Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private static class Stats {
+		int systemSuccesses;
+		int systemFailures;
+		int vitamioSuccesses;
+		int vitamioFailures;
+
+		void add(Stats other) {
+			systemSuccesses += other.systemSuccesses;
+			systemFailures += other.systemFailures;
+			vitamioSuccesses += other.vitamioSuccesses;
+			vitamioFailures += other.vitamioFailures;
+		}
+	}
+}
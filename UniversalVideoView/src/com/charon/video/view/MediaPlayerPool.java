@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2013 Charon Chui <charon.chui@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.charon.video.view;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.content.Context;
+import android.media.MediaPlayer;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * A bounded pool of media players, so that {@link UniversalVideoView} can
+ * reuse an already created player instead of paying the native init for every
+ * video. System and Vitamio players are kept apart, each engine holds at most
+ * {@link #setMaxSize(int)} idle players and a player idle for longer than
+ * {@link #setMaxIdleTime(long)} will be released.
+ * <p>
+ * All the players in this pool are in the idle state, the caller must set the
+ * listeners and the data source again after obtained.
+ *
+ * @author Charon Chui
+ *
+ */
+public class MediaPlayerPool {
+	private static final String TAG = "MediaPlayerPool";
+
+	private static final int DEFAULT_MAX_SIZE = 2;
+	private static final long DEFAULT_MAX_IDLE_TIME = 30 * 1000;
+
+	private static MediaPlayerPool sInstance;
+
+	private final LinkedList<Entry<MediaPlayer>> mSystemPlayers = new LinkedList<Entry<MediaPlayer>>();
+	// vitamio
+	private final LinkedList<Entry<io.vov.vitamio.MediaPlayer>> mVitamioPlayers = new LinkedList<Entry<io.vov.vitamio.MediaPlayer>>();
+	/**
+	 * The vitamio players created with the hardware decoder, which are
+	 * released instead of pooled.
+	 */
+	private final HashSet<io.vov.vitamio.MediaPlayer> mHWPlayers = new HashSet<io.vov.vitamio.MediaPlayer>();
+
+	private int mMaxSize = DEFAULT_MAX_SIZE;
+	private long mMaxIdleTime = DEFAULT_MAX_IDLE_TIME;
+
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+	private final Runnable mEvictRunnable = new Runnable() {
+		@Override
+		public void run() {
+			evictIdle();
+		}
+	};
+
+	public static synchronized MediaPlayerPool getInstance() {
+		if (sInstance == null) {
+			sInstance = new MediaPlayerPool();
+		}
+		return sInstance;
+	}
+
+	private MediaPlayerPool() {
+	}
+
+	/**
+	 * Set the max count of idle players kept for each engine, 0 will disable
+	 * the pool.
+	 *
+	 * @param maxSize
+	 */
+	public synchronized void setMaxSize(int maxSize) {
+		mMaxSize = maxSize < 0 ? 0 : maxSize;
+		trimToSize(mSystemPlayers);
+		trimToSize(mVitamioPlayers);
+	}
+
+	public synchronized int getMaxSize() {
+		return mMaxSize;
+	}
+
+	/**
+	 * Set how long an idle player can stay in the pool before released.
+	 *
+	 * @param maxIdleTime
+	 *            in milliseconds
+	 */
+	public synchronized void setMaxIdleTime(long maxIdleTime) {
+		mMaxIdleTime = maxIdleTime;
+		evictIdle();
+	}
+
+	public synchronized long getMaxIdleTime() {
+		return mMaxIdleTime;
+	}
+
+	/**
+	 * Get a reset system media player, create a new one if the pool is empty.
+	 */
+	public synchronized MediaPlayer obtainSystemPlayer() {
+		// pollLast() is API 9
+		if (!mSystemPlayers.isEmpty()) {
+			Entry<MediaPlayer> entry = mSystemPlayers.removeLast();
+			Log.d(TAG, "reuse system media player");
+			return entry.player;
+		}
+		return new MediaPlayer();
+	}
+
+	// vitamio
+	/**
+	 * Get a reset vitamio media player, create a new one if the pool is empty.
+	 * Vitamio must be initialized before this.
+	 */
+	public synchronized io.vov.vitamio.MediaPlayer obtainVitamioPlayer(
+			Context context) {
+		if (!mVitamioPlayers.isEmpty()) {
+			Entry<io.vov.vitamio.MediaPlayer> entry = mVitamioPlayers.removeLast();
+			Log.d(TAG, "reuse vitamio media player");
+			return entry.player;
+		}
+		return new io.vov.vitamio.MediaPlayer(context.getApplicationContext());
+	}
+
+	// vitamio
+	/**
+	 * Get a reset vitamio media player with the hardware decoder if
+	 * preferHWDecoder is true. The decoder is chosen when a player is created,
+	 * so a hardware one is always new and is not pooled after recycled.
+	 */
+	public synchronized io.vov.vitamio.MediaPlayer obtainVitamioPlayer(
+			Context context, boolean preferHWDecoder) {
+		if (!preferHWDecoder) {
+			return obtainVitamioPlayer(context);
+		}
+		io.vov.vitamio.MediaPlayer mp = new io.vov.vitamio.MediaPlayer(
+				context.getApplicationContext(), true);
+		mHWPlayers.add(mp);
+		return mp;
+	}
+
+	/**
+	 * Give back a system media player which has already been reset. The player
+	 * will be released if the pool is full.
+	 *
+	 * @param mp
+	 */
+	public synchronized void recycle(MediaPlayer mp) {
+		if (mp == null) {
+			return;
+		}
+		mp.setOnPreparedListener(null);
+		mp.setOnVideoSizeChangedListener(null);
+		mp.setOnCompletionListener(null);
+		mp.setOnErrorListener(null);
+		mp.setOnInfoListener(null);
+		mp.setOnBufferingUpdateListener(null);
+		mp.setOnSeekCompleteListener(null);
+		mp.setDisplay(null);
+		if (mMaxSize == 0) {
+			mp.release();
+			return;
+		}
+		mSystemPlayers.addLast(new Entry<MediaPlayer>(mp));
+		trimToSize(mSystemPlayers);
+		scheduleEvict();
+	}
+
+	// vitamio
+	/**
+	 * Give back a vitamio media player which has already been reset. The player
+	 * will be released if the pool is full.
+	 * <p>
+	 * The reset is required, since {@link io.vov.vitamio.MediaPlayer#reset()}
+	 * drops the cached metadata and track info of the last video, which would
+	 * otherwise give the next video its pause and seek capabilities.
+	 *
+	 * @param mp
+	 */
+	public synchronized void recycle(io.vov.vitamio.MediaPlayer mp) {
+		if (mp == null) {
+			return;
+		}
+		mp.setOnPreparedListener(null);
+		mp.setOnVideoSizeChangedListener(null);
+		mp.setOnCompletionListener(null);
+		mp.setOnErrorListener(null);
+		mp.setOnInfoListener(null);
+		mp.setOnBufferingUpdateListener(null);
+		mp.setOnSeekCompleteListener(null);
+		mp.setOnCachingUpdateListener(null);
+		mp.setOnHWRenderFailedListener(null);
+		mp.setOnTimedTextListener(null);
+		mp.releaseDisplay();
+		if (mMaxSize == 0 || mHWPlayers.remove(mp)) {
+			mp.release();
+			return;
+		}
+		mVitamioPlayers.addLast(new Entry<io.vov.vitamio.MediaPlayer>(mp));
+		trimToSize(mVitamioPlayers);
+		scheduleEvict();
+	}
+
+	/**
+	 * Release all the idle players, usually called when the app goes to
+	 * background or on low memory.
+	 */
+	public synchronized void clear() {
+		mHandler.removeCallbacks(mEvictRunnable);
+		while (!mSystemPlayers.isEmpty()) {
+			mSystemPlayers.removeFirst().release();
+		}
+		while (!mVitamioPlayers.isEmpty()) {
+			mVitamioPlayers.removeFirst().release();
+		}
+	}
+
+	private synchronized void evictIdle() {
+		long now = SystemClock.uptimeMillis();
+		evictIdle(mSystemPlayers, now);
+		evictIdle(mVitamioPlayers, now);
+		scheduleEvict();
+	}
+
+	private void evictIdle(LinkedList<? extends Entry<?>> players, long now) {
+		Iterator<? extends Entry<?>> it = players.iterator();
+		while (it.hasNext()) {
+			Entry<?> entry = it.next();
+			if (now - entry.idleSince >= mMaxIdleTime) {
+				Log.d(TAG, "evict idle media player");
+				it.remove();
+				entry.release();
+			}
+		}
+	}
+
+	private void trimToSize(LinkedList<? extends Entry<?>> players) {
+		// the oldest one is at the head
+		while (players.size() > mMaxSize) {
+			players.removeFirst().release();
+		}
+	}
+
+	private void scheduleEvict() {
+		mHandler.removeCallbacks(mEvictRunnable);
+		long oldest = Long.MAX_VALUE;
+		if (!mSystemPlayers.isEmpty()) {
+			oldest = Math.min(oldest, mSystemPlayers.getFirst().idleSince);
+		}
+		if (!mVitamioPlayers.isEmpty()) {
+			oldest = Math.min(oldest, mVitamioPlayers.getFirst().idleSince);
+		}
+		if (oldest != Long.MAX_VALUE) {
+			mHandler.postAtTime(mEvictRunnable, oldest + mMaxIdleTime);
+		}
+	}
+
+	private static class Entry<T> {
+		final T player;
+		final long idleSince;
+
+		Entry(T player) {
+			this.player = player;
+			this.idleSince = SystemClock.uptimeMillis();
+		}
+
+		void release() {
+			if (player instanceof MediaPlayer) {
+				((MediaPlayer) player).release();
+			} else if (player instanceof io.vov.vitamio.MediaPlayer) {
+				((io.vov.vitamio.MediaPlayer) player).release();
+			}
+		}
+	}
+}
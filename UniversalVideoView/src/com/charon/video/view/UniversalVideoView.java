@@ -18,9 +18,16 @@ package com.charon.video.view;
 
 import io.vov.vitamio.Metadata;
 import io.vov.vitamio.Vitamio;
+import io.vov.vitamio.utils.Tracer;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
+import com.charon.video.buffer.AdaptiveBufferController;
+import com.charon.video.cache.HttpCacheProxy;
+import com.charon.video.metrics.PlaybackMetrics;
 import com.charon.video.view.UniversalVideoView.OnStateChangeListener.State;
 
 import android.R;
@@ -35,6 +42,8 @@ import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
 import android.util.Log;
@@ -98,6 +107,89 @@ public class UniversalVideoView extends SurfaceView implements
 	private Uri mUri;
 	private MediaController mMediaController;
 
+	/**
+	 * The remote videos played by the system media player go through it if
+	 * not null.
+	 */
+	private HttpCacheProxy mHttpCacheProxy;
+
+	/**
+	 * Sizes the buffer of the Vitamio player if not null.
+	 */
+	private AdaptiveBufferController mBufferController;
+
+	/**
+	 * Chooses the engine of {@link #setVideoURIAuto(Uri, boolean)}.
+	 */
+	private EngineSelector mEngineSelector;
+	/**
+	 * The format of the video if its engine was chosen automatically, else
+	 * null.
+	 */
+	private String mEngineFormat;
+	/**
+	 * Identifies the last call of {@link #setVideoURIAuto(Uri, boolean)}
+	 * whose engine is being chosen in background, null if none.
+	 */
+	private Object mEngineSelection;
+	/**
+	 * True once the video fell back to the other engine.
+	 */
+	private boolean mEngineFallback;
+	/**
+	 * True once the outcome of the video has been given to the
+	 * {@link EngineSelector}, it's only counted once.
+	 */
+	private boolean mEngineReported;
+	/**
+	 * The last position read, the player can't be asked after an error.
+	 */
+	private int mLastPosition;
+	/**
+	 * How often the position is read for the engine fallback.
+	 */
+	private static final int POSITION_SAMPLE_INTERVAL = 1000;
+	/**
+	 * Reads the position of a video whose engine was chosen automatically, so
+	 * the fallback resumes near where it failed even if nothing else asked
+	 * for the position.
+	 */
+	private final Runnable mPositionSampler = new Runnable() {
+		@Override
+		public void run() {
+			if (mEngineFormat == null || !isInPlaybackState()) {
+				return;
+			}
+			getCurrentPosition();
+			postDelayed(this, POSITION_SAMPLE_INTERVAL);
+		}
+	};
+
+	/**
+	 * Create the Vitamio players with the hardware decoder.
+	 */
+	private boolean mPreferHWDecoder;
+	/**
+	 * True if the hardware decoder failed on the current video, which is
+	 * played by the software decoder then.
+	 */
+	private boolean mHWDecoderFailed;
+	/**
+	 * When the hardware decoder failed, -1 if not switching to the software
+	 * decoder.
+	 */
+	private long mDecoderFallbackStart = -1;
+	private int mDecoderFallbackPosition;
+	// the decoder fallback metrics
+	private int mDecoderFallbackCount;
+	private long mDecoderFallbackTime;
+	private OnDecoderFallbackListener mOnDecoderFallbackListener;
+
+	/**
+	 * Collects the playback quality of the videos if not null.
+	 */
+	private PlaybackMetrics mPlaybackMetrics;
+
 	/**
 	 * Max height of this view
 	 */
@@ -172,6 +264,33 @@ public class UniversalVideoView extends SurfaceView implements
 	// The listener of the current video state.
 	private OnStateChangeListener mOnStateChangeListener;
 
+	/**
+	 * The playlist set by {@link #setPlaylist(List)}, empty if not use
+	 * playlist.
+	 */
+	private final ArrayList<PlaylistItem> mPlaylist = new ArrayList<PlaylistItem>();
+	private int mPlaylistIndex = -1;
+
+	/**
+	 * How many items after the current one will be prepared in background.
+	 */
+	private int mPlaylistLookahead = 1;
+
+	/**
+	 * The players which are preparing the next items in background.
+	 */
+	private final ArrayList<Preload> mPreloads = new ArrayList<Preload>();
+	/**
+	 * True while a preload prepared in background is switched to, its prepare
+	 * has been traced by the preload.
+	 */
+	private boolean mSwitchingPreload;
+
+	// the lookahead metrics
+	private int mLookaheadHitCount;
+	private int mLookaheadLateCount;
+	private int mLookaheadMissCount;
+
 	/**
 	 * we can get the changes of surface from SurfaceHolder.Callback()
 	 */
@@ -268,7 +387,12 @@ public class UniversalVideoView extends SurfaceView implements
 
 	private MediaPlayer.OnPreparedListener mPreparedListener = new MediaPlayer.OnPreparedListener() {
 		public void onPrepared(MediaPlayer mp) {
+			if (!mSwitchingPreload) {
+				Tracer.endAsyncSection("prepare", System.identityHashCode(mp));
+			}
+			reportEngineResult(true);
 			mCurrentState = STATE_PREPARED;
+			startPositionSampler();
 			mTargetState = STATE_PLAYING;
 
 			if (isLive) {
@@ -320,6 +444,7 @@ public class UniversalVideoView extends SurfaceView implements
 			}
 
 			stateChange(State.PREPARED);
+			preloadPlaylist();
 		}
 	};
 
@@ -327,7 +452,15 @@ public class UniversalVideoView extends SurfaceView implements
 	private io.vov.vitamio.MediaPlayer.OnPreparedListener mVitamioPreparedListener = new io.vov.vitamio.MediaPlayer.OnPreparedListener() {
 		public void onPrepared(io.vov.vitamio.MediaPlayer mp) {
 			Log.i(TAG, "vitamio on prepared.");
+			if (!mSwitchingPreload) {
+				Tracer.endAsyncSection("prepare", System.identityHashCode(mp));
+			}
+			reportEngineResult(true);
+			if (mBufferController != null) {
+				mBufferController.onPrepared();
+			}
 			mCurrentState = STATE_PREPARED;
+			startPositionSampler();
 			mTargetState = STATE_PLAYING;
 
 			// Get the capabilities of the player for this stream
@@ -359,6 +492,8 @@ public class UniversalVideoView extends SurfaceView implements
 					+ seekToPosition);
 			if (seekToPosition != 0) {
 				seekTo(seekToPosition);
+			} else {
+				finishDecoderFallback();
 			}
 			mVideoAspectRatio = (float) mVideoWidth / (float) mVideoHeight;
 
@@ -389,6 +524,7 @@ public class UniversalVideoView extends SurfaceView implements
 			}
 
 			stateChange(State.PREPARED);
+			preloadPlaylist();
 		}
 	};
 
@@ -436,6 +572,9 @@ public class UniversalVideoView extends SurfaceView implements
 			}
 
 			stateChange(State.PLAYBACK_COMPLETED);
+			if (hasNext()) {
+				playNext();
+			}
 		}
 	};
 
@@ -452,11 +591,17 @@ public class UniversalVideoView extends SurfaceView implements
 			}
 
 			stateChange(State.PLAYBACK_COMPLETED);
+			if (hasNext()) {
+				playNext();
+			}
 		}
 	};
 
 	private MediaPlayer.OnErrorListener mErrorListener = new MediaPlayer.OnErrorListener() {
 		public boolean onError(MediaPlayer mp, int framework_err, int impl_err) {
+			if (fallBackEngine()) {
+				return true;
+			}
 			mCurrentState = STATE_ERROR;
 			mTargetState = STATE_ERROR;
 
@@ -515,6 +660,9 @@ public class UniversalVideoView extends SurfaceView implements
 	private io.vov.vitamio.MediaPlayer.OnErrorListener mVitamioErrorListener = new io.vov.vitamio.MediaPlayer.OnErrorListener() {
 		public boolean onError(io.vov.vitamio.MediaPlayer mp,
 				int framework_err, int impl_err) {
+			if (fallBackEngine()) {
+				return true;
+			}
 			mCurrentState = STATE_ERROR;
 			mTargetState = STATE_ERROR;
 
@@ -572,6 +720,16 @@ public class UniversalVideoView extends SurfaceView implements
 	private MediaPlayer.OnInfoListener mInfoListener = new MediaPlayer.OnInfoListener() {
 		@Override
 		public boolean onInfo(MediaPlayer mp, int what, int extra) {
+			if (what == MediaPlayer.MEDIA_INFO_VIDEO_RENDERING_START) {
+				Tracer.instant("MediaPlayer.firstFrame");
+			}
+			if (mPlaybackMetrics != null) {
+				if (what == MediaPlayer.MEDIA_INFO_BUFFERING_START) {
+					mPlaybackMetrics.onBufferingStart();
+				} else if (what == MediaPlayer.MEDIA_INFO_BUFFERING_END) {
+					mPlaybackMetrics.onBufferingEnd();
+				}
+			}
 			if (mOnInfoListener != null) {
 				mOnInfoListener.onInfo(mp, what, extra);
 			} else if (mMediaPlayer != null) {
@@ -598,6 +756,16 @@ public class UniversalVideoView extends SurfaceView implements
 	private io.vov.vitamio.MediaPlayer.OnInfoListener mVitamioInfoListener = new io.vov.vitamio.MediaPlayer.OnInfoListener() {
 		@Override
 		public boolean onInfo(io.vov.vitamio.MediaPlayer mp, int what, int extra) {
+			if (mBufferController != null) {
+				mBufferController.onInfo(what, extra);
+			}
+			if (mPlaybackMetrics != null) {
+				if (what == io.vov.vitamio.MediaPlayer.MEDIA_INFO_BUFFERING_START) {
+					mPlaybackMetrics.onBufferingStart();
+				} else if (what == io.vov.vitamio.MediaPlayer.MEDIA_INFO_BUFFERING_END) {
+					mPlaybackMetrics.onBufferingEnd();
+				}
+			}
 			if (mVitamioOnInfoListener != null) {
 				mVitamioOnInfoListener.onInfo(mp, what, extra);
 			} else if (mVitamioMediaPlayer != null) {
@@ -641,6 +809,9 @@ public class UniversalVideoView extends SurfaceView implements
 	private MediaPlayer.OnSeekCompleteListener mSeekCompleteListener = new MediaPlayer.OnSeekCompleteListener() {
 		@Override
 		public void onSeekComplete(MediaPlayer mp) {
+			if (mPlaybackMetrics != null) {
+				mPlaybackMetrics.onSeekComplete();
+			}
 			if (mOnSeekCompleteListener != null)
 				mOnSeekCompleteListener.onSeekComplete(mp);
 		}
@@ -650,11 +821,44 @@ public class UniversalVideoView extends SurfaceView implements
 	private io.vov.vitamio.MediaPlayer.OnSeekCompleteListener mVitamioSeekCompleteListener = new io.vov.vitamio.MediaPlayer.OnSeekCompleteListener() {
 		@Override
 		public void onSeekComplete(io.vov.vitamio.MediaPlayer mp) {
+			finishDecoderFallback();
+			if (mPlaybackMetrics != null) {
+				mPlaybackMetrics.onSeekComplete();
+			}
 			if (mOnSeekCompleteListener != null)
 				mVitamioOnSeekCompleteListener.onSeekComplete(mp);
 		}
 	};
 
+	// vitamio
+	private io.vov.vitamio.MediaPlayer.OnHWRenderFailedListener mHWRenderFailedListener = new io.vov.vitamio.MediaPlayer.OnHWRenderFailedListener() {
+		@Override
+		public void onFailed() {
+			if (mHWDecoderFailed || mVitamioMediaPlayer == null) {
+				return;
+			}
+			mHWDecoderFailed = true;
+			mDecoderFallbackStart = SystemClock.uptimeMillis();
+			mDecoderFallbackPosition = getCurrentPosition();
+			Log.w(TAG, "hardware render failed on " + Build.MODEL + " at "
+					+ mDecoderFallbackPosition
+					+ ", switch to the software decoder");
+			final Uri uri = mUri;
+			// not inside the callback of the failed player
+			post(new Runnable() {
+				@Override
+				public void run() {
+					if (uri != mUri) {
+						mDecoderFallbackStart = -1;
+						return;
+					}
+					mSeekWhenPrepared = mDecoderFallbackPosition;
+					openVideo();
+				}
+			});
+		}
+	};
+
 	public UniversalVideoView(Context context, AttributeSet attrs, int defStyle) {
 		super(context, attrs, defStyle);
 		initVideoView(context);
@@ -730,15 +934,42 @@ public class UniversalVideoView extends SurfaceView implements
 	 * @param uri
 	 */
 	public void setVideoURI(Uri uri) {
+		mEngineFormat = null;
+		openUri(uri, false);
+	}
+
+	/**
+	 * @param isPlaylistItem
+	 *            false if the video is set directly, which ends the playlist
+	 */
+	private void openUri(Uri uri, boolean isPlaylistItem) {
+		mEngineSelection = null;
+		if (!isPlaylistItem) {
+			clearPlaylist();
+		}
 		mUri = uri;
+		if (mPlaybackMetrics != null) {
+			updateFrameCounts();
+			mPlaybackMetrics.startSession(uri);
+		}
 		mSeekWhenPrepared = 0;
+		mEngineFallback = false;
+		mEngineReported = false;
+		mLastPosition = 0;
+		mHWDecoderFailed = false;
+		mDecoderFallbackStart = -1;
 		openVideo();
 		requestLayout();
 		invalidate();
 	}
 
-	@SuppressWarnings("deprecation")
 	public void setVideoURI(Uri uri, boolean isUseVitamio) {
+		setUseVitamio(isUseVitamio);
+		setVideoURI(uri);
+	}
+
+	@SuppressWarnings("deprecation")
+	private void setUseVitamio(boolean isUseVitamio) {
 		this.isUseVitamio = isUseVitamio;
 		if (isUseVitamio) {
 			getHolder().setFormat(PixelFormat.RGBA_8888);
@@ -749,8 +980,6 @@ public class UniversalVideoView extends SurfaceView implements
 						.setVolumeControlStream(AudioManager.STREAM_MUSIC);
 			}
 		}
-
-		setVideoURI(uri);
 	}
 
 	public void setVideoURI(Uri uri, boolean isUseVitamio, boolean isLive) {
@@ -758,14 +987,491 @@ public class UniversalVideoView extends SurfaceView implements
 		setVideoURI(uri, isUseVitamio);
 	}
 
+	public void setVideoPathAuto(String path, boolean isLive) {
+		setVideoURIAuto(Uri.parse(path), isLive);
+	}
+
+	/**
+	 * Play the video with the engine chosen by the {@link EngineSelector}:
+	 * the system media player if it can play the format, else Vitamio. If the
+	 * chosen engine fails, the video is played again by the other one from
+	 * the position reached.
+	 * <p>
+	 * The format may be read from the first bytes of the video, so the video
+	 * is opened once the engine is chosen in background.
+	 * 
+	 * @param uri
+	 * @param isLive
+	 */
+	public void setVideoURIAuto(Uri uri, final boolean isLive) {
+		if (mEngineSelector == null) {
+			mEngineSelector = new EngineSelector(mContext);
+		}
+		final Object selection = new Object();
+		mEngineSelection = selection;
+		mEngineSelector.select(uri, new EngineSelector.Callback() {
+			@Override
+			public void onSelected(Uri selected, String format,
+					boolean useVitamio) {
+				if (selection != mEngineSelection) {
+					// another video was set or the playback stopped meanwhile
+					return;
+				}
+				Log.d(TAG, "engine for " + format + ": "
+						+ (useVitamio ? "vitamio" : "system"));
+				UniversalVideoView.this.isLive = isLive;
+				setUseVitamio(useVitamio);
+				mEngineFormat = format;
+				openUri(selected, false);
+			}
+		});
+	}
+
+	public void setEngineSelector(EngineSelector selector) {
+		mEngineSelector = selector;
+	}
+
+	public EngineSelector getEngineSelector() {
+		return mEngineSelector;
+	}
+
+	/**
+	 * Give the first outcome of the video to the selector, a video prepared
+	 * and failing later is counted as prepared.
+	 */
+	private void reportEngineResult(boolean success) {
+		if (mEngineFormat != null && mEngineSelector != null
+				&& !mEngineReported) {
+			mEngineReported = true;
+			mEngineSelector.reportResult(mEngineFormat, isUseVitamio, success);
+		}
+	}
+
+	private void startPositionSampler() {
+		if (mEngineFormat != null) {
+			removeCallbacks(mPositionSampler);
+			post(mPositionSampler);
+		}
+	}
+
+	/**
+	 * Play the video again with the other engine if it was chosen
+	 * automatically and hasn't fallen back yet.
+	 * 
+	 * @return true if the error is handled
+	 */
+	private boolean fallBackEngine() {
+		if (mEngineFormat == null) {
+			return false;
+		}
+		// the failed player can't be asked for its position any more
+		removeCallbacks(mPositionSampler);
+		reportEngineResult(false);
+		if (mEngineFallback) {
+			return false;
+		}
+		mEngineFallback = true;
+		final Uri uri = mUri;
+		final boolean useVitamio = !isUseVitamio;
+		final int position = mLastPosition;
+		final int targetState = mTargetState;
+		Log.w(TAG, "fall back to " + (useVitamio ? "vitamio" : "system")
+				+ " at " + position + ", format:" + mEngineFormat);
+		// not inside the callback of the failed player
+		post(new Runnable() {
+			@Override
+			public void run() {
+				if (uri != mUri) {
+					// another video was set meanwhile
+					return;
+				}
+				setUseVitamio(useVitamio);
+				mSeekWhenPrepared = position;
+				// start as the failed player would have
+				mTargetState = targetState;
+				openVideo();
+				requestLayout();
+				invalidate();
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Route the http videos played by the system media player through a
+	 * caching proxy, so a replay or a seek back is served from the disk. The
+	 * live streams and the videos played by Vitamio are not cached. Takes
+	 * effect from the next video.
+	 * 
+	 * @param proxy
+	 *            a started proxy, null to play from the origin
+	 */
+	public void setHttpCacheProxy(HttpCacheProxy proxy) {
+		mHttpCacheProxy = proxy;
+	}
+
+	public HttpCacheProxy getHttpCacheProxy() {
+		return mHttpCacheProxy;
+	}
+
+	private Uri getSystemPlayerUri(Uri uri, boolean live) {
+		String scheme = uri.getScheme();
+		if (mHttpCacheProxy == null || live
+				|| !("http".equalsIgnoreCase(scheme) || "https"
+						.equalsIgnoreCase(scheme))) {
+			return uri;
+		}
+		return Uri.parse(mHttpCacheProxy.getProxyUrl(uri.toString()));
+	}
+
+	/**
+	 * Adjust the buffer size of Vitamio from the download rate and the
+	 * rebufferings, instead of the fixed size of the player. Takes effect from
+	 * the next video.
+	 * 
+	 * @param controller
+	 *            null to keep the default buffer size
+	 */
+	public void setAdaptiveBufferController(AdaptiveBufferController controller) {
+		mBufferController = controller;
+	}
+
+	public AdaptiveBufferController getAdaptiveBufferController() {
+		return mBufferController;
+	}
+
+	// vitamio
+	private void openBufferController(io.vov.vitamio.MediaPlayer mp) {
+		if (mBufferController == null) {
+			return;
+		}
+		mBufferController.onOpen(bufferTarget(mp));
+	}
+
+	// vitamio
+	private static AdaptiveBufferController.Target bufferTarget(
+			final io.vov.vitamio.MediaPlayer mp) {
+		return new AdaptiveBufferController.Target() {
+			@Override
+			public void setBufferSize(long bufferSize) {
+				mp.setBufferSize(bufferSize);
+			}
+		};
+	}
+
+	/**
+	 * Play the items in order from the first one. While an item is playing the
+	 * next {@link #setPlaylistLookahead(int)} items will be prepared on other
+	 * players in background, so the next item can start as soon as the
+	 * current one completes.
+	 * 
+	 * @param playlist
+	 */
+	public void setPlaylist(List<PlaylistItem> playlist) {
+		clearPlaylist();
+		if (playlist != null) {
+			mPlaylist.addAll(playlist);
+		}
+		if (!mPlaylist.isEmpty()) {
+			playPlaylistItem(0);
+		}
+	}
+
+	/**
+	 * Set how many items after the current one will be prepared in
+	 * background, 0 will disable the preparing. The default is 1.
+	 * 
+	 * @param lookahead
+	 */
+	public void setPlaylistLookahead(int lookahead) {
+		mPlaylistLookahead = lookahead < 0 ? 0 : lookahead;
+		preloadPlaylist();
+	}
+
+	public int getPlaylistLookahead() {
+		return mPlaylistLookahead;
+	}
+
+	/**
+	 * Get the index of the playing item in the playlist, -1 if not use
+	 * playlist.
+	 */
+	public int getPlaylistIndex() {
+		return mPlaylistIndex;
+	}
+
+	public boolean hasNext() {
+		return mPlaylistIndex >= 0 && mPlaylistIndex + 1 < mPlaylist.size();
+	}
+
+	/**
+	 * Play the next item of the playlist, the prepared player will be used if
+	 * there is one.
+	 */
+	public void playNext() {
+		if (hasNext()) {
+			playPlaylistItem(mPlaylistIndex + 1);
+		}
+	}
+
+	/**
+	 * The count of items which have been prepared already when switch to.
+	 */
+	public int getLookaheadHitCount() {
+		return mLookaheadHitCount;
+	}
+
+	/**
+	 * The count of items which were still preparing when switch to.
+	 */
+	public int getLookaheadLateCount() {
+		return mLookaheadLateCount;
+	}
+
+	/**
+	 * The count of items which have not been prepared in background, e.g. the
+	 * lookahead is 0 or the preparing failed.
+	 */
+	public int getLookaheadMissCount() {
+		return mLookaheadMissCount;
+	}
+
+	public void resetLookaheadStats() {
+		mLookaheadHitCount = 0;
+		mLookaheadLateCount = 0;
+		mLookaheadMissCount = 0;
+	}
+
+	/**
+	 * Play the videos of Vitamio with the hardware decoder. If it fails to
+	 * render, the player is created again with the software decoder and the
+	 * video goes on from the same position. Takes effect from the next video.
+	 * 
+	 * @param preferHWDecoder
+	 */
+	public void setPreferHWDecoder(boolean preferHWDecoder) {
+		mPreferHWDecoder = preferHWDecoder;
+	}
+
+	public boolean isPreferHWDecoder() {
+		return mPreferHWDecoder;
+	}
+
+	/**
+	 * Collect the startup time, the rebufferings, the seek latencies and the
+	 * state transitions of every video, see {@link PlaybackMetrics}. Takes
+	 * effect from the next video.
+	 * 
+	 * @param metrics
+	 *            null to stop collecting
+	 */
+	public void setPlaybackMetrics(PlaybackMetrics metrics) {
+		mPlaybackMetrics = metrics;
+	}
+
+	public PlaybackMetrics getPlaybackMetrics() {
+		return mPlaybackMetrics;
+	}
+
+	// vitamio
+	private void updateFrameCounts() {
+		if (isUseVitamio && mVitamioMediaPlayer != null
+				&& isInPlaybackState()) {
+			mPlaybackMetrics.setFrameCounts(
+					mVitamioMediaPlayer.getFramesRendered(),
+					mVitamioMediaPlayer.getFramesDropped());
+		}
+	}
+
+	public void setOnDecoderFallbackListener(OnDecoderFallbackListener l) {
+		mOnDecoderFallbackListener = l;
+	}
+
+	/**
+	 * The count of videos switched from the hardware decoder to the software
+	 * decoder.
+	 */
+	public int getDecoderFallbackCount() {
+		return mDecoderFallbackCount;
+	}
+
+	/**
+	 * The total milliseconds from the hardware decoder failures to the videos
+	 * resumed by the software decoder.
+	 */
+	public long getDecoderFallbackTime() {
+		return mDecoderFallbackTime;
+	}
+
+	public void resetDecoderFallbackStats() {
+		mDecoderFallbackCount = 0;
+		mDecoderFallbackTime = 0;
+	}
+
+	private void finishDecoderFallback() {
+		if (mDecoderFallbackStart < 0) {
+			return;
+		}
+		long swapTime = SystemClock.uptimeMillis() - mDecoderFallbackStart;
+		mDecoderFallbackStart = -1;
+		mDecoderFallbackCount++;
+		mDecoderFallbackTime += swapTime;
+		Log.i(TAG, "software decoder resumed at " + mDecoderFallbackPosition
+				+ " in " + swapTime + "ms on " + Build.MODEL);
+		if (mOnDecoderFallbackListener != null) {
+			mOnDecoderFallbackListener.onDecoderFallback(Build.MODEL,
+					mDecoderFallbackPosition, swapTime);
+		}
+	}
+
+	private void playPlaylistItem(int index) {
+		PlaylistItem item = mPlaylist.get(index);
+		// the first item can never be prepared in background
+		boolean isFirst = mPlaylistIndex < 0;
+		mPlaylistIndex = index;
+		Preload preload = takePreload(index);
+		if (preload == null || preload.failed || mSurfaceHolder == null) {
+			if (preload != null) {
+				preload.recycle();
+			}
+			if (!isFirst) {
+				mLookaheadMissCount++;
+				Log.d(TAG, "playlist lookahead miss, index:" + index);
+			}
+			this.isLive = item.isLive;
+			setUseVitamio(item.isUseVitamio);
+			mEngineFormat = null;
+			openUri(item.uri, true);
+			return;
+		}
+
+		if (preload.prepared) {
+			mLookaheadHitCount++;
+		} else {
+			mLookaheadLateCount++;
+		}
+		Log.d(TAG, "playlist lookahead " + (preload.prepared ? "hit" : "late")
+				+ ", index:" + index);
+
+		if (mPlaybackMetrics != null) {
+			// before the old player is reset
+			updateFrameCounts();
+		}
+		release(false);
+		mEngineSelection = null;
+		mUri = item.uri;
+		if (mPlaybackMetrics != null) {
+			mPlaybackMetrics.startSession(item.uri);
+		}
+		mSeekWhenPrepared = 0;
+		mEngineFormat = null;
+		mHWDecoderFailed = false;
+		mDecoderFallbackStart = -1;
+		this.isLive = item.isLive;
+		setUseVitamio(item.isUseVitamio);
+		mCurrentBufferPercentage = 0;
+		mCurrentState = STATE_PREPARING;
+		stateChange(State.PREPARING);
+		if (preload.vitamioPlayer != null) {
+			mVitamioMediaPlayer = preload.vitamioPlayer;
+			attachListeners(mVitamioMediaPlayer);
+			openBufferController(mVitamioMediaPlayer);
+			mVitamioMediaPlayer.setDisplay(mSurfaceHolder);
+			mVitamioMediaPlayer.setScreenOnWhilePlaying(true);
+			attachMediaController();
+			if (preload.prepared) {
+				// after onOpen, so the prepared listener gives the controller
+				// its onPrepared for the startup delay
+				mSwitchingPreload = true;
+				mVitamioPreparedListener.onPrepared(mVitamioMediaPlayer);
+				mSwitchingPreload = false;
+			}
+		} else {
+			mMediaPlayer = preload.player;
+			attachListeners(mMediaPlayer);
+			mMediaPlayer.setDisplay(mSurfaceHolder);
+			mMediaPlayer.setScreenOnWhilePlaying(true);
+			attachMediaController();
+			if (preload.prepared) {
+				mSwitchingPreload = true;
+				mPreparedListener.onPrepared(mMediaPlayer);
+				mSwitchingPreload = false;
+			}
+		}
+		requestLayout();
+		invalidate();
+	}
+
+	/**
+	 * Start to prepare the next items of the playlist in background.
+	 */
+	private void preloadPlaylist() {
+		if (mPlaylistIndex < 0) {
+			return;
+		}
+		int last = Math.min(mPlaylistIndex + mPlaylistLookahead,
+				mPlaylist.size() - 1);
+		// the items which have been passed or are too far are useless
+		Iterator<Preload> it = mPreloads.iterator();
+		while (it.hasNext()) {
+			Preload preload = it.next();
+			if (preload.index <= mPlaylistIndex || preload.index > last) {
+				it.remove();
+				preload.recycle();
+			}
+		}
+		for (int i = mPlaylistIndex + 1; i <= last; i++) {
+			if (findPreload(i) == null) {
+				Preload preload = new Preload(i);
+				if (preload.start(mPlaylist.get(i))) {
+					mPreloads.add(preload);
+				}
+			}
+		}
+	}
+
+	private Preload findPreload(int index) {
+		for (Preload preload : mPreloads) {
+			if (preload.index == index) {
+				return preload;
+			}
+		}
+		return null;
+	}
+
+	private Preload takePreload(int index) {
+		Preload preload = findPreload(index);
+		if (preload != null) {
+			mPreloads.remove(preload);
+		}
+		return preload;
+	}
+
+	private void clearPreloads() {
+		for (Preload preload : mPreloads) {
+			preload.recycle();
+		}
+		mPreloads.clear();
+	}
+
+	private void clearPlaylist() {
+		clearPreloads();
+		mPlaylist.clear();
+		mPlaylistIndex = -1;
+	}
+
 	/**
-	 * Stop and release the resource
+	 * Stop and release the resource, the media player will be given back to
+	 * {@link MediaPlayerPool}.
 	 */
 	public void stopPlayback() {
+		mEngineSelection = null;
+		clearPreloads();
 		if (mMediaPlayer != null) {
-			Log.d(TAG, "stop play back, release");
+			Log.d(TAG, "stop play back, recycle");
 			mMediaPlayer.stop();
-			mMediaPlayer.release();
+			mMediaPlayer.reset();
+			MediaPlayerPool.getInstance().recycle(mMediaPlayer);
 			mMediaPlayer = null;
 			mCurrentState = STATE_IDLE;
 			mTargetState = STATE_IDLE;
@@ -774,9 +1480,10 @@ public class UniversalVideoView extends SurfaceView implements
 
 		// vitamio
 		if (mVitamioMediaPlayer != null) {
-			Log.d(TAG, "vitamio stop play back, release");
+			Log.d(TAG, "vitamio stop play back, recycle");
 			mVitamioMediaPlayer.stop();
-			mVitamioMediaPlayer.release();
+			mVitamioMediaPlayer.reset();
+			MediaPlayerPool.getInstance().recycle(mVitamioMediaPlayer);
 			mVitamioMediaPlayer = null;
 			mCurrentState = STATE_IDLE;
 			mTargetState = STATE_IDLE;
@@ -884,22 +1591,22 @@ public class UniversalVideoView extends SurfaceView implements
 					initializeVitamio();
 				}
 			} else {
-				Log.d(TAG, "create system media player");
-				mMediaPlayer = new MediaPlayer();
-				mMediaPlayer.setOnPreparedListener(mPreparedListener);
-				mMediaPlayer
-						.setOnVideoSizeChangedListener(mSizeChangedListener);
-				mMediaPlayer.setOnCompletionListener(mCompletionListener);
-				mMediaPlayer.setOnErrorListener(mErrorListener);
-				mMediaPlayer.setOnInfoListener(mInfoListener);
-				mMediaPlayer
-						.setOnBufferingUpdateListener(mBufferingUpdateListener);
-				mMediaPlayer.setOnSeekCompleteListener(mSeekCompleteListener);
-				mMediaPlayer.setDataSource(mContext, mUri);
+				Log.d(TAG, "obtain system media player");
+				mMediaPlayer = MediaPlayerPool.getInstance().obtainSystemPlayer();
+				attachListeners(mMediaPlayer);
+				Tracer.beginSection("setDataSource");
+				try {
+					mMediaPlayer.setDataSource(mContext,
+							getSystemPlayerUri(mUri, isLive));
+				} finally {
+					Tracer.endSection("setDataSource");
+				}
 				// let's surface view show the image
 				mMediaPlayer.setDisplay(mSurfaceHolder);
 				mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
 				mMediaPlayer.setScreenOnWhilePlaying(true);
+				Tracer.beginAsyncSection("prepare",
+						System.identityHashCode(mMediaPlayer));
 				mMediaPlayer.prepareAsync();
 
 				mCurrentBufferPercentage = 0;
@@ -912,19 +1619,17 @@ public class UniversalVideoView extends SurfaceView implements
 
 		} catch (IOException ex) {
 			ex.printStackTrace();
-			mCurrentState = STATE_ERROR;
-			mTargetState = STATE_ERROR;
+			// the listener falls back to the other engine, or else goes to
+			// the error state itself
 			mErrorListener.onError(mMediaPlayer,
 					MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
-			stateChange(State.ERROR);
 			return;
 		} catch (IllegalArgumentException ex) {
 			ex.printStackTrace();
-			mCurrentState = STATE_ERROR;
-			mTargetState = STATE_ERROR;
+			// the listener falls back to the other engine, or else goes to
+			// the error state itself
 			mErrorListener.onError(mMediaPlayer,
 					MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
-			stateChange(State.ERROR);
 			return;
 		}
 	}
@@ -954,25 +1659,25 @@ public class UniversalVideoView extends SurfaceView implements
 						createVitamioMediaPlayer();
 					} catch (IOException ex) {
 						ex.printStackTrace();
-						mCurrentState = STATE_ERROR;
-						mTargetState = STATE_ERROR;
+						// the listener falls back to the other engine, or else goes to
+						// the error state itself
 						mVitamioErrorListener.onError(mVitamioMediaPlayer,
 								MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
-						stateChange(State.ERROR);
 						return;
 					} catch (IllegalArgumentException ex) {
 						ex.printStackTrace();
-						mCurrentState = STATE_ERROR;
-						mTargetState = STATE_ERROR;
+						// the listener falls back to the other engine, or else goes to
+						// the error state itself
 						mVitamioErrorListener.onError(mVitamioMediaPlayer,
 								MediaPlayer.MEDIA_ERROR_UNKNOWN, 0);
-						stateChange(State.ERROR);
 						return;
 					}
 				} else {
 					// failed to initial Vitamio
 					Log.e(TAG, "vitamio init failed....change state to error");
-					stateChange(State.ERROR);
+					if (!fallBackEngine()) {
+						stateChange(State.ERROR);
+					}
 				}
 			}
 
@@ -1020,31 +1725,29 @@ public class UniversalVideoView extends SurfaceView implements
 	}
 
 	/*
-	 * release the media player in any state
+	 * release the media player in any state, the reset player is given back to
+	 * the MediaPlayerPool so the next openVideo() can reuse it.
 	 */
 	private void release(boolean cleartargetstate) {
+		Tracer.beginSection("UniversalVideoView.release");
+		removeCallbacks(mPositionSampler);
+		if (cleartargetstate) {
+			// the view is going away, stop preparing the next items
+			clearPreloads();
+		}
+		reset(cleartargetstate);
+
 		if (mMediaPlayer != null) {
-			mMediaPlayer.reset();
-			mMediaPlayer.release();
+			MediaPlayerPool.getInstance().recycle(mMediaPlayer);
 			mMediaPlayer = null;
-			mCurrentState = STATE_IDLE;
-			if (cleartargetstate) {
-				mTargetState = STATE_IDLE;
-			}
 		}
 
 		// vitamio
 		if (mVitamioMediaPlayer != null) {
-			mVitamioMediaPlayer.reset();
-			mVitamioMediaPlayer.release();
+			MediaPlayerPool.getInstance().recycle(mVitamioMediaPlayer);
 			mVitamioMediaPlayer = null;
-			mCurrentState = STATE_IDLE;
-			if (cleartargetstate) {
-				mTargetState = STATE_IDLE;
-			}
 		}
-
-		stateChange(State.IDLE);
+		Tracer.endSection("UniversalVideoView.release");
 	}
 
 	/**
@@ -1053,7 +1756,6 @@ public class UniversalVideoView extends SurfaceView implements
 	 * 
 	 * @param cleartargetstate
 	 */
-	@SuppressWarnings("unused")
 	private void reset(boolean cleartargetstate) {
 		if (mMediaPlayer != null) {
 			mMediaPlayer.reset();
@@ -1078,33 +1780,69 @@ public class UniversalVideoView extends SurfaceView implements
 	// vitamio
 	private void createVitamioMediaPlayer() throws IllegalArgumentException,
 			SecurityException, IllegalStateException, IOException {
-		mVitamioMediaPlayer = new io.vov.vitamio.MediaPlayer(mContext);
-		mVitamioMediaPlayer.setOnPreparedListener(mVitamioPreparedListener);
-		mVitamioMediaPlayer
-				.setOnVideoSizeChangedListener(mVitamioSizeChangedListener);
-		mVitamioMediaPlayer.setOnCompletionListener(mVitamioCompletionListener);
-		mVitamioMediaPlayer.setOnErrorListener(mVitamioErrorListener);
-		mVitamioMediaPlayer.setOnInfoListener(mVitamioInfoListener);
-		mVitamioMediaPlayer
-				.setOnBufferingUpdateListener(mVitamioBufferingUpdateListener);
-		mVitamioMediaPlayer
-				.setOnSeekCompleteListener(mVitamioSeekCompleteListener);
-		mVitamioMediaPlayer.setDataSource(mContext, mUri);
-		// let's surface view show the image
-		mVitamioMediaPlayer.setDisplay(mSurfaceHolder);
-		mVitamioMediaPlayer
-				.setVideoChroma(mVideoChroma == io.vov.vitamio.MediaPlayer.VIDEOCHROMA_RGB565 ? io.vov.vitamio.MediaPlayer.VIDEOCHROMA_RGB565
-						: io.vov.vitamio.MediaPlayer.VIDEOCHROMA_RGBA);
-		mVitamioMediaPlayer.setScreenOnWhilePlaying(true);
-		mVitamioMediaPlayer.prepareAsync();
+		Tracer.beginSection("createVitamioMediaPlayer");
+		try {
+			mVitamioMediaPlayer = MediaPlayerPool.getInstance()
+					.obtainVitamioPlayer(mContext,
+							mPreferHWDecoder && !mHWDecoderFailed);
+			attachListeners(mVitamioMediaPlayer);
+			Tracer.beginSection("setDataSource");
+			try {
+				// after a fall back, the segments the system player fetched
+				// through the proxy are read from the disk
+				mVitamioMediaPlayer.setDataSource(mContext,
+						mEngineFallback ? getSystemPlayerUri(mUri, isLive)
+								: mUri);
+			} finally {
+				Tracer.endSection("setDataSource");
+			}
+			// let's surface view show the image
+			mVitamioMediaPlayer.setDisplay(mSurfaceHolder);
+			mVitamioMediaPlayer.setVideoChroma(getVitamioChroma());
+			mVitamioMediaPlayer.setScreenOnWhilePlaying(true);
+			openBufferController(mVitamioMediaPlayer);
+			Tracer.beginAsyncSection("prepare",
+					System.identityHashCode(mVitamioMediaPlayer));
+			mVitamioMediaPlayer.prepareAsync();
+
+			mCurrentBufferPercentage = 0;
+			// we don't set the target state here either, but preserve
+			// the
+			// target state that was there before.
+			mCurrentState = STATE_PREPARING;
+			stateChange(State.PREPARING);
+			attachMediaController();
+		} finally {
+			Tracer.endSection("createVitamioMediaPlayer");
+		}
+	}
 
-		mCurrentBufferPercentage = 0;
-		// we don't set the target state here either, but preserve
-		// the
-		// target state that was there before.
-		mCurrentState = STATE_PREPARING;
-		stateChange(State.PREPARING);
-		attachMediaController();
+	private void attachListeners(MediaPlayer mp) {
+		mp.setOnPreparedListener(mPreparedListener);
+		mp.setOnVideoSizeChangedListener(mSizeChangedListener);
+		mp.setOnCompletionListener(mCompletionListener);
+		mp.setOnErrorListener(mErrorListener);
+		mp.setOnInfoListener(mInfoListener);
+		mp.setOnBufferingUpdateListener(mBufferingUpdateListener);
+		mp.setOnSeekCompleteListener(mSeekCompleteListener);
+	}
+
+	// vitamio
+	private void attachListeners(io.vov.vitamio.MediaPlayer mp) {
+		mp.setOnPreparedListener(mVitamioPreparedListener);
+		mp.setOnVideoSizeChangedListener(mVitamioSizeChangedListener);
+		mp.setOnCompletionListener(mVitamioCompletionListener);
+		mp.setOnErrorListener(mVitamioErrorListener);
+		mp.setOnInfoListener(mVitamioInfoListener);
+		mp.setOnBufferingUpdateListener(mVitamioBufferingUpdateListener);
+		mp.setOnSeekCompleteListener(mVitamioSeekCompleteListener);
+		mp.setOnHWRenderFailedListener(mHWRenderFailedListener);
+	}
+
+	// vitamio
+	private int getVitamioChroma() {
+		return mVideoChroma == io.vov.vitamio.MediaPlayer.VIDEOCHROMA_RGB565 ? io.vov.vitamio.MediaPlayer.VIDEOCHROMA_RGB565
+				: io.vov.vitamio.MediaPlayer.VIDEOCHROMA_RGBA;
 	}
 
 	@Override
@@ -1217,6 +1955,14 @@ public class UniversalVideoView extends SurfaceView implements
 	}
 
 	private void stateChange(State state) {
+		if (mPlaybackMetrics != null) {
+			updateFrameCounts();
+			mPlaybackMetrics.onStateChange(state);
+			if (state == State.PLAYBACK_COMPLETED
+					|| state == State.STOPPLAYBACK) {
+				mPlaybackMetrics.endSession();
+			}
+		}
 		if (mOnStateChangeListener != null) {
 			mOnStateChangeListener.stateChange(state);
 		}
@@ -1445,11 +2191,13 @@ public class UniversalVideoView extends SurfaceView implements
 		if (isUseVitamio) {
 			// vitamio
 			if (isInPlaybackState() && mVitamioMediaPlayer != null) {
-				return (int) mVitamioMediaPlayer.getCurrentPosition();
+				mLastPosition = (int) mVitamioMediaPlayer.getCurrentPosition();
+				return mLastPosition;
 			}
 		} else {
 			if (isInPlaybackState() && mMediaPlayer != null) {
-				return mMediaPlayer.getCurrentPosition();
+				mLastPosition = mMediaPlayer.getCurrentPosition();
+				return mLastPosition;
 			}
 		}
 		return 0;
@@ -1504,6 +2252,9 @@ public class UniversalVideoView extends SurfaceView implements
 	@Override
 	public void seekTo(int pos) {
 		if (isInPlaybackState()) {
+			if (mPlaybackMetrics != null) {
+				mPlaybackMetrics.onSeekTo();
+			}
 			if (isUseVitamio) {
 				// vitamio
 				if (mVitamioMediaPlayer != null) {
@@ -1595,4 +2346,163 @@ public class UniversalVideoView extends SurfaceView implements
 		public void stateChange(State state);
 	}
 
+	/**
+	 * Called when the hardware decoder of Vitamio failed and the video has been
+	 * resumed by the software decoder.
+	 */
+	public interface OnDecoderFallbackListener {
+
+		/**
+		 * @param model
+		 *            the device model, {@link Build#MODEL}
+		 * @param position
+		 *            where the video was resumed in milliseconds
+		 * @param swapTime
+		 *            the milliseconds from the failure to the video resumed
+		 */
+		public void onDecoderFallback(String model, int position, long swapTime);
+	}
+
+	/**
+	 * An item of the playlist, see {@link UniversalVideoView#setPlaylist(List)}
+	 */
+	public static class PlaylistItem {
+		public final Uri uri;
+		public final boolean isUseVitamio;
+		public final boolean isLive;
+
+		public PlaylistItem(Uri uri) {
+			this(uri, false, false);
+		}
+
+		public PlaylistItem(Uri uri, boolean isUseVitamio) {
+			this(uri, isUseVitamio, false);
+		}
+
+		public PlaylistItem(Uri uri, boolean isUseVitamio, boolean isLive) {
+			this.uri = uri;
+			this.isUseVitamio = isUseVitamio;
+			this.isLive = isLive;
+		}
+	}
+
+	/**
+	 * A player which is preparing a playlist item in background, it has no
+	 * display until it is switched to.
+	 */
+	private class Preload {
+		final int index;
+		MediaPlayer player;
+		// vitamio
+		io.vov.vitamio.MediaPlayer vitamioPlayer;
+		boolean prepared;
+		boolean failed;
+		// the prepareAsync() is traced
+		boolean preparing;
+
+		Preload(int index) {
+			this.index = index;
+		}
+
+		boolean start(PlaylistItem item) {
+			try {
+				if (item.isUseVitamio) {
+					if (!Vitamio.isInitialized(mContext)) {
+						// initialize vitamio when switch to this item
+						return false;
+					}
+					// the same decoder as createVitamioMediaPlayer() picks
+					vitamioPlayer = MediaPlayerPool.getInstance()
+							.obtainVitamioPlayer(mContext,
+									mPreferHWDecoder && !mHWDecoderFailed);
+					vitamioPlayer
+							.setOnPreparedListener(new io.vov.vitamio.MediaPlayer.OnPreparedListener() {
+								@Override
+								public void onPrepared(
+										io.vov.vitamio.MediaPlayer mp) {
+									prepared = true;
+									Tracer.endAsyncSection("prepare",
+											System.identityHashCode(mp));
+								}
+							});
+					vitamioPlayer
+							.setOnErrorListener(new io.vov.vitamio.MediaPlayer.OnErrorListener() {
+								@Override
+								public boolean onError(
+										io.vov.vitamio.MediaPlayer mp,
+										int what, int extra) {
+									failed = true;
+									return true;
+								}
+							});
+					vitamioPlayer.setDataSource(mContext, item.uri);
+					vitamioPlayer.setVideoChroma(getVitamioChroma());
+					if (mBufferController != null) {
+						// prepared with the size the controller would open
+						// it with
+						mBufferController.applyTo(bufferTarget(vitamioPlayer));
+					}
+					Tracer.beginAsyncSection("prepare",
+							System.identityHashCode(vitamioPlayer));
+					preparing = true;
+					vitamioPlayer.prepareAsync();
+				} else {
+					player = MediaPlayerPool.getInstance().obtainSystemPlayer();
+					player.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+						@Override
+						public void onPrepared(MediaPlayer mp) {
+							prepared = true;
+							Tracer.endAsyncSection("prepare",
+									System.identityHashCode(mp));
+						}
+					});
+					player.setOnErrorListener(new MediaPlayer.OnErrorListener() {
+						@Override
+						public boolean onError(MediaPlayer mp, int what,
+								int extra) {
+							failed = true;
+							return true;
+						}
+					});
+					player.setDataSource(mContext,
+							getSystemPlayerUri(item.uri, item.isLive));
+					player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+					Tracer.beginAsyncSection("prepare",
+							System.identityHashCode(player));
+					preparing = true;
+					player.prepareAsync();
+				}
+				Log.d(TAG, "start to prepare playlist item:" + index);
+				return true;
+			} catch (IOException ex) {
+				Log.e(TAG, "prepare playlist item failed:" + index, ex);
+			} catch (IllegalArgumentException ex) {
+				Log.e(TAG, "prepare playlist item failed:" + index, ex);
+			} catch (IllegalStateException ex) {
+				Log.e(TAG, "prepare playlist item failed:" + index, ex);
+			}
+			recycle();
+			return false;
+		}
+
+		void recycle() {
+			if (preparing && !prepared) {
+				// not switched to, the prepare traced is cancelled
+				Tracer.endAsyncSection("prepare", System
+						.identityHashCode(player != null ? player
+								: vitamioPlayer));
+			}
+			if (player != null) {
+				player.reset();
+				MediaPlayerPool.getInstance().recycle(player);
+				player = null;
+			}
+			if (vitamioPlayer != null) {
+				vitamioPlayer.reset();
+				MediaPlayerPool.getInstance().recycle(vitamioPlayer);
+				vitamioPlayer = null;
+			}
+		}
+	}
+
 }
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2013 Charon Chui <charon.chui@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.charon.video.cache;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Plays the player against {@link HttpCacheProxy} with a stand-in origin
+ * server on the loopback.
+ *
+ * @author Charon Chui
+ *
+ */
+public class HttpCacheProxyTest extends TestCase {
+	private static final int SEGMENT_SIZE = 4096;
+	private static final int LENGTH = 5 * SEGMENT_SIZE + 123;
+
+	private byte[] mData;
+	private Origin mOrigin;
+	private File mDir;
+	private HttpCacheProxy mProxy;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mData = new byte[LENGTH];
+		new Random(42).nextBytes(mData);
+		mDir = new File(System.getProperty("java.io.tmpdir"),
+				"HttpCacheProxyTest" + System.nanoTime());
+		mProxy = new HttpCacheProxy(new HttpCache(mDir, 1024 * 1024,
+				SEGMENT_SIZE));
+		mProxy.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mProxy.stop();
+		if (mOrigin != null) {
+			mOrigin.close();
+		}
+		mProxy.getCache().clear();
+		delete(mDir);
+		super.tearDown();
+	}
+
+	public void testRangeRequest() throws IOException {
+		mOrigin = new Origin(mData, true);
+		String url = mProxy.getProxyUrl(mOrigin.getUrl());
+
+		HttpURLConnection conn = open(url, "bytes=1000-" + (3 * SEGMENT_SIZE + 7));
+		assertEquals(HttpURLConnection.HTTP_PARTIAL, conn.getResponseCode());
+		assertEquals("bytes 1000-" + (3 * SEGMENT_SIZE + 7) + "/" + LENGTH,
+				conn.getHeaderField("Content-Range"));
+		assertTrue(Arrays.equals(
+				Arrays.copyOfRange(mData, 1000, 3 * SEGMENT_SIZE + 8),
+				read(conn)));
+
+		// an open range from the middle of the last segment
+		conn = open(url, "bytes=" + (LENGTH - 50) + "-");
+		assertEquals(HttpURLConnection.HTTP_PARTIAL, conn.getResponseCode());
+		assertTrue(Arrays.equals(
+				Arrays.copyOfRange(mData, LENGTH - 50, LENGTH), read(conn)));
+
+		conn = open(url, "bytes=" + LENGTH + "-");
+		assertEquals(416, conn.getResponseCode());
+		conn.disconnect();
+	}
+
+	public void testFullCacheHit() throws IOException {
+		mOrigin = new Origin(mData, true);
+		String url = mProxy.getProxyUrl(mOrigin.getUrl());
+
+		HttpURLConnection conn = open(url, null);
+		assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+		assertTrue(Arrays.equals(mData, read(conn)));
+		int requests = mOrigin.getRequestCount();
+		long cacheBytes = mProxy.getCacheBytes();
+
+		conn = open(url, null);
+		assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+		assertTrue(Arrays.equals(mData, read(conn)));
+		assertEquals(requests, mOrigin.getRequestCount());
+		assertEquals(cacheBytes + LENGTH, mProxy.getCacheBytes());
+	}
+
+	public void testPassThrough() throws IOException {
+		mOrigin = new Origin(mData, false);
+		String url = mProxy.getProxyUrl(mOrigin.getUrl());
+
+		HttpURLConnection conn = open(url, null);
+		assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+		assertTrue(Arrays.equals(mData, read(conn)));
+		assertEquals(0, mProxy.getCache().getSize());
+	}
+
+	public void testOnlyIssuedUrlsServed() throws IOException {
+		mOrigin = new Origin(mData, true);
+		String url = mProxy.getProxyUrl(mOrigin.getUrl());
+		assertEquals(url, mProxy.getProxyUrl(mOrigin.getUrl()));
+		assertEquals(-1, url.indexOf("origin"));
+
+		String forged = url.substring(0, url.lastIndexOf('/') + 1)
+				+ "http%3A%2F%2F127.0.0.1%3A" + mOrigin.getPort()
+				+ "%2Forigin";
+		HttpURLConnection conn = open(forged, null);
+		assertEquals(HttpURLConnection.HTTP_NOT_FOUND, conn.getResponseCode());
+		conn.disconnect();
+		assertEquals(0, mOrigin.getRequestCount());
+
+		assertEquals("file:///sdcard/a.mp4",
+				mProxy.getProxyUrl("file:///sdcard/a.mp4"));
+		assertEquals("ftp://example.com/a.mp4",
+				mProxy.getProxyUrl("ftp://example.com/a.mp4"));
+	}
+
+	private static HttpURLConnection open(String url, String range)
+			throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL(url)
+				.openConnection();
+		conn.setRequestProperty("Accept-Encoding", "identity");
+		if (range != null) {
+			conn.setRequestProperty("Range", range);
+		}
+		return conn;
+	}
+
+	private static byte[] read(HttpURLConnection conn) throws IOException {
+		try {
+			InputStream in = conn.getInputStream();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		} finally {
+			conn.disconnect();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * Serves one resource at "/origin", with or without range requests.
+	 */
+	private static class Origin implements Runnable {
+		private final byte[] mData;
+		private final boolean mRanges;
+		private final ServerSocket mServer;
+		private final AtomicInteger mRequests = new AtomicInteger();
+
+		Origin(byte[] data, boolean ranges) throws IOException {
+			mData = data;
+			mRanges = ranges;
+			mServer = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+			Thread thread = new Thread(this, "Origin");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		int getPort() {
+			return mServer.getLocalPort();
+		}
+
+		String getUrl() {
+			return "http://127.0.0.1:" + getPort() + "/origin";
+		}
+
+		int getRequestCount() {
+			return mRequests.get();
+		}
+
+		void close() throws IOException {
+			mServer.close();
+		}
+
+		@Override
+		public void run() {
+			while (!mServer.isClosed()) {
+				Socket socket;
+				try {
+					socket = mServer.accept();
+				} catch (IOException e) {
+					return;
+				}
+				try {
+					serve(socket);
+				} catch (IOException e) {
+					// the proxy closed the connection
+				} finally {
+					try {
+						socket.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}
+
+		private void serve(Socket socket) throws IOException {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			String requestLine = readLine(in);
+			String range = null;
+			String line;
+			while ((line = readLine(in)) != null && line.length() > 0) {
+				if (line.toLowerCase().startsWith("range:")) {
+					range = line.substring(6).trim();
+				}
+			}
+			mRequests.incrementAndGet();
+			OutputStream out = socket.getOutputStream();
+			long[] r = HttpCacheProxy.parseRange(range);
+			if (requestLine == null || !requestLine.startsWith("GET /origin ")) {
+				out.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"
+						.getBytes("US-ASCII"));
+			} else if (!mRanges || r == null) {
+				out.write(("HTTP/1.1 200 OK\r\nContent-Type: video/mp4\r\nContent-Length: "
+						+ mData.length + "\r\nConnection: close\r\n\r\n")
+						.getBytes("US-ASCII"));
+				out.write(mData);
+			} else {
+				int start = (int) r[0];
+				int end = r[1] < 0 ? mData.length - 1 : (int) Math.min(r[1],
+						mData.length - 1);
+				out.write(("HTTP/1.1 206 Partial Content\r\nContent-Type: video/mp4\r\nContent-Length: "
+						+ (end - start + 1) + "\r\nContent-Range: bytes "
+						+ start + "-" + end + "/" + mData.length
+						+ "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+				out.write(mData, start, end - start + 1);
+			}
+			out.flush();
+		}
+
+		private static String readLine(InputStream in) throws IOException {
+			StringBuilder line = new StringBuilder();
+			int c;
+			while ((c = in.read()) != -1 && c != '\n') {
+				if (c != '\r') {
+					line.append((char) c);
+				}
+			}
+			return c == -1 && line.length() == 0 ? null : line.toString();
+		}
+	}
+}
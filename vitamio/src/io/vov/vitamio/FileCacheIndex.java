@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The videos known by the provider before a scan, kept in primitive arrays
+ * instead of one object, one path and one key per video.
+ * <p/>
+ * The directories are interned, the file names are packed into one char
+ * array, and the entries are found through an open addressing table of the
+ * path hashes, so a lookup doesn't allocate. The entries are only added by
+ * {@link MediaScanner} before the scan, after that the structure doesn't
+ * change and each entry is only updated by the thread scanning its file.
+ */
+class FileCacheIndex {
+  private static final int SEEN = 0x1;
+  private static final int REMOVED = 0x2;
+
+  private final boolean mCaseInsensitive;
+  private final HashMap<String, Integer> mDirIds = new HashMap<String, Integer>();
+  private final ArrayList<String> mDirs = new ArrayList<String>();
+  private char[] mNames;
+  private int mNamesLength;
+  private int[] mDir;
+  private int[] mNameStart;
+  private int[] mHash;
+  private long[] mRowId;
+  private long[] mLastModified;
+  private byte[] mFlags;
+  private int mSize;
+  /**
+   * index + 1 of the entries, 0 for an empty slot.
+   */
+  private int[] mTable;
+
+  FileCacheIndex(int capacity, boolean caseInsensitive) {
+    mCaseInsensitive = caseInsensitive;
+    capacity = Math.max(16, capacity);
+    mNames = new char[capacity * 16];
+    mDir = new int[capacity];
+    mNameStart = new int[capacity + 1];
+    mHash = new int[capacity];
+    mRowId = new long[capacity];
+    mLastModified = new long[capacity];
+    mFlags = new byte[capacity];
+    mTable = new int[tableSize(capacity)];
+  }
+
+  private static int tableSize(int capacity) {
+    int size = 1;
+    while (size < capacity * 2)
+      size <<= 1;
+    return size;
+  }
+
+  int size() {
+    return mSize;
+  }
+
+  void add(String path, long rowId, long lastModified) {
+    if (find(path) >= 0)
+      return;
+    if (mSize == mDir.length)
+      grow();
+
+    int slash = path.lastIndexOf('/');
+    String dir = path.substring(0, slash + 1);
+    Integer dirId = mDirIds.get(dir);
+    if (dirId == null) {
+      dirId = mDirs.size();
+      mDirIds.put(dir, dirId);
+      mDirs.add(dir);
+    }
+
+    int nameLength = path.length() - slash - 1;
+    if (mNamesLength + nameLength > mNames.length) {
+      char[] names = new char[Math.max(mNames.length * 2, mNamesLength + nameLength)];
+      System.arraycopy(mNames, 0, names, 0, mNamesLength);
+      mNames = names;
+    }
+    path.getChars(slash + 1, path.length(), mNames, mNamesLength);
+    mNameStart[mSize] = mNamesLength;
+    mNamesLength += nameLength;
+    mNameStart[mSize + 1] = mNamesLength;
+
+    mDir[mSize] = dirId;
+    mHash[mSize] = hash(path);
+    mRowId[mSize] = rowId;
+    mLastModified[mSize] = lastModified;
+    mFlags[mSize] = 0;
+    insert(mSize);
+    mSize++;
+  }
+
+  /**
+   * @param path the path as found, the case is folded here if case insensitive
+   * @return the index of the entry, or -1 if not found
+   */
+  int find(String path) {
+    int hash = hash(path);
+    int mask = mTable.length - 1;
+    for (int slot = hash & mask; mTable[slot] != 0; slot = (slot + 1) & mask) {
+      int index = mTable[slot] - 1;
+      if (mHash[index] == hash && matches(index, path))
+        return index;
+    }
+    return -1;
+  }
+
+  String getPath(int index) {
+    int start = mNameStart[index];
+    return mDirs.get(mDir[index]) + new String(mNames, start, mNameStart[index + 1] - start);
+  }
+
+  long getRowId(int index) {
+    return mRowId[index];
+  }
+
+  long getLastModified(int index) {
+    return mLastModified[index];
+  }
+
+  void setLastModified(int index, long lastModified) {
+    mLastModified[index] = lastModified;
+  }
+
+  boolean isSeen(int index) {
+    return (mFlags[index] & SEEN) != 0;
+  }
+
+  void setSeen(int index) {
+    mFlags[index] |= SEEN;
+  }
+
+  boolean isRemoved(int index) {
+    return (mFlags[index] & REMOVED) != 0;
+  }
+
+  /**
+   * Forget the entry, it will not be deleted by the postscan.
+   */
+  void remove(int index) {
+    mFlags[index] |= REMOVED;
+  }
+
+  /**
+   * @return the approximate bytes held by this index
+   */
+  long getMemoryUsage() {
+    long bytes = mNames.length * 2L + mTable.length * 4L;
+    bytes += mDir.length * (4L + 4 + 4 + 8 + 8 + 1);
+    for (String dir : mDirs)
+      bytes += 2 * (40 + dir.length() * 2);
+    return bytes;
+  }
+
+  private boolean matches(int index, String path) {
+    String dir = mDirs.get(mDir[index]);
+    int start = mNameStart[index];
+    int nameLength = mNameStart[index + 1] - start;
+    if (path.length() != dir.length() + nameLength || !path.regionMatches(mCaseInsensitive, 0, dir, 0, dir.length()))
+      return false;
+    for (int i = 0, offset = dir.length(); i < nameLength; i++)
+      if (normalize(mNames[start + i]) != normalize(path.charAt(offset + i)))
+        return false;
+    return true;
+  }
+
+  private char normalize(char c) {
+    return mCaseInsensitive ? Character.toLowerCase(c) : c;
+  }
+
+  private int hash(String path) {
+    int hash = 0;
+    for (int i = 0, length = path.length(); i < length; i++)
+      hash = 31 * hash + normalize(path.charAt(i));
+    // spread the low bits, the table size is a power of two
+    return hash ^ (hash >>> 16);
+  }
+
+  private void insert(int index) {
+    int mask = mTable.length - 1;
+    int slot = mHash[index] & mask;
+    while (mTable[slot] != 0)
+      slot = (slot + 1) & mask;
+    mTable[slot] = index + 1;
+  }
+
+  private void grow() {
+    int capacity = mDir.length * 2;
+    mDir = copyOf(mDir, capacity);
+    mNameStart = copyOf(mNameStart, capacity + 1);
+    mHash = copyOf(mHash, capacity);
+    long[] rowId = new long[capacity];
+    System.arraycopy(mRowId, 0, rowId, 0, mSize);
+    mRowId = rowId;
+    long[] lastModified = new long[capacity];
+    System.arraycopy(mLastModified, 0, lastModified, 0, mSize);
+    mLastModified = lastModified;
+    byte[] flags = new byte[capacity];
+    System.arraycopy(mFlags, 0, flags, 0, mSize);
+    mFlags = flags;
+    mTable = new int[tableSize(capacity)];
+    for (int i = 0; i < mSize; i++)
+      insert(i);
+  }
+
+  private static int[] copyOf(int[] array, int length) {
+    int[] copy = new int[length];
+    System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+    return copy;
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Process;
+import android.view.Surface;
+
+import io.vov.vitamio.utils.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Posts the software decoded frames to the surface on its own thread.
+ * <p/>
+ * The frames are exchanged through three bitmaps without any lock: the decode
+ * thread fills the back bitmap and swaps it with the ready one, the render
+ * thread swaps the ready bitmap with the front one and draws it. The decode
+ * thread never waits for the surface, and if it is faster than the display
+ * the newest frame replaces the one not drawn yet.
+ */
+class FrameRenderer implements Runnable {
+  private static final int INDEX_MASK = 0x3;
+  private static final int FRESH = 0x4;
+  /**
+   * The max milliseconds {@link #release()} waits for a frame being posted.
+   */
+  private static final long RELEASE_TIMEOUT = 500;
+
+  private final Surface mSurface;
+  private final Bitmap[] mBitmaps = new Bitmap[3];
+  /**
+   * The index of the ready bitmap, with {@link #FRESH} set if it has not been
+   * drawn.
+   */
+  private final AtomicInteger mReady = new AtomicInteger(0);
+  private int mBack = 1;
+  private int mFront = 2;
+  private final Thread mThread;
+  private volatile boolean mRunning = true;
+  private volatile long mFramesRendered;
+  private volatile long mFramesDropped;
+  private volatile long mFramesOverwritten;
+
+  FrameRenderer(Surface surface, int width, int height) {
+    mSurface = surface;
+    for (int i = 0; i < mBitmaps.length; i++)
+      mBitmaps[i] = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+    mThread = new Thread(this, "VitamioFrameRenderer");
+    mThread.start();
+  }
+
+  /**
+   * Called on the decode thread after a frame is written to the buffer.
+   */
+  void post(ByteBuffer frame) {
+    frame.rewind();
+    mBitmaps[mBack].copyPixelsFromBuffer(frame);
+    int old = mReady.getAndSet(mBack | FRESH);
+    if ((old & FRESH) != 0)
+      mFramesOverwritten++;
+    mBack = old & INDEX_MASK;
+    LockSupport.unpark(mThread);
+  }
+
+  /**
+   * Stop the render thread and wait for the frame it may be posting, so the
+   * surface can be released and the counts are final when this returns.
+   */
+  void release() {
+    mRunning = false;
+    LockSupport.unpark(mThread);
+    boolean interrupted = false;
+    long deadline = System.currentTimeMillis() + RELEASE_TIMEOUT;
+    long wait = RELEASE_TIMEOUT;
+    while (mThread.isAlive() && wait > 0) {
+      try {
+        mThread.join(wait);
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+      wait = deadline - System.currentTimeMillis();
+    }
+    if (mThread.isAlive())
+      Log.e("FrameRenderer: not stopped in %dms", RELEASE_TIMEOUT);
+    if (interrupted)
+      Thread.currentThread().interrupt();
+  }
+
+  long getFramesRendered() {
+    return mFramesRendered;
+  }
+
+  long getFramesDropped() {
+    return mFramesDropped;
+  }
+
+  long getFramesOverwritten() {
+    return mFramesOverwritten;
+  }
+
+  @Override
+  public void run() {
+    Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+    while (mRunning) {
+      if ((mReady.get() & FRESH) == 0) {
+        LockSupport.park(this);
+        continue;
+      }
+      mFront = mReady.getAndSet(mFront) & INDEX_MASK;
+      if (!mSurface.isValid()) {
+        mFramesDropped++;
+        continue;
+      }
+      try {
+        Canvas c = mSurface.lockCanvas(null);
+        // the surface was destroyed since checked
+        if (c == null) {
+          mFramesDropped++;
+          continue;
+        }
+        c.drawBitmap(mBitmaps[mFront], 0, 0, null);
+        mSurface.unlockCanvasAndPost(c);
+        mFramesRendered++;
+      } catch (Exception e) {
+        mFramesDropped++;
+        Log.e("FrameRenderer", e);
+      }
+    }
+  }
+}
@@ -167,6 +167,14 @@ public class MediaFile {
 		return sFileTypeMap.get(path.substring(lastDot + 1).toUpperCase());
 	}
 
+	/**
+	 * @return the mime type of the path by its extension, null if unknown
+	 */
+	public static String getMimeTypeForFile(String path) {
+		MediaFileType mediaFileType = getFileType(path);
+		return (mediaFileType == null ? null : mediaFileType.mimeType);
+	}
+
 	public static int getFileTypeForMimeType(String mimeType) {
 		Integer value = sMimeTypeMap.get(mimeType);
 		return (value == null ? 0 : value.intValue());
@@ -28,17 +28,18 @@ import android.media.AudioManager;
 import android.media.AudioTrack;
 import android.net.Uri;
 import android.os.Build;
-import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.SparseArray;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 
 import io.vov.vitamio.utils.FileUtils;
 import io.vov.vitamio.utils.Log;
+import io.vov.vitamio.utils.Tracer;
 
 import java.io.File;
 import java.io.FileDescriptor;
@@ -48,8 +49,12 @@ import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * MediaPlayer class can be used to control playback of audio/video files and
@@ -101,6 +106,28 @@ public class MediaPlayer {
 
   public static final int VIDEOCHROMA_RGB565 = 0;
   public static final int VIDEOCHROMA_RGBA = 1;
+  /**
+   * Software render: lock the whole surface for every frame, this is the
+   * default.
+   * <p/>
+   * Each frame is still copied twice, from the buffer written by the decoder
+   * to a bitmap and from the bitmap to the locked surface. The decoder keeps
+   * the address of its buffer and a locked surface gives Java no access to its
+   * memory, so neither copy can be removed without changing the native player.
+   * The software render only counts the frames, see
+   * {@link #getFramesRendered()} and {@link #getFramesDropped()}.
+   *
+   * @see #setRenderMode(int)
+   */
+  public static final int RENDER_MODE_FULL = 0;
+  /**
+   * Software render: post the frames to the surface on a dedicated thread,
+   * the decoder hands the frames over without waiting for the surface and
+   * only the newest frame is drawn.
+   *
+   * @see #setRenderMode(int)
+   */
+  public static final int RENDER_MODE_THREADED = 1;
   /**
    * The subtitle displayed is embeded in the movie
    */
@@ -125,12 +152,13 @@ public class MediaPlayer {
   private static final int MEDIA_HW_ERROR = 400;
   private static final int MEDIA_TIMED_TEXT = 1000;
   private static final int MEDIA_CACHING_UPDATE = 2000;
-  private static final String MEDIA_CACHING_SEGMENTS = "caching_segment";
-  private static final String MEDIA_CACHING_TYPE = "caching_type";
-  private static final String MEDIA_CACHING_INFO = "caching_info";
-  private static final String MEDIA_SUBTITLE_STRING = "sub_string";
-  private static final String MEDIA_SUBTITLE_BYTES = "sub_bytes";
-  private static final String MEDIA_SUBTITLE_TYPE = "sub_type";
+  private static final int MEDIA_COALESCED_UPDATE = 3000;
+  /**
+   * The high frequency events are delivered at most once in this interval, in
+   * milliseconds, about a display frame.
+   */
+  private static final long COALESCE_INTERVAL = 16;
+  private static final int NO_VALUE = -1;
   private static final int SUBTITLE_TEXT = 0;
   private static final int SUBTITLE_BITMAP = 1;
   private static AtomicBoolean NATIVE_OMX_LOADED = new AtomicBoolean(false);
@@ -142,6 +170,12 @@ public class MediaPlayer {
   private boolean mScreenOnWhilePlaying;
   private boolean mStayAwake;
   private Metadata mMeta;
+  // parsed once per prepare, see getTrackInfo(String); guarded by
+  // mTrackInfoLock, not this which the software render holds
+  private final Object mTrackInfoLock = new Object();
+  private TrackInfo[] mTrackInfo;
+  private String mTrackInfoEncoding;
+  private String mTrackInfoTimedTextPath;
   private AssetFileDescriptor mFD = null;
   private OnHWRenderFailedListener mOnHWRenderFailedListener;
   private OnPreparedListener mOnPreparedListener;
@@ -159,11 +193,36 @@ public class MediaPlayer {
    */
   private OnInfoListener mOnInfoListener;
   private OnTimedTextListener mOnTimedTextListener;
+  // the latest values of the high frequency events not delivered yet
+  private final AtomicBoolean mCoalescedPending = new AtomicBoolean(false);
+  private final AtomicInteger mPendingBufferingPercent = new AtomicInteger(NO_VALUE);
+  private final AtomicInteger mPendingDownloadRate = new AtomicInteger(NO_VALUE);
+  private final AtomicInteger mPendingCachingSpeed = new AtomicInteger(NO_VALUE);
+  private final AtomicReference<long[]> mPendingCachingSegments = new AtomicReference<long[]>();
+  private final AtomicLong mEventMessageCount = new AtomicLong();
+  private final AtomicLong mCoalescedEventCount = new AtomicLong();
+  // written by the event handler, read by the native threads
+  private volatile long mLastCoalescedDispatch;
   private AudioTrack mAudioTrack;
   private int mAudioTrackBufferSize;
+  private int mAudioBufferMultiplier = 1;
+  private boolean mAudioTrackStarted;
+  private int mAudioFrameSize;
+  private int mAudioSampleRate;
+  private long mAudioFramesWritten;
+  private volatile int mAudioUnderrunCount;
   private Surface mLocalSurface;
   private Bitmap mBitmap;
   private ByteBuffer mByteBuffer;
+  private int mFrameWidth;
+  private int mFrameHeight;
+  private volatile int mRenderMode = RENDER_MODE_FULL;
+  // added to by the decode thread and by the thread releasing the renderer
+  private final AtomicLong mFramesRendered = new AtomicLong();
+  private final AtomicLong mFramesDropped = new AtomicLong();
+  private final AtomicLong mFramesOverwritten = new AtomicLong();
+  private volatile FrameRenderer mFrameRenderer;
+  private boolean mFirstFrameTraced;
 
   /**
    * Default constructor. The same as Android's MediaPlayer().
@@ -249,11 +308,58 @@ public class MediaPlayer {
       return;
 
     if (mp.mEventHandler != null) {
+      if (what == MEDIA_BUFFERING_UPDATE) {
+        mp.mPendingBufferingPercent.set(arg1);
+        mp.scheduleCoalescedUpdate();
+        return;
+      } else if (what == MEDIA_INFO && arg1 == MEDIA_INFO_DOWNLOAD_RATE_CHANGED) {
+        mp.mPendingDownloadRate.set(arg2);
+        mp.scheduleCoalescedUpdate();
+        return;
+      }
+      mp.mEventMessageCount.incrementAndGet();
       Message m = mp.mEventHandler.obtainMessage(what, arg1, arg2, obj);
       mp.mEventHandler.sendMessage(m);
     }
   }
 
+  /**
+   * Only one message is queued for all the high frequency events, the values
+   * arriving before it is handled replace the older ones.
+   */
+  private void scheduleCoalescedUpdate() {
+    if (mCoalescedPending.compareAndSet(false, true)) {
+      mEventMessageCount.incrementAndGet();
+      long when = Math.max(SystemClock.uptimeMillis(), mLastCoalescedDispatch + COALESCE_INTERVAL);
+      mEventHandler.sendEmptyMessageAtTime(MEDIA_COALESCED_UPDATE, when);
+    } else {
+      mCoalescedEventCount.incrementAndGet();
+    }
+  }
+
+  private void clearCoalescedUpdate() {
+    mCoalescedPending.set(false);
+    mPendingBufferingPercent.set(NO_VALUE);
+    mPendingDownloadRate.set(NO_VALUE);
+    mPendingCachingSpeed.set(NO_VALUE);
+    mPendingCachingSegments.set(null);
+  }
+
+  /**
+   * @return the count of messages queued for the events from the native player
+   */
+  public long getEventMessageCount() {
+    return mEventMessageCount.get();
+  }
+
+  /**
+   * @return the count of buffering, download rate and caching events merged
+   *         into an already queued message, so no message was allocated
+   */
+  public long getCoalescedEventCount() {
+    return mCoalescedEventCount.get();
+  }
+
   private static native boolean loadVAO_native(String vaoPath);
 
   private static native boolean loadVVO_native(String vvoPath);
@@ -676,6 +782,7 @@ public class MediaPlayer {
    * MediaPlayer.
    */
   public void release() {
+    Tracer.beginSection("MediaPlayer.release");
     stayAwake(false);
     updateSurfaceScreenOn();
     mOnPreparedListener = null;
@@ -689,6 +796,7 @@ public class MediaPlayer {
     mOnHWRenderFailedListener = null;
     _release();
     closeFD();
+    Tracer.endSection("MediaPlayer.release");
   }
 
   private native void _release();
@@ -697,11 +805,18 @@ public class MediaPlayer {
    * Resets the MediaPlayer to its uninitialized state. After calling this
    * method, you will have to initialize it again by setting the data source and
    * calling prepare().
+   * <p/>
+   * The metadata and track info of the last source are dropped too, so a reset
+   * player can be reused for another source.
    */
   public void reset() {
     stayAwake(false);
     _reset();
     mEventHandler.removeCallbacksAndMessages(null);
+    clearCoalescedUpdate();
+    // a reused player must not return the metadata of the last source
+    mMeta = null;
+    invalidateTrackInfo();
     closeFD();
   }
 
@@ -737,24 +852,60 @@ public class MediaPlayer {
 
   /**
    * Returns an array of track information.
+   * <p>
+   * The tracks are parsed once after prepared and cached until a track is
+   * selected, an external timed text source is added or the player is reset,
+   * every call returns a copy which may be modified.
    *
+   * @param encoding the charset of the track names, null for the default one
    * @return Array of track info. The total number of tracks is the array
    *         length. Must be called again if an external timed text source has
    *         been added after any of the addTimedTextSource methods are called.
    */
   public TrackInfo[] getTrackInfo(String encoding) {
-    SparseArray<byte[]> trackSparse = new SparseArray<byte[]>();
-    if (!native_getTrackInfo(trackSparse)) {
-      return null;
+    if (encoding == null)
+      encoding = Charset.defaultCharset().name();
+    synchronized (mTrackInfoLock) {
+      // addTimedTextSource is native, a new source is seen from its path
+      String timedTextPath = getTimedTextPath();
+      if (mTrackInfo != null && encoding.equals(mTrackInfoEncoding) && equals(timedTextPath, mTrackInfoTimedTextPath))
+        return copyTrackInfo(mTrackInfo);
+
+      SparseArray<byte[]> trackSparse = new SparseArray<byte[]>();
+      if (!native_getTrackInfo(trackSparse)) {
+        return null;
+      }
+
+      int size = trackSparse.size();
+      TrackInfo[] trackInfos = new TrackInfo[size];
+      for (int i = 0; i < size; i++) {
+        TrackInfo trackInfo = new TrackInfo(trackSparse.keyAt(i), parseTrackInfo(trackSparse.valueAt(i), encoding));
+        trackInfos[i] = trackInfo;
+      }
+      mTrackInfo = trackInfos;
+      mTrackInfoEncoding = encoding;
+      mTrackInfoTimedTextPath = timedTextPath;
+      return copyTrackInfo(trackInfos);
     }
+  }
 
-    int size = trackSparse.size();
-    TrackInfo[] trackInfos = new TrackInfo[size];
-    for (int i = 0; i < size; i++) {
-      TrackInfo trackInfo = new TrackInfo(trackSparse.keyAt(i), parseTrackInfo(trackSparse.valueAt(i), encoding));
-      trackInfos[i] = trackInfo;
+  private static TrackInfo[] copyTrackInfo(TrackInfo[] trackInfos) {
+    TrackInfo[] copy = new TrackInfo[trackInfos.length];
+    for (int i = 0; i < trackInfos.length; i++)
+      copy[i] = trackInfos[i].copy();
+    return copy;
+  }
+
+  private void invalidateTrackInfo() {
+    synchronized (mTrackInfoLock) {
+      mTrackInfo = null;
+      mTrackInfoEncoding = null;
+      mTrackInfoTimedTextPath = null;
     }
-    return trackInfos;
+  }
+
+  private static boolean equals(String a, String b) {
+    return a == null ? b == null : a.equals(b);
   }
 
   /**
@@ -766,28 +917,85 @@ public class MediaPlayer {
     return getTrackInfo(Charset.defaultCharset().name());
   }
 
+  /**
+   * Parse the tracks of a type, which are separated by "!#!" and each starts
+   * with its track number, e.g. "1.English!#!2.Chinese". The bytes are split
+   * before decoding, so only the entries are turned into strings.
+   */
   private SparseArray<String> parseTrackInfo(byte[] tracks, String encoding) {
     SparseArray<String> trackSparse = new SparseArray<String>();
-    String trackString;
-    int trackNum;
-    try {
-      trackString = new String(tracks, encoding);
-    } catch (Exception e) {
-      Log.e("getTrackMap exception");
-      trackString = new String(tracks);
+    if (!isAsciiCompatible(encoding)) {
+      parseTrackInfoString(trackSparse, decode(tracks, 0, tracks.length, encoding));
+      return trackSparse;
+    }
+
+    int start = 0;
+    int length = tracks.length;
+    while (start <= length) {
+      int end = start;
+      while (end < length && !(tracks[end] == '!' && end + 2 < length && tracks[end + 1] == '#' && tracks[end + 2] == '!'))
+        end++;
+      int trackNum = parseTrackNum(tracks, start, end);
+      if (trackNum != Integer.MIN_VALUE)
+        trackSparse.put(trackNum, decode(tracks, start, end - start, encoding));
+      start = end + 3;
     }
-    for (String s : trackString.split("!#!")) {
+    return trackSparse;
+  }
+
+  /**
+   * @return the number before the first '.' of [start, end), or
+   * {@link Integer#MIN_VALUE} if it's not a number
+   */
+  private static int parseTrackNum(byte[] bytes, int start, int end) {
+    int i = start;
+    boolean negative = false;
+    if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+      negative = bytes[i] == '-';
+      i++;
+    }
+    int digits = i;
+    long num = 0;
+    while (i < end && bytes[i] >= '0' && bytes[i] <= '9') {
+      num = num * 10 + (bytes[i] - '0');
+      if (num > Integer.MAX_VALUE + 1L)
+        return Integer.MIN_VALUE;
+      i++;
+    }
+    if (i == digits || (i < end && bytes[i] != '.'))
+      return Integer.MIN_VALUE;
+    num = negative ? -num : num;
+    return num < Integer.MIN_VALUE + 1L || num > Integer.MAX_VALUE ? Integer.MIN_VALUE : (int) num;
+  }
+
+  private static void parseTrackInfoString(SparseArray<String> trackSparse, String trackString) {
+    int start = 0;
+    while (start <= trackString.length()) {
+      int end = trackString.indexOf("!#!", start);
+      if (end < 0)
+        end = trackString.length();
+      String s = trackString.substring(start, end);
+      int dot = s.indexOf('.');
       try {
-        if (s.contains("."))
-          trackNum = Integer.parseInt(s.split("\\.")[0]);
-        else
-          trackNum = Integer.parseInt(s);
-        trackSparse.put(trackNum, s);
+        trackSparse.put(Integer.parseInt(dot < 0 ? s : s.substring(0, dot)), s);
       } catch (NumberFormatException e) {
       }
+      start = end + 3;
     }
+  }
 
-    return trackSparse;
+  private static boolean isAsciiCompatible(String encoding) {
+    String upper = encoding.toUpperCase(Locale.US);
+    return !upper.startsWith("UTF-16") && !upper.startsWith("UTF-32");
+  }
+
+  private static String decode(byte[] bytes, int offset, int length, String encoding) {
+    try {
+      return new String(bytes, offset, length, encoding);
+    } catch (UnsupportedEncodingException e) {
+      Log.e("getTrackMap exception");
+      return new String(bytes, offset, length);
+    }
   }
 
   /**
@@ -831,6 +1039,7 @@ public class MediaPlayer {
    */
   public void selectTrack(int index) {
     selectOrDeselectTrack(index, true /* select */);
+    invalidateTrackInfo();
   }
 
   /**
@@ -848,6 +1057,7 @@ public class MediaPlayer {
    */
   public void deselectTrack(int index) {
     selectOrDeselectTrack(index, false /* select */);
+    invalidateTrackInfo();
   }
 
   private native void selectOrDeselectTrack(int index, boolean select);
@@ -899,12 +1109,16 @@ public class MediaPlayer {
 
   private void updateCacheStatus(int type, int info, long[] segments) {
     if (mEventHandler != null) {
-      Message m = mEventHandler.obtainMessage(MEDIA_CACHING_UPDATE);
-      Bundle b = m.getData();
-      b.putInt(MEDIA_CACHING_TYPE, type);
-      b.putInt(MEDIA_CACHING_INFO, info);
-      b.putLongArray(MEDIA_CACHING_SEGMENTS, segments);
-      mEventHandler.sendMessage(m);
+      if (type == CACHE_TYPE_UPDATE) {
+        mPendingCachingSegments.set(segments);
+        scheduleCoalescedUpdate();
+      } else if (type == CACHE_TYPE_SPEED) {
+        mPendingCachingSpeed.set(info);
+        scheduleCoalescedUpdate();
+      } else {
+        mEventMessageCount.incrementAndGet();
+        mEventHandler.sendMessage(mEventHandler.obtainMessage(MEDIA_CACHING_UPDATE, type, info));
+      }
     }
   }
 
@@ -951,25 +1165,25 @@ public class MediaPlayer {
 
   private void updateSub(int subType, byte[] bytes, String encoding, int width, int height) {
     if (mEventHandler != null) {
-      Message m = mEventHandler.obtainMessage(MEDIA_TIMED_TEXT, width, height);
-      Bundle b = m.getData();
+      // the text is passed as a String and the bitmap as its bytes, so no
+      // Bundle is needed to tell them apart
+      Object sub = null;
       if (subType == SUBTITLE_TEXT) {
-        b.putInt(MEDIA_SUBTITLE_TYPE, SUBTITLE_TEXT);
         if (encoding == null) {
-          b.putString(MEDIA_SUBTITLE_STRING, new String(bytes));
+          sub = new String(bytes);
         } else {
           try {
-            b.putString(MEDIA_SUBTITLE_STRING, new String(bytes, encoding.trim()));
+            sub = new String(bytes, encoding.trim());
           } catch (UnsupportedEncodingException e) {
             Log.e("updateSub", e);
-            b.putString(MEDIA_SUBTITLE_STRING, new String(bytes));
+            sub = new String(bytes);
           }
         }
       } else if (subType == SUBTITLE_BITMAP) {
-        b.putInt(MEDIA_SUBTITLE_TYPE, SUBTITLE_BITMAP);
-        b.putByteArray(MEDIA_SUBTITLE_BYTES, bytes);
+        sub = bytes;
       }
-      mEventHandler.sendMessage(m);
+      mEventMessageCount.incrementAndGet();
+      mEventHandler.sendMessage(mEventHandler.obtainMessage(MEDIA_TIMED_TEXT, width, height, sub));
     }
   }
 
@@ -1113,11 +1327,55 @@ public class MediaPlayer {
    */
   public native int getTimedTextTrack();
 
+  /**
+   * Set the size of the audio output buffer as a multiple of
+   * AudioTrack.getMinBufferSize, a larger buffer has less underruns but
+   * more latency. The default is 1, takes effect from the next audio track
+   * created, usually the next {@link #prepare()}.
+   *
+   * @param multiplier at least 1
+   */
+  public void setAudioBufferMultiplier(int multiplier) {
+    mAudioBufferMultiplier = multiplier < 1 ? 1 : multiplier;
+  }
+
+  public int getAudioBufferMultiplier() {
+    return mAudioBufferMultiplier;
+  }
+
+  /**
+   * @return the size in bytes of the audio output buffer in use, 0 if none
+   */
+  public int getAudioBufferSize() {
+    return mAudioTrackBufferSize;
+  }
+
+  /**
+   * @return the latency in milliseconds added by the audio output buffer
+   */
+  public int getAudioLatency() {
+    if (mAudioFrameSize == 0 || mAudioSampleRate == 0)
+      return 0;
+    return (int) (1000L * mAudioTrackBufferSize / mAudioFrameSize / mAudioSampleRate);
+  }
+
+  /**
+   * @return how many times the audio output buffer has been played out before
+   *         the decoder wrote more data, since the audio track was created
+   */
+  public int getAudioUnderrunCount() {
+    return mAudioUnderrunCount;
+  }
+
   private int audioTrackInit(int sampleRateInHz, int channels) {
     audioTrackRelease();
     int channelConfig = channels >= 2 ? AudioFormat.CHANNEL_OUT_STEREO : AudioFormat.CHANNEL_OUT_MONO;
+    mAudioFrameSize = (channels >= 2 ? 2 : 1) * 2;
+    mAudioSampleRate = sampleRateInHz;
+    mAudioFramesWritten = 0;
+    mAudioUnderrunCount = 0;
     try {
-      mAudioTrackBufferSize = AudioTrack.getMinBufferSize(sampleRateInHz, channelConfig, AudioFormat.ENCODING_PCM_16BIT);
+      mAudioTrackBufferSize = AudioTrack.getMinBufferSize(sampleRateInHz, channelConfig, AudioFormat.ENCODING_PCM_16BIT) * mAudioBufferMultiplier;
       mAudioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRateInHz, channelConfig, AudioFormat.ENCODING_PCM_16BIT, mAudioTrackBufferSize, AudioTrack.MODE_STREAM);
     } catch (Exception e) {
       mAudioTrackBufferSize = 0;
@@ -1133,11 +1391,19 @@ public class MediaPlayer {
 
   private void audioTrackWrite(byte[] audioData, int offsetInBytes, int sizeInBytes) {
     if (mAudioTrack != null) {
-      audioTrackStart();
+      if (!mAudioTrackStarted)
+        audioTrackStart();
+      else if (mAudioFramesWritten > 0 && (mAudioTrack.getPlaybackHeadPosition() & 0xFFFFFFFFL) >= mAudioFramesWritten)
+        // everything written has been played, the output ran dry
+        mAudioUnderrunCount++;
       int written;
       while (sizeInBytes > 0) {
-        written = sizeInBytes > mAudioTrackBufferSize ? mAudioTrackBufferSize : sizeInBytes;
-        mAudioTrack.write(audioData, offsetInBytes, written);
+        written = mAudioTrack.write(audioData, offsetInBytes, sizeInBytes > mAudioTrackBufferSize ? mAudioTrackBufferSize : sizeInBytes);
+        if (written <= 0) {
+          Log.e("audioTrackWrite error %d", written);
+          return;
+        }
+        mAudioFramesWritten += written / mAudioFrameSize;
         sizeInBytes -= written;
         offsetInBytes += written;
       }
@@ -1147,11 +1413,13 @@ public class MediaPlayer {
   private void audioTrackStart() {
     if (mAudioTrack != null && mAudioTrack.getState() == AudioTrack.STATE_INITIALIZED && mAudioTrack.getPlayState() != AudioTrack.PLAYSTATE_PLAYING)
       mAudioTrack.play();
+    mAudioTrackStarted = mAudioTrack != null && mAudioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING;
   }
 
   private void audioTrackPause() {
     if (mAudioTrack != null && mAudioTrack.getState() == AudioTrack.STATE_INITIALIZED)
       mAudioTrack.pause();
+    mAudioTrackStarted = false;
   }
 
   private void audioTrackRelease() {
@@ -1161,6 +1429,61 @@ public class MediaPlayer {
       mAudioTrack.release();
     }
     mAudioTrack = null;
+    mAudioTrackStarted = false;
+  }
+
+  /**
+   * Set how the frames are posted to the surface when the video is rendered
+   * in software, can be changed at any time.
+   *
+   * @param mode {@link #RENDER_MODE_FULL} or {@link #RENDER_MODE_THREADED}
+   */
+  public void setRenderMode(int mode) {
+    FrameRenderer renderer;
+    synchronized (this) {
+      mRenderMode = mode == RENDER_MODE_THREADED ? RENDER_MODE_THREADED : RENDER_MODE_FULL;
+      if (mRenderMode == RENDER_MODE_THREADED) {
+        // the render thread draws from its own bitmaps
+        mBitmap = null;
+        return;
+      }
+      renderer = mFrameRenderer;
+      mFrameRenderer = null;
+    }
+    // joined here rather than on the decode thread
+    if (renderer != null) {
+      renderer.release();
+      addFrameCounts(renderer);
+    }
+  }
+
+  public int getRenderMode() {
+    return mRenderMode;
+  }
+
+  /**
+   * @return the count of frames posted to the surface by the software render
+   */
+  public long getFramesRendered() {
+    FrameRenderer renderer = mFrameRenderer;
+    return mFramesRendered.get() + (renderer != null ? renderer.getFramesRendered() : 0);
+  }
+
+  /**
+   * @return the count of frames decoded but not posted by the software render
+   */
+  public long getFramesDropped() {
+    FrameRenderer renderer = mFrameRenderer;
+    return mFramesDropped.get() + (renderer != null ? renderer.getFramesDropped() : 0);
+  }
+
+  /**
+   * @return the count of frames replaced by a newer one before drawn, only
+   *         happens with {@link #RENDER_MODE_THREADED}
+   */
+  public long getFramesOverwritten() {
+    FrameRenderer renderer = mFrameRenderer;
+    return mFramesOverwritten.get() + (renderer != null ? renderer.getFramesOverwritten() : 0);
   }
 
   private ByteBuffer surfaceInit() {
@@ -1168,8 +1491,15 @@ public class MediaPlayer {
       mLocalSurface = mSurface;
       int w = getVideoWidth_a();
       int h = getVideoHeight_a();
+      releaseFrameRenderer();
+      mFirstFrameTraced = false;
+      mFramesRendered.set(0);
+      mFramesDropped.set(0);
+      mFramesOverwritten.set(0);
       if (mLocalSurface != null && w != 0 && h != 0) {
-        mBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.RGB_565);
+        mFrameWidth = w;
+        mFrameHeight = h;
+        mBitmap = mRenderMode == RENDER_MODE_FULL ? Bitmap.createBitmap(w, h, Bitmap.Config.RGB_565) : null;
         mByteBuffer = ByteBuffer.allocateDirect(w * h * 2);
       } else {
         mBitmap = null;
@@ -1179,24 +1509,74 @@ public class MediaPlayer {
     }
   }
 
+  // called by the decoder for every frame, the copies are described at
+  // RENDER_MODE_FULL
   private void surfaceRender() {
+    if (!mFirstFrameTraced) {
+      mFirstFrameTraced = true;
+      Tracer.instant("MediaPlayer.firstFrame");
+    }
+    if (mRenderMode == RENDER_MODE_THREADED) {
+      FrameRenderer renderer = mFrameRenderer;
+      ByteBuffer frame = mByteBuffer;
+      if (renderer == null)
+        renderer = createFrameRenderer();
+      if (renderer == null || frame == null)
+        mFramesDropped.incrementAndGet();
+      else
+        renderer.post(frame);
+      return;
+    }
+
     synchronized (this) {
-      if (mLocalSurface == null || !mLocalSurface.isValid() || mBitmap == null || mByteBuffer == null)
+      if (mLocalSurface == null || !mLocalSurface.isValid() || mByteBuffer == null) {
+        mFramesDropped.incrementAndGet();
         return;
+      }
+      if (mBitmap == null)
+        mBitmap = Bitmap.createBitmap(mFrameWidth, mFrameHeight, Bitmap.Config.RGB_565);
 
       try {
         Canvas c = mLocalSurface.lockCanvas(null);
-        mBitmap.copyPixelsFromBuffer(mByteBuffer);
+        if (c == null) {
+          mFramesDropped.incrementAndGet();
+          return;
+        }
+        mBitmap.copyPixelsFromBuffer(mByteBuffer.rewind());
         c.drawBitmap(mBitmap, 0, 0, null);
         mLocalSurface.unlockCanvasAndPost(c);
+        mFramesRendered.incrementAndGet();
       } catch (Exception e) {
+        mFramesDropped.incrementAndGet();
         Log.e("surfaceRender", e);
       }
     }
   }
 
+  private synchronized FrameRenderer createFrameRenderer() {
+    // not after setRenderMode() switched back to RENDER_MODE_FULL
+    if (mFrameRenderer == null && mRenderMode == RENDER_MODE_THREADED && mLocalSurface != null && mByteBuffer != null)
+      mFrameRenderer = new FrameRenderer(mLocalSurface, mFrameWidth, mFrameHeight);
+    return mFrameRenderer;
+  }
+
+  private synchronized void releaseFrameRenderer() {
+    if (mFrameRenderer != null) {
+      mFrameRenderer.release();
+      addFrameCounts(mFrameRenderer);
+      mFrameRenderer = null;
+    }
+  }
+
+  private void addFrameCounts(FrameRenderer renderer) {
+    mFramesRendered.addAndGet(renderer.getFramesRendered());
+    mFramesDropped.addAndGet(renderer.getFramesDropped());
+    mFramesOverwritten.addAndGet(renderer.getFramesOverwritten());
+  }
+
   private void surfaceRelease() {
     synchronized (this) {
+      releaseFrameRenderer();
       mLocalSurface = null;
       mBitmap = null;
       mByteBuffer = null;
@@ -1386,12 +1766,19 @@ public class MediaPlayer {
     public SparseArray<String> getTrackInfoArray() {
       return mTrackInfoArray;
     }
+
+    TrackInfo copy() {
+      int size = mTrackInfoArray.size();
+      SparseArray<String> array = new SparseArray<String>(size);
+      for (int i = 0; i < size; i++)
+        array.append(mTrackInfoArray.keyAt(i), mTrackInfoArray.valueAt(i));
+      return new TrackInfo(mTrackType, array);
+    }
   }
 
   @SuppressLint("HandlerLeak")
   private class EventHandler extends Handler {
     private MediaPlayer mMediaPlayer;
-    private Bundle mData;
 
     public EventHandler(MediaPlayer mp, Looper looper) {
       super(looper);
@@ -1402,6 +1789,7 @@ public class MediaPlayer {
     public void handleMessage(Message msg) {
       switch (msg.what) {
         case MEDIA_PREPARED:
+          invalidateTrackInfo();
           if (mOnPreparedListener != null)
             mOnPreparedListener.onPrepared(mMediaPlayer);
           return;
@@ -1441,28 +1829,37 @@ public class MediaPlayer {
         case MEDIA_CACHE:
           return;
         case MEDIA_TIMED_TEXT:
-          mData = msg.getData();
-          if (mData.getInt(MEDIA_SUBTITLE_TYPE) == SUBTITLE_TEXT) {
-            Log.i("Subtitle : %s", mData.getString(MEDIA_SUBTITLE_STRING));
+          if (msg.obj instanceof String) {
+            Log.i("Subtitle : %s", msg.obj);
             if (mOnTimedTextListener != null)
-              mOnTimedTextListener.onTimedText(mData.getString(MEDIA_SUBTITLE_STRING));
-          } else if (mData.getInt(MEDIA_SUBTITLE_TYPE) == SUBTITLE_BITMAP) {
+              mOnTimedTextListener.onTimedText((String) msg.obj);
+          } else if (msg.obj instanceof byte[]) {
             Log.i("Subtitle : bitmap");
             if (mOnTimedTextListener != null)
-              mOnTimedTextListener.onTimedTextUpdate(mData.getByteArray(MEDIA_SUBTITLE_BYTES), msg.arg1, msg.arg2);
+              mOnTimedTextListener.onTimedTextUpdate((byte[]) msg.obj, msg.arg1, msg.arg2);
           }
           return;
         case MEDIA_CACHING_UPDATE:
-          if (mOnCachingUpdateListener != null) {
-            int cacheType = msg.getData().getInt(MEDIA_CACHING_TYPE);
-            if (cacheType == CACHE_TYPE_NOT_AVAILABLE) {
-              mOnCachingUpdateListener.onCachingNotAvailable(mMediaPlayer, msg.getData().getInt(MEDIA_CACHING_INFO));
-            } else if (cacheType == CACHE_TYPE_UPDATE) {
-              mOnCachingUpdateListener.onCachingUpdate(mMediaPlayer, msg.getData().getLongArray(MEDIA_CACHING_SEGMENTS));
-            } else if (cacheType == CACHE_TYPE_SPEED) {
-              mOnCachingUpdateListener.onCachingSpeed(mMediaPlayer, msg.getData().getInt(MEDIA_CACHING_INFO));
-            }
-          }
+          if (mOnCachingUpdateListener != null && msg.arg1 == CACHE_TYPE_NOT_AVAILABLE)
+            mOnCachingUpdateListener.onCachingNotAvailable(mMediaPlayer, msg.arg2);
+          return;
+        case MEDIA_COALESCED_UPDATE:
+          // clear the flag before delivering, so the values coming meanwhile
+          // queue a new message, delayed from the time set before the flag
+          mLastCoalescedDispatch = SystemClock.uptimeMillis();
+          mCoalescedPending.set(false);
+          int percent = mPendingBufferingPercent.getAndSet(NO_VALUE);
+          if (percent != NO_VALUE && mOnBufferingUpdateListener != null)
+            mOnBufferingUpdateListener.onBufferingUpdate(mMediaPlayer, percent);
+          int rate = mPendingDownloadRate.getAndSet(NO_VALUE);
+          if (rate != NO_VALUE && mOnInfoListener != null)
+            mOnInfoListener.onInfo(mMediaPlayer, MEDIA_INFO_DOWNLOAD_RATE_CHANGED, rate);
+          long[] segments = mPendingCachingSegments.getAndSet(null);
+          if (segments != null && mOnCachingUpdateListener != null)
+            mOnCachingUpdateListener.onCachingUpdate(mMediaPlayer, segments);
+          int speed = mPendingCachingSpeed.getAndSet(NO_VALUE);
+          if (speed != NO_VALUE && mOnCachingUpdateListener != null)
+            mOnCachingUpdateListener.onCachingSpeed(mMediaPlayer, speed);
           return;
         case MEDIA_NOP:
           return;
@@ -18,9 +18,11 @@
 package io.vov.vitamio;
 
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.net.Uri;
@@ -31,22 +33,65 @@ import io.vov.vitamio.provider.MediaStore;
 import io.vov.vitamio.provider.MediaStore.Video;
 import io.vov.vitamio.utils.ContextUtils;
 import io.vov.vitamio.utils.FileUtils;
+import io.vov.vitamio.utils.IOUtils;
 import io.vov.vitamio.utils.Log;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MediaScanner {
   private static final String[] VIDEO_PROJECTION = new String[]{Video.Media._ID, Video.Media.DATA, Video.Media.DATE_MODIFIED,};
   private static final int ID_VIDEO_COLUMN_INDEX = 0;
   private static final int PATH_VIDEO_COLUMN_INDEX = 1;
   private static final int DATE_MODIFIED_VIDEO_COLUMN_INDEX = 2;
+  private static final String FINGERPRINTS_FILE = "media_scanner_dirs";
+  private static final int FINGERPRINTS_VERSION = 1;
+  private static final String NO_MEDIA = ".nomedia";
+  private static final int DEFAULT_BATCH_SIZE = 200;
+  // above this the prescan loads all the videos instead of a LIKE per
+  // directory, which must stay under the host parameter limit of SQLite
+  private static final int MAX_PRESCAN_DIRECTORIES = 100;
   private Context mContext;
   private ContentProviderClient mProvider;
   private boolean mCaseInsensitivePaths;
-  private HashMap<String, FileCacheEntry> mFileCache;
+  // the videos known by the provider
+  private FileCacheIndex mFileIndex;
+  // the videos found by this scan but not in the provider yet
+  private ConcurrentHashMap<String, FileCacheEntry> mFileCache;
   private MyMediaScannerClient mClient = new MyMediaScannerClient();
+  private boolean mIncremental;
+  private Map<String, DirFingerprint> mOldFingerprints;
+  private Map<String, DirFingerprint> mNewFingerprints;
+  private int mScannedDirectories;
+  private int mSkippedDirectories;
+  private int mBatchSize = DEFAULT_BATCH_SIZE;
+  private boolean mBatching;
+  private ArrayList<ContentValues> mPendingInserts = new ArrayList<ContentValues>();
+  private ArrayList<ContentProviderOperation> mPendingOperations = new ArrayList<ContentProviderOperation>();
+  private ScanResult mResult;
+  private int mParallelism = 1;
+  // the .nomedia folders found by scanDirectories(), shared with the workers
+  // and hidden once the rows of every worker are written
+  private List<String> mNoMediaFolders;
 
   public MediaScanner(Context ctx) {
     mContext = ctx;
@@ -59,14 +104,21 @@ public class MediaScanner {
     mCaseInsensitivePaths = true;
   }
 
-  private void prescan(String filePath) throws RemoteException {
+  /**
+   * Load the known videos into {@link #mFileIndex}.
+   *
+   * @param filePath    only load this one, and delete its row if the file is
+   *                    gone
+   * @param directories only load the videos under these, null for all
+   */
+  private void prescan(String filePath, String[] directories) throws RemoteException {
     mProvider = mContext.getContentResolver().acquireContentProviderClient(MediaStore.AUTHORITY);
     Cursor c = null;
     String where = null;
     String[] selectionArgs = null;
 
     if (mFileCache == null)
-      mFileCache = new HashMap<String, FileCacheEntry>();
+      mFileCache = new ConcurrentHashMap<String, FileCacheEntry>();
     else
       mFileCache.clear();
 
@@ -74,9 +126,33 @@ public class MediaScanner {
       if (filePath != null) {
         where = Video.Media.DATA + "=?";
         selectionArgs = new String[]{filePath};
+      } else if (directories != null && directories.length <= MAX_PRESCAN_DIRECTORIES) {
+        // the rows outside the directories are neither matched by the scan
+        // nor deleted by the postscan. LIKE may select a few more rows with
+        // '_' or '%' in their paths, which is harmless
+        ArrayList<String> prefixes = new ArrayList<String>();
+        for (String dir : directories) {
+          if (TextUtils.isEmpty(dir))
+            continue;
+          prefixes.add(dir + '%');
+          String canonical = ContextUtils.fixLastSlash(FileUtils.getCanonical(new File(dir)));
+          if (!canonical.equals(dir))
+            prefixes.add(canonical + '%');
+        }
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < prefixes.size(); i++) {
+          if (i > 0)
+            builder.append(" OR ");
+          builder.append(Video.Media.DATA).append(" LIKE ?");
+        }
+        if (!prefixes.isEmpty()) {
+          where = builder.toString();
+          selectionArgs = prefixes.toArray(new String[prefixes.size()]);
+        }
       }
 
       c = mProvider.query(Video.Media.CONTENT_URI, VIDEO_PROJECTION, where, selectionArgs, null);
+      mFileIndex = new FileCacheIndex(c == null ? 0 : c.getCount(), mCaseInsensitivePaths);
       if (c != null) {
         try {
           while (c.moveToNext()) {
@@ -89,15 +165,14 @@ public class MediaScanner {
                 mProvider.delete(Video.Media.CONTENT_URI, where, selectionArgs);
                 return;
               }
-              path = FileUtils.getCanonical(tempFile);
-              String key = mCaseInsensitivePaths ? path.toLowerCase() : path;
-              mFileCache.put(key, new FileCacheEntry(Video.Media.CONTENT_URI, rowId, path, lastModified));
+              mFileIndex.add(FileUtils.getCanonical(tempFile), rowId, lastModified);
             }
           }
         } finally {
           c.close();
           c = null;
         }
+        Log.d("prescan: %d videos in %d bytes", mFileIndex.size(), mFileIndex.getMemoryUsage());
       }
     } finally {
       if (c != null) {
@@ -109,20 +184,19 @@ public class MediaScanner {
   ;
 
   private void postscan(String[] directories) throws RemoteException {
-    Iterator<FileCacheEntry> iterator = mFileCache.values().iterator();
-
-    while (iterator.hasNext()) {
-      FileCacheEntry entry = iterator.next();
-      String path = entry.mPath;
-
-      if (!entry.mSeenInFileSystem) {
+    FileCacheIndex index = mFileIndex;
+    for (int i = 0, size = index.size(); i < size; i++) {
+      if (!index.isSeen(i) && !index.isRemoved(i)) {
+        String path = index.getPath(i);
         if (inScanDirectory(path, directories) && !new File(path).exists()) {
-          mProvider.delete(ContentUris.withAppendedId(entry.mTableUri, entry.mRowId), null, null);
-          iterator.remove();
+          deleteEntry(Video.Media.CONTENT_URI, index.getRowId(i));
+          index.remove(i);
         }
       }
     }
 
+    flush();
+    mFileIndex = null;
     mFileCache.clear();
     mFileCache = null;
     mProvider.release();
@@ -137,46 +211,354 @@ public class MediaScanner {
     return false;
   }
 
-  public void scanDirectories(String[] directories) {
+  /**
+   * Set how many rows are written to the provider at once during
+   * {@link #scanDirectories(String[])}, the inserts are sent with
+   * {@link ContentProviderClient#bulkInsert} and the updates and deletes with
+   * {@link ContentProviderClient#applyBatch}, so a provider which wraps them
+   * in a transaction only commits once per batch.
+   *
+   * @param batchSize 1 to write every row at once, 200 by default
+   */
+  public void setBatchSize(int batchSize) {
+    mBatchSize = Math.max(1, batchSize);
+  }
+
+  public int getBatchSize() {
+    return mBatchSize;
+  }
+
+  private void deleteEntry(Uri tableUri, long rowId) throws RemoteException {
+    Uri uri = ContentUris.withAppendedId(tableUri, rowId);
+    mResult.deleted++;
+    if (!mBatching) {
+      mProvider.delete(uri, null, null);
+      return;
+    }
+    mPendingOperations.add(ContentProviderOperation.newDelete(uri).build());
+    if (mPendingOperations.size() >= mBatchSize)
+      flush();
+  }
+
+  private void flush() throws RemoteException {
+    if (!mPendingInserts.isEmpty()) {
+      mProvider.bulkInsert(Video.Media.CONTENT_URI, mPendingInserts.toArray(new ContentValues[mPendingInserts.size()]));
+      mPendingInserts.clear();
+      mResult.batches++;
+    }
+    if (!mPendingOperations.isEmpty()) {
+      try {
+        mProvider.applyBatch(mPendingOperations);
+      } catch (OperationApplicationException e) {
+        Log.e("applyBatch", e);
+        mResult.failedWrites++;
+      }
+      mPendingOperations.clear();
+      mResult.batches++;
+    }
+  }
+
+  private void hideNoMediaFolders() throws RemoteException {
+    ContentValues values = new ContentValues();
+    values.put(MediaStore.MediaColumns.DATA, "");
+    for (String path : mNoMediaFolders)
+      mProvider.update(Video.Media.CONTENT_URI, values, MediaStore.MediaColumns.DATA + " LIKE ?", new String[]{path + '%'});
+    mNoMediaFolders.clear();
+  }
+
+  /**
+   * Scan the sub directories on a pool of threads. Every thread has its own
+   * native scanner to extract the metadata, and they share the known videos
+   * through a concurrent map, so no lock is held while a file is processed.
+   * <p/>
+   * The directories are walked in Java when this is more than 1, like the
+   * incremental mode.
+   *
+   * @param threads the max count of native scanners, 1 by default to scan on
+   *                the calling thread
+   */
+  public void setParallelism(int threads) {
+    mParallelism = Math.max(1, threads);
+  }
+
+  public int getParallelism() {
+    return mParallelism;
+  }
+
+  /**
+   * In the incremental mode the directories are walked in Java and a
+   * fingerprint of each directory, its modified time and entry count, is
+   * saved after the scan. The next scan only lists the files of the
+   * directories whose fingerprint changed, and goes on with the known sub
+   * directories of the unchanged ones.
+   * <p/>
+   * A file modified in place doesn't change the fingerprint of its directory,
+   * so it will not be rescanned until something is added to or removed from
+   * the directory, use a full scan for that.
+   *
+   * @param incremental false by default, the whole trees are processed by the
+   *                    native scanner
+   */
+  public void setIncremental(boolean incremental) {
+    mIncremental = incremental;
+  }
+
+  public boolean isIncremental() {
+    return mIncremental;
+  }
+
+  /**
+   * @return the directories whose files were listed by the last incremental
+   * scan
+   */
+  public int getScannedDirectoryCount() {
+    return mScannedDirectories;
+  }
+
+  /**
+   * @return the directories skipped by the last incremental scan since their
+   * fingerprints didn't change
+   */
+  public int getSkippedDirectoryCount() {
+    return mSkippedDirectories;
+  }
+
+  /**
+   * @return the result of the last scan, null if it failed
+   */
+  public ScanResult getLastScanResult() {
+    return mResult;
+  }
+
+  /**
+   * Scan the directories and update the video provider. Only the known videos
+   * under the directories are loaded from the provider, so scanning a small
+   * directory costs little in a large library.
+   *
+   * @return the counts and the time of each phase, null if the scan failed
+   */
+  public ScanResult scanDirectories(String[] directories) {
+    ScanResult result = new ScanResult();
+    mResult = result;
     try {
       long start = System.currentTimeMillis();
-      prescan(null);
-      long prescan = System.currentTimeMillis();
-
       for (int i = 0; i < directories.length; i++) {
-        if (!TextUtils.isEmpty(directories[i])) {
+        if (!TextUtils.isEmpty(directories[i]))
           directories[i] = ContextUtils.fixLastSlash(directories[i]);
-          processDirectory(directories[i], MediaFile.sFileExtensions);
+      }
+      prescan(null, directories);
+      long prescan = System.currentTimeMillis();
+      mBatching = mBatchSize > 1;
+      mNoMediaFolders = Collections.synchronizedList(new ArrayList<String>());
+
+      mScannedDirectories = 0;
+      mSkippedDirectories = 0;
+      ParallelScan parallel = null;
+      if (mParallelism > 1) {
+        parallel = new ParallelScan(mParallelism);
+        mNewFingerprints = new ConcurrentHashMap<String, DirFingerprint>();
+      } else if (mIncremental) {
+        mNewFingerprints = new HashMap<String, DirFingerprint>();
+      }
+      if (mIncremental)
+        mOldFingerprints = loadFingerprints();
+      else if (parallel != null)
+        mOldFingerprints = new HashMap<String, DirFingerprint>();
+      try {
+        for (int i = 0; i < directories.length; i++) {
+          if (!TextUtils.isEmpty(directories[i])) {
+            if (parallel != null)
+              parallel.submit(new File(directories[i]));
+            else if (mIncremental)
+              scanDirectory(new File(directories[i]), null);
+            else
+              processDirectory(directories[i], MediaFile.sFileExtensions);
+          }
         }
+      } finally {
+        if (parallel != null)
+          parallel.finish();
       }
+      flush();
+      hideNoMediaFolders();
+      // a directory whose rows were not all written must be listed again by
+      // the next scan
+      if (mIncremental && result.failedWrites == 0)
+        saveFingerprints(mNewFingerprints);
+      else if (mIncremental)
+        Log.e("%d writes failed, the fingerprints are not saved", result.failedWrites);
 
       long scan = System.currentTimeMillis();
       postscan(directories);
       long end = System.currentTimeMillis();
 
+      result.prescanTime = prescan - start;
+      result.scanTime = scan - prescan;
+      result.postscanTime = end - scan;
+      result.scannedDirectories = mScannedDirectories;
+      result.skippedDirectories = mSkippedDirectories;
+
       Log.d(" prescan time: %dms", prescan - start);
       Log.d("    scan time: %dms", scan - prescan);
       Log.d("postscan time: %dms", end - scan);
       Log.d("   total time: %dms", end - start);
+      if (mIncremental || parallel != null)
+        Log.d("  directories: %d scanned, %d skipped", mScannedDirectories, mSkippedDirectories);
+      Log.d("         rows: %d inserted, %d updated, %d deleted in %d batches", result.inserted, result.updated, result.deleted, result.batches);
+      if (result.failedWrites > 0)
+        Log.e("  failed writes: %d", result.failedWrites);
+      return result;
     } catch (SQLException e) {
       Log.e("SQLException in MediaScanner.scan()", e);
     } catch (UnsupportedOperationException e) {
       Log.e("UnsupportedOperationException in MediaScanner.scan()", e);
     } catch (RemoteException e) {
       Log.e("RemoteException in MediaScanner.scan()", e);
+    } finally {
+      mBatching = false;
+      mNoMediaFolders = null;
+      mOldFingerprints = null;
+      mNewFingerprints = null;
+      mPendingInserts.clear();
+      mPendingOperations.clear();
     }
+    mResult = null;
+    return null;
   }
 
+  /**
+   * @param parallel the sub directories are submitted to it, or scanned on
+   *                 this thread if null
+   */
+  private void scanDirectory(File dir, ParallelScan parallel) {
+    String path = dir.getPath();
+    String[] names = dir.list();
+    if (names == null)
+      return;
+
+    long lastModified = dir.lastModified();
+    DirFingerprint old = mOldFingerprints.get(path);
+    if (old != null && old.lastModified == lastModified && old.entryCount == names.length) {
+      mSkippedDirectories++;
+      mNewFingerprints.put(path, old);
+      for (String child : old.children)
+        scanSubDirectory(new File(dir, child), parallel);
+      return;
+    }
+
+    mScannedDirectories++;
+    ArrayList<String> children = new ArrayList<String>();
+    for (String name : names) {
+      if (NO_MEDIA.equals(name)) {
+        mClient.addNoMediaFolder(ContextUtils.fixLastSlash(path));
+        mNewFingerprints.put(path, new DirFingerprint(lastModified, names.length, new String[0]));
+        return;
+      }
+    }
+    for (String name : names) {
+      File file = new File(dir, name);
+      if (file.isDirectory()) {
+        children.add(name);
+        scanSubDirectory(file, parallel);
+      } else if (MediaFile.getFileType(name) != null) {
+        mClient.scanFile(file.getPath(), file.lastModified() / 1000, file.length());
+      }
+    }
+    mNewFingerprints.put(path, new DirFingerprint(lastModified, names.length, children.toArray(new String[children.size()])));
+  }
+
+  private void scanSubDirectory(File dir, ParallelScan parallel) {
+    if (parallel != null)
+      parallel.submit(dir);
+    else
+      scanDirectory(dir, null);
+  }
+
+  private HashMap<String, DirFingerprint> loadFingerprints() {
+    HashMap<String, DirFingerprint> fingerprints = new HashMap<String, DirFingerprint>();
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(mContext.getFilesDir(), FINGERPRINTS_FILE))));
+      if (in.readInt() != FINGERPRINTS_VERSION)
+        return fingerprints;
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        String path = in.readUTF();
+        long lastModified = in.readLong();
+        int entryCount = in.readInt();
+        String[] children = new String[in.readInt()];
+        for (int j = 0; j < children.length; j++)
+          children[j] = in.readUTF();
+        fingerprints.put(path, new DirFingerprint(lastModified, entryCount, children));
+      }
+    } catch (FileNotFoundException e) {
+      // first scan
+    } catch (IOException e) {
+      Log.e("loadFingerprints", e);
+      fingerprints.clear();
+    } finally {
+      IOUtils.closeSilently(in);
+    }
+    return fingerprints;
+  }
+
+  private void saveFingerprints(Map<String, DirFingerprint> fingerprints) {
+    File file = new File(mContext.getFilesDir(), FINGERPRINTS_FILE);
+    File temp = new File(file.getPath() + ".tmp");
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+      out.writeInt(FINGERPRINTS_VERSION);
+      out.writeInt(fingerprints.size());
+      for (Map.Entry<String, DirFingerprint> entry : fingerprints.entrySet()) {
+        DirFingerprint fingerprint = entry.getValue();
+        out.writeUTF(entry.getKey());
+        out.writeLong(fingerprint.lastModified);
+        out.writeInt(fingerprint.entryCount);
+        out.writeInt(fingerprint.children.length);
+        for (String child : fingerprint.children)
+          out.writeUTF(child);
+      }
+      out.close();
+      out = null;
+      if (!temp.renameTo(file))
+        Log.e("saveFingerprints: can't rename %s", temp);
+    } catch (IOException e) {
+      Log.e("saveFingerprints", e);
+    } finally {
+      IOUtils.closeSilently(out);
+    }
+  }
+
+  /**
+   * Scan a file and update its row, {@link #getLastScanResult()} still
+   * describes the last {@link #scanDirectories(String[])}.
+   *
+   * @return the uri of the video, null if it's not a video or doesn't exist
+   */
   public Uri scanSingleFile(String path, String mimeType) {
+    // the counts of the file go to a result of its own
+    ScanResult lastResult = mResult;
+    mResult = new ScanResult();
     try {
-      prescan(path);
+      prescan(path, null);
       File file = new File(path);
+      // the row of a deleted file is removed by prescan
+      if (!file.exists())
+        return null;
       long lastModifiedSeconds = file.lastModified() / 1000;
 
       return mClient.doScanFile(path, lastModifiedSeconds, file.length(), true);
     } catch (RemoteException e) {
       Log.e("RemoteException in MediaScanner.scanFile()", e);
       return null;
+    } finally {
+      mResult = lastResult;
+      mFileIndex = null;
+      if (mProvider != null) {
+        mProvider.release();
+        mProvider = null;
+      }
     }
   }
 
@@ -214,6 +596,8 @@ public class MediaScanner {
     long mLastModified;
     boolean mLastModifiedChanged;
     boolean mSeenInFileSystem;
+    // the index in the FileCacheIndex, -1 for a new video
+    int mIndex = -1;
 
     FileCacheEntry(Uri tableUri, long rowId, String path, long lastModified) {
       mTableUri = tableUri;
@@ -230,6 +614,212 @@ public class MediaScanner {
     }
   }
 
+  /**
+   * The counts and the time of each phase of a scan, the times are in
+   * milliseconds.
+   */
+  public static class ScanResult {
+    long prescanTime;
+    long scanTime;
+    long postscanTime;
+    int scannedDirectories;
+    int skippedDirectories;
+    int inserted;
+    int updated;
+    int deleted;
+    int batches;
+    int failedWrites;
+
+    /**
+     * @return the time to load the known videos from the provider
+     */
+    public long getPrescanTime() {
+      return prescanTime;
+    }
+
+    /**
+     * @return the time to walk the directories and write the new and changed
+     * videos
+     */
+    public long getScanTime() {
+      return scanTime;
+    }
+
+    /**
+     * @return the time to delete the videos no longer existing
+     */
+    public long getPostscanTime() {
+      return postscanTime;
+    }
+
+    public long getTotalTime() {
+      return prescanTime + scanTime + postscanTime;
+    }
+
+    /**
+     * @return the directories listed by an incremental scan, 0 for a full scan
+     */
+    public int getScannedDirectories() {
+      return scannedDirectories;
+    }
+
+    /**
+     * @return the directories skipped by an incremental scan, 0 for a full
+     * scan
+     */
+    public int getSkippedDirectories() {
+      return skippedDirectories;
+    }
+
+    public int getInserted() {
+      return inserted;
+    }
+
+    public int getUpdated() {
+      return updated;
+    }
+
+    public int getDeleted() {
+      return deleted;
+    }
+
+    /**
+     * @return the provider calls made to write the rows in batches
+     */
+    public int getBatches() {
+      return batches;
+    }
+
+    /**
+     * @return the provider writes which failed, the rows they held are
+     * missing from the provider and the directories are rescanned by the
+     * next incremental scan
+     */
+    public int getFailedWrites() {
+      return failedWrites;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("prescan %dms, scan %dms, postscan %dms, directories %d/%d, rows +%d ~%d -%d in %d batches, %d failed", prescanTime, scanTime, postscanTime, scannedDirectories, skippedDirectories, inserted, updated, deleted, batches, failedWrites);
+    }
+  }
+
+  /**
+   * Walks the directories on a pool of threads, each thread scans the files
+   * with its own worker {@link MediaScanner}, which shares the provider, the
+   * file cache and the fingerprints of this one but keeps its own native
+   * scanner, pending writes and counts.
+   */
+  private class ParallelScan {
+    private final ThreadPoolExecutor mExecutor;
+    private final ArrayList<MediaScanner> mWorkers = new ArrayList<MediaScanner>();
+    private final ThreadLocal<MediaScanner> mWorker = new ThreadLocal<MediaScanner>();
+    private final AtomicInteger mPending = new AtomicInteger();
+
+    ParallelScan(int threads) {
+      mExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+          return new Thread(r, "MediaScanner #" + mCount.incrementAndGet());
+        }
+      });
+    }
+
+    void submit(final File dir) {
+      mPending.incrementAndGet();
+      mExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            worker().scanDirectory(dir, ParallelScan.this);
+          } catch (RuntimeException e) {
+            Log.e("scanDirectory", e);
+          } finally {
+            if (mPending.decrementAndGet() == 0) {
+              synchronized (ParallelScan.this) {
+                ParallelScan.this.notifyAll();
+              }
+            }
+          }
+        }
+      });
+    }
+
+    private MediaScanner worker() {
+      MediaScanner worker = mWorker.get();
+      if (worker == null) {
+        worker = new MediaScanner(mContext);
+        worker.mProvider = mProvider;
+        worker.mCaseInsensitivePaths = mCaseInsensitivePaths;
+        worker.mFileIndex = mFileIndex;
+        worker.mFileCache = mFileCache;
+        worker.mOldFingerprints = mOldFingerprints;
+        worker.mNewFingerprints = mNewFingerprints;
+        worker.mBatchSize = mBatchSize;
+        worker.mBatching = mBatching;
+        worker.mNoMediaFolders = mNoMediaFolders;
+        worker.mResult = new ScanResult();
+        mWorker.set(worker);
+        synchronized (mWorkers) {
+          mWorkers.add(worker);
+        }
+      }
+      return worker;
+    }
+
+    /**
+     * Wait for all the directories, then write the pending rows of the
+     * workers and add up their counts.
+     */
+    void finish() throws RemoteException {
+      boolean interrupted = false;
+      synchronized (this) {
+        // the native scanners can't be released while a file is processed,
+        // so wait for the running ones even if interrupted
+        while (mPending.get() > 0) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+      }
+      mExecutor.shutdown();
+      try {
+        for (MediaScanner worker : mWorkers) {
+          worker.flush();
+          mScannedDirectories += worker.mScannedDirectories;
+          mSkippedDirectories += worker.mSkippedDirectories;
+          mResult.inserted += worker.mResult.inserted;
+          mResult.updated += worker.mResult.updated;
+          mResult.deleted += worker.mResult.deleted;
+          mResult.batches += worker.mResult.batches;
+          mResult.failedWrites += worker.mResult.failedWrites;
+        }
+      } finally {
+        for (MediaScanner worker : mWorkers)
+          worker.release();
+        if (interrupted)
+          Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static class DirFingerprint {
+    final long lastModified;
+    final int entryCount;
+    final String[] children;
+
+    DirFingerprint(long lastModified, int entryCount, String[] children) {
+      this.lastModified = lastModified;
+      this.entryCount = entryCount;
+      this.children = children;
+    }
+  }
+
   private class MyMediaScannerClient implements MediaScannerClient {
     private String mMimeType;
     private int mFileType;
@@ -268,12 +858,24 @@ public class MediaScanner {
       }
 
       String key = FileUtils.getCanonical(new File(path));
+      // the index folds the case itself, independent of the default locale
+      int index = mFileIndex.find(mCaseInsensitivePaths ? path : key);
       if (mCaseInsensitivePaths)
-        key = path.toLowerCase();
-      FileCacheEntry entry = mFileCache.get(key);
-      if (entry == null) {
-        entry = new FileCacheEntry(null, 0, path, 0);
-        mFileCache.put(key, entry);
+        key = path.toLowerCase(Locale.US);
+      FileCacheEntry entry;
+      if (index >= 0) {
+        // only the changes seen by the postscan are kept in the index
+        entry = new FileCacheEntry(Video.Media.CONTENT_URI, mFileIndex.getRowId(index), path, mFileIndex.getLastModified(index));
+        entry.mIndex = index;
+        mFileIndex.setSeen(index);
+      } else {
+        entry = mFileCache.get(key);
+        if (entry == null) {
+          entry = new FileCacheEntry(null, 0, path, 0);
+          FileCacheEntry existing = mFileCache.putIfAbsent(key, entry);
+          if (existing != null)
+            entry = existing;
+        }
       }
       entry.mSeenInFileSystem = true;
 
@@ -281,6 +883,8 @@ public class MediaScanner {
       if (delta > 1 || delta < -1) {
         entry.mLastModified = lastModified;
         entry.mLastModifiedChanged = true;
+        if (index >= 0)
+          mFileIndex.setLastModified(index, lastModified);
       }
 
       mPath = path;
@@ -304,15 +908,18 @@ public class MediaScanner {
         if (entry != null && (entry.mLastModifiedChanged || scanAlways)) {
           if (processFile(path, null)) {
             result = endFile(entry);
+          } else if (entry.mIndex >= 0) {
+            mFileIndex.remove(entry.mIndex);
           } else {
             if (mCaseInsensitivePaths)
-              mFileCache.remove(path.toLowerCase());
+              mFileCache.remove(path.toLowerCase(Locale.US));
             else
               mFileCache.remove(path);
           }
         }
       } catch (RemoteException e) {
         Log.e("RemoteException in MediaScanner.scanFile()", e);
+        mResult.failedWrites++;
       }
       return result;
     }
@@ -423,13 +1030,29 @@ public class MediaScanner {
       long rowId = entry.mRowId;
 
       Uri result = null;
-      if (rowId == 0) {
+      if (mBatching) {
+        // the row id of a new video is not needed any more in this scan
+        if (rowId == 0) {
+          mPendingInserts.add(values);
+          mResult.inserted++;
+          if (mPendingInserts.size() >= mBatchSize)
+            flush();
+        } else {
+          result = ContentUris.withAppendedId(tableUri, rowId);
+          mPendingOperations.add(ContentProviderOperation.newUpdate(result).withValues(values).build());
+          mResult.updated++;
+          if (mPendingOperations.size() >= mBatchSize)
+            flush();
+        }
+      } else if (rowId == 0) {
+        mResult.inserted++;
         result = mProvider.insert(tableUri, values);
         if (result != null) {
           rowId = ContentUris.parseId(result);
           entry.mRowId = rowId;
         }
       } else {
+        mResult.updated++;
         result = ContentUris.withAppendedId(tableUri, rowId);
         mProvider.update(result, values, null, null);
       }
@@ -438,10 +1061,19 @@ public class MediaScanner {
     }
 
     public void addNoMediaFolder(String path) {
+      if (mNoMediaFolders != null) {
+        // rows in this folder may still be pending in the batch of another
+        // worker, so it's hidden after all of them are written
+        mNoMediaFolders.add(path);
+        return;
+      }
       ContentValues values = new ContentValues();
       values.put(MediaStore.MediaColumns.DATA, "");
       String[] pathSpec = new String[]{path + '%'};
       try {
+        // the pending rows in this folder must be written before they are
+        // hidden
+        flush();
         mProvider.update(Video.Media.CONTENT_URI, values, MediaStore.MediaColumns.DATA + " LIKE ?", pathSpec);
       } catch (RemoteException e) {
         throw new RuntimeException();
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio;
+
+import android.content.Context;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import io.vov.vitamio.utils.ContextUtils;
+import io.vov.vitamio.utils.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Keeps the videos of some directories up to date by watching the file
+ * system instead of scanning them periodically.
+ * <p/>
+ * Every directory of the trees is watched by a {@link FileObserver}. The
+ * changed paths are collected until no event came for
+ * {@link #setDelay(long)}, then a written, moved or deleted video is scanned
+ * with {@link MediaScanner#scanSingleFile(String, String)}, and a created,
+ * moved or deleted directory with
+ * {@link MediaScanner#scanDirectories(String[])}, which only loads the known
+ * videos under the changed directories. The scans run on a background thread
+ * with its own {@link MediaScanner}.
+ * <p/>
+ * Each directory takes an inotify watch, which are limited per user by
+ * /proc/sys/fs/inotify/max_user_watches.
+ */
+public class MediaScannerWatcher {
+  private static final int EVENTS = FileObserver.CREATE | FileObserver.CLOSE_WRITE | FileObserver.DELETE | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+  /**
+   * The inotify flag set when the event is about a directory.
+   */
+  private static final int IN_ISDIR = 0x40000000;
+  private static final long DEFAULT_DELAY = 2000;
+
+  private final Context mContext;
+  private final String[] mDirectories;
+  private long mDelay = DEFAULT_DELAY;
+  private HandlerThread mThread;
+  private Handler mHandler;
+  // only touched on mThread
+  private MediaScanner mScanner;
+  private final HashMap<String, DirObserver> mObservers = new HashMap<String, DirObserver>();
+  // guarded by mPendingFiles
+  private final LinkedHashSet<String> mPendingFiles = new LinkedHashSet<String>();
+  private final LinkedHashSet<String> mPendingDirs = new LinkedHashSet<String>();
+
+  private final Runnable mFlush = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  public MediaScannerWatcher(Context ctx, String[] directories) {
+    mContext = ctx.getApplicationContext();
+    mDirectories = new String[directories.length];
+    for (int i = 0; i < directories.length; i++)
+      mDirectories[i] = ContextUtils.fixLastSlash(directories[i]);
+  }
+
+  /**
+   * Set how long to wait after the last event before scanning, a copy of a
+   * large video or a batch of files is scanned once.
+   *
+   * @param delay in milliseconds, 2000 by default
+   */
+  public void setDelay(long delay) {
+    mDelay = Math.max(0, delay);
+  }
+
+  public long getDelay() {
+    return mDelay;
+  }
+
+  public synchronized boolean isWatching() {
+    return mThread != null;
+  }
+
+  /**
+   * Start watching, the directories are not scanned, call
+   * {@link MediaScanner#scanDirectories(String[])} once before if the
+   * provider may be out of date.
+   */
+  public synchronized void start() {
+    if (mThread != null)
+      return;
+    mThread = new HandlerThread("MediaScannerWatcher", Process.THREAD_PRIORITY_BACKGROUND);
+    mThread.start();
+    mHandler = new Handler(mThread.getLooper());
+    mHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        mScanner = new MediaScanner(mContext);
+        for (String dir : mDirectories)
+          watchTree(new File(dir));
+        Log.d("MediaScannerWatcher: watching %d directories", mObservers.size());
+      }
+    });
+  }
+
+  /**
+   * Stop watching, the events not scanned yet are dropped.
+   */
+  public synchronized void stop() {
+    if (mThread == null)
+      return;
+    mHandler.removeCallbacks(mFlush);
+    mHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        for (DirObserver observer : mObservers.values())
+          observer.stopWatching();
+        mObservers.clear();
+        if (mScanner != null) {
+          mScanner.release();
+          mScanner = null;
+        }
+        synchronized (mPendingFiles) {
+          mPendingFiles.clear();
+          mPendingDirs.clear();
+        }
+        // quit here, quit() would drop this message
+        Looper.myLooper().quit();
+      }
+    });
+    mThread = null;
+    mHandler = null;
+  }
+
+  private void watchTree(File dir) {
+    String path = ContextUtils.fixLastSlash(dir.getPath());
+    if (!mObservers.containsKey(path)) {
+      DirObserver observer = new DirObserver(path);
+      mObservers.put(path, observer);
+      observer.startWatching();
+    }
+    File[] children = dir.listFiles();
+    if (children == null)
+      return;
+    for (File child : children) {
+      if (child.isDirectory())
+        watchTree(child);
+    }
+  }
+
+  private void unwatchTree(String dir) {
+    Iterator<DirObserver> it = mObservers.values().iterator();
+    while (it.hasNext()) {
+      DirObserver observer = it.next();
+      if (observer.mPath.startsWith(dir)) {
+        observer.stopWatching();
+        it.remove();
+      }
+    }
+  }
+
+  private void onEvent(String path, boolean isDir) {
+    synchronized (mPendingFiles) {
+      if (isDir)
+        mPendingDirs.add(ContextUtils.fixLastSlash(path));
+      else if (MediaFile.getFileType(path) != null)
+        mPendingFiles.add(path);
+      else
+        return;
+    }
+    synchronized (this) {
+      if (mHandler != null) {
+        // restart the delay, so a burst of events is scanned once
+        mHandler.removeCallbacks(mFlush);
+        mHandler.postDelayed(mFlush, mDelay);
+      }
+    }
+  }
+
+  private void flush() {
+    String[] dirs;
+    ArrayList<String> files;
+    synchronized (mPendingFiles) {
+      dirs = mPendingDirs.toArray(new String[mPendingDirs.size()]);
+      files = new ArrayList<String>(mPendingFiles);
+      mPendingDirs.clear();
+      mPendingFiles.clear();
+    }
+    if (mScanner == null)
+      return;
+
+    for (String dir : dirs) {
+      File file = new File(dir);
+      if (file.isDirectory())
+        watchTree(file);
+      else
+        unwatchTree(dir);
+    }
+    if (dirs.length > 0) {
+      // the rows of a removed directory are deleted by the postscan
+      mScanner.scanDirectories(dirs.clone());
+    }
+    for (String file : files) {
+      if (!inDirectory(file, dirs))
+        mScanner.scanSingleFile(file, null);
+    }
+    Log.d("MediaScannerWatcher: scanned %d directories, %d files", dirs.length, files.size());
+  }
+
+  private static boolean inDirectory(String path, String[] dirs) {
+    for (String dir : dirs) {
+      if (path.startsWith(dir))
+        return true;
+    }
+    return false;
+  }
+
+  private class DirObserver extends FileObserver {
+    final String mPath;
+
+    DirObserver(String path) {
+      super(path, EVENTS);
+      mPath = path;
+    }
+
+    @Override
+    public void onEvent(int event, String path) {
+      if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+        MediaScannerWatcher.this.onEvent(mPath, true);
+        return;
+      }
+      if (path == null)
+        return;
+      boolean isDir = (event & IN_ISDIR) != 0;
+      // a new file is scanned when it's closed, not when it's created
+      if (!isDir && (event & FileObserver.ALL_EVENTS) == FileObserver.CREATE)
+        return;
+      MediaScannerWatcher.this.onEvent(mPath + path, isDir);
+    }
+  }
+}
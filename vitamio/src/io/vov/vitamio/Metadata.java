@@ -63,100 +63,107 @@ public class Metadata {
   public static final int SEEK_AVAILABLE = 32; // Boolean
   private static final int LAST_SYSTEM = 32;
   private static final int FIRST_CUSTOM = 8192;
+
+  private static final String[] KEY_NAMES = {"title", "comment", "copyright", "album", "artist", "author", "composer", "genre", "creation_time", "date", "duration", "length", "bit_rate", "audio_bit_rate", "video_bit_rate", "audio_sample_rate", "video_frame_rate", "format", "audio_codec", "video_codec", "video_height", "video_width", "num_tracks", "cap_pause", "cap_seek"};
+  private static final int[] KEY_IDS = {TITLE, COMMENT, COPYRIGHT, ALBUM, ARTIST, AUTHOR, COMPOSER, GENRE, DATE, DATE, DURATION, LENGTH, BIT_RATE, AUDIO_BIT_RATE, VIDEO_BIT_RATE, AUDIO_SAMPLE_RATE, VIDEO_FRAME_RATE, MIME_TYPE, AUDIO_CODEC, VIDEO_CODEC, VIDEO_HEIGHT, VIDEO_WIDTH, NUM_TRACKS, PAUSE_AVAILABLE, SEEK_AVAILABLE};
+  /**
+   * Open addressing table of the key names, the slots hold index + 1 of
+   * {@link #KEY_NAMES}, so a key is found from its raw bytes without decoding.
+   */
+  private static final int[] KEY_TABLE = new int[64];
+  private static final byte[][] KEY_BYTES = new byte[KEY_NAMES.length][];
+
+  static {
+    for (int i = 0; i < KEY_NAMES.length; i++) {
+      KEY_BYTES[i] = KEY_NAMES[i].getBytes();
+      int slot = hash(KEY_BYTES[i], 0, KEY_BYTES[i].length) & (KEY_TABLE.length - 1);
+      while (KEY_TABLE[slot] != 0)
+        slot = (slot + 1) & (KEY_TABLE.length - 1);
+      KEY_TABLE[slot] = i + 1;
+    }
+  }
+
   private SparseArray<byte[]> mMeta = new SparseArray<byte[]>();
+  // the values decoded so far, a String or the number or Boolean parsed from it
+  private SparseArray<String> mStrings = new SparseArray<String>();
+  private SparseArray<Object> mTyped = new SparseArray<Object>();
   private String mEncoding = "UTF-8";
 
+  /**
+   * Only find the ids of the keys, the values are decoded when they are got.
+   */
   public boolean parse(Map<byte[], byte[]> meta, String encoding) {
-    String key = null;
-    byte[] value = null;
     mEncoding = encoding;
-    for (byte[] keyBytes : meta.keySet()) {
-      try {
-        key = new String(keyBytes, mEncoding).trim().toLowerCase(Locale.US);
-      } catch (UnsupportedEncodingException e) {
-        key = new String(keyBytes).trim().toLowerCase(Locale.US);
-      }
-      value = meta.get(keyBytes);
-      if (key.equals("title")) {
-        mMeta.put(TITLE, value);
-      } else if (key.equals("comment")) {
-        mMeta.put(COMMENT, value);
-      } else if (key.equals("copyright")) {
-        mMeta.put(COPYRIGHT, value);
-      } else if (key.equals("album")) {
-        mMeta.put(ALBUM, value);
-      } else if (key.equals("artist")) {
-        mMeta.put(ARTIST, value);
-      } else if (key.equals("author")) {
-        mMeta.put(AUTHOR, value);
-      } else if (key.equals("composer")) {
-        mMeta.put(COMPOSER, value);
-      } else if (key.equals("genre")) {
-        mMeta.put(GENRE, value);
-      } else if (key.equals("creation_time") || key.equals("date")) {
-        mMeta.put(DATE, value);
-      } else if (key.equals("duration")) {
-        mMeta.put(DURATION, value);
-      } else if (key.equals("length")) {
-        mMeta.put(LENGTH, value);
-      } else if (key.equals("bit_rate")) {
-        mMeta.put(BIT_RATE, value);
-      } else if (key.equals("audio_bit_rate")) {
-        mMeta.put(AUDIO_BIT_RATE, value);
-      } else if (key.equals("video_bit_rate")) {
-        mMeta.put(VIDEO_BIT_RATE, value);
-      } else if (key.equals("audio_sample_rate")) {
-        mMeta.put(AUDIO_SAMPLE_RATE, value);
-      } else if (key.equals("video_frame_rate")) {
-        mMeta.put(VIDEO_FRAME_RATE, value);
-      } else if (key.equals("format")) {
-        mMeta.put(MIME_TYPE, value);
-      } else if (key.equals("audio_codec")) {
-        mMeta.put(AUDIO_CODEC, value);
-      } else if (key.equals("video_codec")) {
-        mMeta.put(VIDEO_CODEC, value);
-      } else if (key.equals("video_height")) {
-        mMeta.put(VIDEO_HEIGHT, value);
-      } else if (key.equals("video_width")) {
-        mMeta.put(VIDEO_WIDTH, value);
-      } else if (key.equals("num_tracks")) {
-        mMeta.put(NUM_TRACKS, value);
-      } else if (key.equals("cap_pause")) {
-        mMeta.put(PAUSE_AVAILABLE, value);
-      } else if (key.equals("cap_seek")) {
-        mMeta.put(SEEK_AVAILABLE, value);
-      }
+    boolean asciiKeys = isAsciiCompatible(encoding);
+    for (Map.Entry<byte[], byte[]> entry : meta.entrySet()) {
+      byte[] keyBytes = entry.getKey();
+      int id = asciiKeys ? findKey(keyBytes) : findKey(decodeKey(keyBytes));
+      if (id != ANY)
+        mMeta.put(id, entry.getValue());
     }
 
-    if (BuildConfig.DEBUG) {
-      android.util.Log.i("Vitamio[Metadata]", "title:\t\t" + getString(TITLE));
-      android.util.Log.i("Vitamio[Metadata]", "comment:\t\t" + getString(COMMENT));
-      android.util.Log.i("Vitamio[Metadata]", "copyright:\t\t" + getString(COPYRIGHT));
-      android.util.Log.i("Vitamio[Metadata]", "album:\t\t" + getString(ALBUM));
-      android.util.Log.i("Vitamio[Metadata]", "artist:\t\t" + getString(ARTIST));
-      android.util.Log.i("Vitamio[Metadata]", "composer:\t\t" + getString(COMPOSER));
-      android.util.Log.i("Vitamio[Metadata]", "genre:\t\t" + getString(GENRE));
-      android.util.Log.i("Vitamio[Metadata]", "date:\t\t" + getString(DATE));
-      android.util.Log.i("Vitamio[Metadata]", "duration:\t\t" + getLong(DURATION));
-      android.util.Log.i("Vitamio[Metadata]", "length:\t\t" + getLong(LENGTH));
-      android.util.Log.i("Vitamio[Metadata]", "bit_rate:\t\t" + getInt(BIT_RATE));
-      android.util.Log.i("Vitamio[Metadata]", "audio_bit_rate:\t" + getInt(AUDIO_BIT_RATE));
-      android.util.Log.i("Vitamio[Metadata]", "video_bit_rate:\t" + getInt(VIDEO_BIT_RATE));
-      android.util.Log.i("Vitamio[Metadata]", "audio_sample_rate:\t" + getInt(AUDIO_SAMPLE_RATE));
-      android.util.Log.i("Vitamio[Metadata]", "video_frame_rate:\t" + getDouble(VIDEO_FRAME_RATE));
-      android.util.Log.i("Vitamio[Metadata]", "format:\t\t" + getString(MIME_TYPE));
-      android.util.Log.i("Vitamio[Metadata]", "audio_codec:\t" + getString(AUDIO_CODEC));
-      android.util.Log.i("Vitamio[Metadata]", "video_codec:\t" + getString(VIDEO_CODEC));
-      android.util.Log.i("Vitamio[Metadata]", "video_height:\t" + getInt(VIDEO_HEIGHT));
-      android.util.Log.i("Vitamio[Metadata]", "video_width:\t" + getInt(VIDEO_WIDTH));
-      android.util.Log.i("Vitamio[Metadata]", "num_tracks:\t\t" + getInt(NUM_TRACKS));
-      android.util.Log.i("Vitamio[Metadata]", "cap_pause:\t\t" + getBoolean(PAUSE_AVAILABLE));
-      android.util.Log.i("Vitamio[Metadata]", "cap_seek:\t\t" + getBoolean(SEEK_AVAILABLE));
-    }
+    if (BuildConfig.DEBUG)
+      android.util.Log.i("Vitamio[Metadata]", "parsed " + mMeta.size() + " of " + meta.size() + " keys");
 
     return true;
   }
 
+  private static boolean isAsciiCompatible(String encoding) {
+    return encoding == null || !encoding.toUpperCase(Locale.US).startsWith("UTF-16") && !encoding.toUpperCase(Locale.US).startsWith("UTF-32");
+  }
+
+  /**
+   * The hash of the trimmed key, the ASCII letters are lower cased.
+   */
+  private static int hash(byte[] key, int start, int end) {
+    int hash = 0;
+    for (int i = start; i < end; i++)
+      hash = 31 * hash + lower(key[i]);
+    return hash ^ (hash >>> 16);
+  }
+
+  private static byte lower(byte b) {
+    return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+  }
+
+  private static int findKey(byte[] key) {
+    int start = 0;
+    int end = key.length;
+    while (start < end && (key[start] & 0xff) <= ' ')
+      start++;
+    while (end > start && (key[end - 1] & 0xff) <= ' ')
+      end--;
+    int mask = KEY_TABLE.length - 1;
+    for (int slot = hash(key, start, end) & mask; KEY_TABLE[slot] != 0; slot = (slot + 1) & mask) {
+      int index = KEY_TABLE[slot] - 1;
+      byte[] name = KEY_BYTES[index];
+      if (name.length != end - start)
+        continue;
+      int i = 0;
+      while (i < name.length && name[i] == lower(key[start + i]))
+        i++;
+      if (i == name.length)
+        return KEY_IDS[index];
+    }
+    return ANY;
+  }
+
+  private static int findKey(String key) {
+    for (int i = 0; i < KEY_NAMES.length; i++) {
+      if (KEY_NAMES[i].equals(key))
+        return KEY_IDS[i];
+    }
+    return ANY;
+  }
+
+  private String decodeKey(byte[] keyBytes) {
+    try {
+      return new String(keyBytes, mEncoding).trim().toLowerCase(Locale.US);
+    } catch (UnsupportedEncodingException e) {
+      return new String(keyBytes).trim().toLowerCase(Locale.US);
+    }
+  }
+
   public boolean has(final int metadataId) {
     if (!checkMetadataId(metadataId)) {
       throw new IllegalArgumentException("Invalid key: " + metadataId);
@@ -164,47 +171,70 @@ public class Metadata {
     return mMeta.indexOfKey(metadataId) >= 0;
   }
 
-  public String getString(final int key) {
+  public synchronized String getString(final int key) {
+    String string = mStrings.get(key);
+    if (string != null)
+      return string;
     byte[] value = mMeta.get(key);
     if (value == null) {
       return null;
     }
     try {
-      return new String(value, mEncoding);
+      string = new String(value, mEncoding);
     } catch (UnsupportedEncodingException e) {
-      return new String(value);
+      string = new String(value);
     }
+    mStrings.put(key, string);
+    return string;
   }
 
   public int getInt(final int key) {
-    try {
-      return Integer.parseInt(getString(key));
-    } catch (Exception e) {
+    Long value = getTyped(key, Long.class);
+    if (value == null || value.longValue() != value.intValue())
       return -1;
-    }
+    return value.intValue();
   }
 
   public boolean getBoolean(final int key) {
-    try {
-      return Boolean.parseBoolean(getString(key));
-    } catch (Exception e) {
-      return false;
-    }
+    Boolean value = getTyped(key, Boolean.class);
+    return value == null ? false : value.booleanValue();
   }
 
   public long getLong(final int key) {
-    try {
-      return Long.parseLong(getString(key));
-    } catch (Exception e) {
-      return -1;
-    }
+    Long value = getTyped(key, Long.class);
+    return value == null ? -1 : value.longValue();
   }
 
   public double getDouble(final int key) {
+    Double value = getTyped(key, Double.class);
+    return value == null ? -1 : value.doubleValue();
+  }
+
+  /**
+   * @return the value parsed as the type, null if it's absent or invalid
+   */
+  private synchronized <T> T getTyped(final int key, Class<T> type) {
+    Object value = mTyped.get(key);
+    if (!type.isInstance(value)) {
+      value = parseTyped(getString(key), type);
+      if (value == null)
+        return null;
+      mTyped.put(key, value);
+    }
+    return type.cast(value);
+  }
+
+  private static Object parseTyped(String string, Class<?> type) {
+    if (string == null)
+      return null;
     try {
-      return Double.parseDouble(getString(key));
-    } catch (Exception e) {
-      return -1;
+      if (type == Long.class)
+        return Long.valueOf(string);
+      if (type == Double.class)
+        return Double.valueOf(string);
+      return Boolean.valueOf(string);
+    } catch (NumberFormatException e) {
+      return null;
     }
   }
 
@@ -212,6 +242,17 @@ public class Metadata {
     return mMeta.get(key);
   }
 
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder("Metadata{");
+    for (int i = 0; i < mMeta.size(); i++) {
+      if (i > 0)
+        builder.append(", ");
+      builder.append(mMeta.keyAt(i)).append('=').append(getString(mMeta.keyAt(i)));
+    }
+    return builder.append('}').toString();
+  }
+
   private boolean checkMetadataId(final int val) {
     if (val <= ANY || (LAST_SYSTEM < val && val < FIRST_CUSTOM)) {
       return false;
@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio;
+
+import io.vov.vitamio.MediaPlayer.OnCachingUpdateListener;
+import io.vov.vitamio.utils.IOUtils;
+import io.vov.vitamio.utils.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Manages the cache directory given to
+ * {@link MediaPlayer#setDataSegments(String[], String)}.
+ * <p/>
+ * Every list of segments is cached in its own sub directory, named by the
+ * hash of the urls, so the segments cached by a session are found again when
+ * the same video is played later. The files are indexed with their size and
+ * last access time. The native player doesn't report which segments it reads,
+ * so a closed session makes its directory the most recently used, and the
+ * files within it keep the order they were written in. The index is saved in
+ * the root directory, and the least recently used files of the sessions not
+ * playing are deleted when the cache is over its size budget.
+ * <p/>
+ * <pre>
+ * mCacheManager.setDataSegments(mp, uris, listener);
+ * ...
+ * mCacheManager.close(mp);
+ * mp.release();
+ * </pre>
+ */
+public class SegmentCacheManager {
+  private static final String INDEX_FILE = "segments.idx";
+
+  private final File mRoot;
+  private long mMaxSize;
+  // relative path to entry
+  private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+  private long mSize;
+  private final HashMap<MediaPlayer, Session> mSessions = new HashMap<MediaPlayer, Session>();
+
+  private long mBytesCachedAtOpen;
+  private long mBytesDownloaded;
+  private int mSpeedEvents;
+  private long mSpeedSum;
+  private int mLastSpeed;
+
+  public SegmentCacheManager(File root, long maxSize) {
+    mRoot = root;
+    mMaxSize = maxSize;
+    mRoot.mkdirs();
+    loadIndex();
+  }
+
+  public synchronized void setMaxSize(long maxSize) {
+    mMaxSize = maxSize;
+    trimToSize();
+    saveIndex();
+  }
+
+  public synchronized long getMaxSize() {
+    return mMaxSize;
+  }
+
+  public synchronized long getSize() {
+    return mSize;
+  }
+
+  /**
+   * Set the segments of the player with the cache directory of these urls, and
+   * start recording the statistics of this session.
+   *
+   * @param listener called with the caching events, may be null
+   */
+  public synchronized void setDataSegments(MediaPlayer mp, String[] uris, final OnCachingUpdateListener listener) {
+    close(mp);
+    String dirName = hash(uris);
+    File dir = new File(mRoot, dirName);
+    dir.mkdirs();
+
+    Session session = new Session(dirName);
+    for (Entry entry : mEntries.values()) {
+      if (entry.dir.equals(dirName))
+        session.cachedBytes += entry.size;
+    }
+    mSessions.put(mp, session);
+    Log.d("SegmentCacheManager: %s has %d bytes cached", dirName, session.cachedBytes);
+
+    mp.setOnCachingUpdateListener(new OnCachingUpdateListener() {
+      @Override
+      public void onCachingUpdate(MediaPlayer mp, long[] segments) {
+        if (listener != null)
+          listener.onCachingUpdate(mp, segments);
+      }
+
+      @Override
+      public void onCachingSpeed(MediaPlayer mp, int speed) {
+        onSpeed(speed);
+        if (listener != null)
+          listener.onCachingSpeed(mp, speed);
+      }
+
+      @Override
+      public void onCachingNotAvailable(MediaPlayer mp, int info) {
+        if (listener != null)
+          listener.onCachingNotAvailable(mp, info);
+      }
+    });
+    mp.setDataSegments(uris, dir.getPath());
+  }
+
+  /**
+   * End the session of the player, index the files it cached and evict the
+   * old ones if the cache is full. Call it before the player is reset or
+   * released.
+   */
+  public synchronized void close(MediaPlayer mp) {
+    Session session = mSessions.remove(mp);
+    if (session == null)
+      return;
+    long before = 0;
+    for (Entry entry : mEntries.values()) {
+      if (entry.dir.equals(session.dir))
+        before += entry.size;
+    }
+    long after = indexDirectory(session.dir);
+    mBytesCachedAtOpen += session.cachedBytes;
+    mBytesDownloaded += Math.max(0, after - before);
+    touchDirectory(session.dir, System.currentTimeMillis());
+    trimToSize();
+    saveIndex();
+  }
+
+  /**
+   * The native player doesn't report the bytes it reads, so this is not the
+   * part of the played bytes read from the disk: a cached video closed after a
+   * second counts all its cached bytes.
+   *
+   * @return the part of the bytes of the sessions closed so far which were
+   * already cached when they were opened
+   */
+  public synchronized float getCachedAtOpenRatio() {
+    long total = mBytesCachedAtOpen + mBytesDownloaded;
+    return total == 0 ? 0 : (float) mBytesCachedAtOpen / total;
+  }
+
+  /**
+   * @return the bytes cached when the sessions closed so far were opened,
+   * played or not
+   */
+  public synchronized long getBytesCachedAtOpen() {
+    return mBytesCachedAtOpen;
+  }
+
+  public synchronized long getBytesDownloaded() {
+    return mBytesDownloaded;
+  }
+
+  /**
+   * @return the count of caching speed callbacks, the
+   * {@link MediaPlayer#CACHE_TYPE_SPEED} events are merged by the player to
+   * at most one callback per 16ms, so this may be less than the events
+   */
+  public synchronized int getSpeedEventCount() {
+    return mSpeedEvents;
+  }
+
+  /**
+   * @return the last caching speed in kb/s
+   */
+  public synchronized int getLastSpeed() {
+    return mLastSpeed;
+  }
+
+  /**
+   * @return the average caching speed of the callbacks in kb/s
+   */
+  public synchronized int getAverageSpeed() {
+    return mSpeedEvents == 0 ? 0 : (int) (mSpeedSum / mSpeedEvents);
+  }
+
+  /**
+   * Delete the files of the sessions not playing.
+   */
+  public synchronized void clear() {
+    long maxSize = mMaxSize;
+    mMaxSize = 0;
+    trimToSize();
+    mMaxSize = maxSize;
+    saveIndex();
+  }
+
+  private synchronized void onSpeed(int speed) {
+    mSpeedEvents++;
+    mSpeedSum += speed;
+    mLastSpeed = speed;
+  }
+
+  /**
+   * Update the entries of a directory from the disk, each file keeps its own
+   * access time so the directory is evicted segment by segment.
+   *
+   * @return the bytes in the directory
+   */
+  private long indexDirectory(String dirName) {
+    HashMap<String, Long> accessTimes = new HashMap<String, Long>();
+    Iterator<Entry> it = mEntries.values().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (entry.dir.equals(dirName)) {
+        accessTimes.put(entry.name, entry.lastAccess);
+        mSize -= entry.size;
+        it.remove();
+      }
+    }
+    long bytes = 0;
+    File[] files = new File(mRoot, dirName).listFiles();
+    if (files == null)
+      return 0;
+    for (File file : files) {
+      if (!file.isFile())
+        continue;
+      long lastAccess = file.lastModified();
+      Long old = accessTimes.get(file.getName());
+      if (old != null && old > lastAccess)
+        lastAccess = old;
+      Entry entry = new Entry(dirName, file.getName(), file.length(), lastAccess);
+      mEntries.put(entry.path(), entry);
+      mSize += entry.size;
+      bytes += entry.size;
+    }
+    return bytes;
+  }
+
+  /**
+   * Make a directory the most recently used, its files are shifted by the same
+   * delta so they keep their order within the directory. A replay doesn't
+   * rewrite the segments, their modified times are the download times.
+   */
+  private void touchDirectory(String dirName, long now) {
+    long newest = Long.MIN_VALUE;
+    for (Entry entry : mEntries.values()) {
+      if (entry.dir.equals(dirName))
+        newest = Math.max(newest, entry.lastAccess);
+    }
+    if (newest == Long.MIN_VALUE || newest >= now)
+      return;
+    long delta = now - newest;
+    for (Entry entry : mEntries.values()) {
+      if (entry.dir.equals(dirName))
+        entry.lastAccess += delta;
+    }
+  }
+
+  private void trimToSize() {
+    if (mSize <= mMaxSize)
+      return;
+    HashSet<String> playing = new HashSet<String>();
+    for (Session session : mSessions.values())
+      playing.add(session.dir);
+    List<Entry> entries = new ArrayList<Entry>(mEntries.values());
+    Collections.sort(entries, new Comparator<Entry>() {
+      @Override
+      public int compare(Entry lhs, Entry rhs) {
+        if (lhs.lastAccess != rhs.lastAccess)
+          return lhs.lastAccess < rhs.lastAccess ? -1 : 1;
+        // the files written in the same second of a coarse clock
+        return lhs.path().compareTo(rhs.path());
+      }
+    });
+    for (Entry entry : entries) {
+      if (mSize <= mMaxSize)
+        break;
+      // the native player may be writing them
+      if (playing.contains(entry.dir))
+        continue;
+      new File(mRoot, entry.path()).delete();
+      mEntries.remove(entry.path());
+      mSize -= entry.size;
+    }
+  }
+
+  private void loadIndex() {
+    HashMap<String, Long> accessTimes = new HashMap<String, Long>();
+    BufferedReader reader = null;
+    try {
+      reader = new BufferedReader(new FileReader(new File(mRoot, INDEX_FILE)));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int tab = line.lastIndexOf('\t');
+        if (tab > 0)
+          accessTimes.put(line.substring(0, tab), Long.parseLong(line.substring(tab + 1)));
+      }
+    } catch (IOException e) {
+      // no index yet
+    } catch (NumberFormatException e) {
+      Log.e("SegmentCacheManager: bad index", e);
+    } finally {
+      IOUtils.closeSilently(reader);
+    }
+
+    // the disk is the truth, the index only keeps the access order
+    File[] dirs = mRoot.listFiles();
+    if (dirs != null) {
+      for (File dir : dirs) {
+        File[] files = dir.listFiles();
+        if (files == null)
+          continue;
+        for (File file : files) {
+          String path = dir.getName() + "/" + file.getName();
+          Long lastAccess = accessTimes.get(path);
+          Entry entry = new Entry(dir.getName(), file.getName(), file.length(), lastAccess == null ? file.lastModified() : lastAccess);
+          mEntries.put(path, entry);
+          mSize += entry.size;
+        }
+      }
+    }
+    trimToSize();
+    Log.d("SegmentCacheManager: %d files, %d bytes", mEntries.size(), mSize);
+  }
+
+  private void saveIndex() {
+    File file = new File(mRoot, INDEX_FILE);
+    File temp = new File(mRoot, INDEX_FILE + ".tmp");
+    FileWriter writer = null;
+    try {
+      writer = new FileWriter(temp);
+      for (Map.Entry<String, Entry> entry : mEntries.entrySet())
+        writer.write(entry.getKey() + "\t" + entry.getValue().lastAccess + "\n");
+      writer.close();
+      writer = null;
+      if (!temp.renameTo(file))
+        Log.e("SegmentCacheManager: can't rename %s", temp);
+    } catch (IOException e) {
+      Log.e("SegmentCacheManager: save index", e);
+    } finally {
+      IOUtils.closeSilently(writer);
+    }
+  }
+
+  private static String hash(String[] uris) {
+    StringBuilder joined = new StringBuilder();
+    for (String uri : uris)
+      joined.append(uri).append('\n');
+    try {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(joined.toString().getBytes());
+      StringBuilder builder = new StringBuilder(digest.length * 2);
+      for (byte b : digest)
+        builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      return builder.toString();
+    } catch (NoSuchAlgorithmException e) {
+      return Integer.toHexString(joined.toString().hashCode());
+    }
+  }
+
+  private static class Entry {
+    final String dir;
+    final String name;
+    final long size;
+    long lastAccess;
+
+    Entry(String dir, String name, long size, long lastAccess) {
+      this.dir = dir;
+      this.name = name;
+      this.size = size;
+      this.lastAccess = lastAccess;
+    }
+
+    String path() {
+      return dir + "/" + name;
+    }
+  }
+
+  private static class Session {
+    final String dir;
+    long cachedBytes;
+
+    Session(String dir) {
+      this.dir = dir;
+    }
+  }
+}
@@ -17,23 +17,34 @@
 package io.vov.vitamio;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
+import android.os.FileObserver;
 
 import io.vov.vitamio.utils.CPU;
 import io.vov.vitamio.utils.ContextUtils;
 import io.vov.vitamio.utils.IOUtils;
 import io.vov.vitamio.utils.Log;
+import io.vov.vitamio.utils.Tracer;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
 
 /**
  * Inspect this class before using any other Vitamio classes.
@@ -48,6 +59,10 @@ public class Vitamio {
   private static final String[] LIBS_SCANNER = {"libvscanner.so"};
   private static final String[] LIBS_AV = {"libvao.0.so", "libvvo.0.so", "libvvo.9.so", "libvvo.j.so"};
   private static final String LIBS_LOCK = ".lock";
+  private static final String LIBS_MANIFEST = ".manifest";
+  private static final String LIBS_COMPRESSED = "libarm.so";
+  private static final String LIBS_COMPRESSED_MARK = ".libarm";
+  private static final int COPY_CHUNK_SIZE = 256 * 1024;
   private static final int VITAMIO_NOT_SUPPORTED = -1;
   private static final int VITAMIO_MIPS = 40;
   private static final int VITAMIO_X86 = 50;
@@ -77,6 +92,11 @@ public class Vitamio {
 
   private static String vitamioPackage;
   private static String vitamioLibraryPath;
+  private static volatile boolean initialized;
+  private static FileObserver libsObserver;
+  private static long copyTime = -1;
+  private static long unpackTime = -1;
+  private static long verifyTime = -1;
 
   /**
    * Call this method before using any other Vitamio specific classes.
@@ -88,7 +108,7 @@ public class Vitamio {
    * @return true if the Vitamio initialized successfully.
    */
   public static boolean initialize(Context ctx) {
-    return isInitialized(ctx) || extractLibs(ctx, R.raw.libarm);
+    return initialize(ctx, R.raw.libarm);
   }
 
   /**
@@ -99,7 +119,12 @@ public class Vitamio {
    * @return true if the Vitamio initialized successfully.
    */
   public static boolean initialize(Context ctx, int rawId) {
-    return isInitialized(ctx) || extractLibs(ctx, rawId);
+    Tracer.beginSection("Vitamio.initialize");
+    try {
+      return isInitialized(ctx) || extractLibs(ctx, rawId);
+    } finally {
+      Tracer.endSection("Vitamio.initialize");
+    }
   }
 
   /**
@@ -109,8 +134,37 @@ public class Vitamio {
    * @return true if the Vitamio has been initialized.
    */
   public static boolean isInitialized(Context ctx) {
+    if (initialized)
+      return true;
     vitamioPackage = ctx.getPackageName();
     vitamioLibraryPath = ContextUtils.getDataDir(ctx) + "libs/";
+    if (checkInitialized(ctx)) {
+      watchLibs();
+      initialized = true;
+    }
+    return initialized;
+  }
+
+  /**
+   * The version code can't change without restarting the process, so the
+   * result only needs to be checked again when the lock file is changed.
+   */
+  private static synchronized void watchLibs() {
+    if (libsObserver != null)
+      return;
+    libsObserver = new FileObserver(getLibraryPath(), FileObserver.MODIFY | FileObserver.DELETE | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF) {
+      @Override
+      public void onEvent(int event, String path) {
+        if (path == null || LIBS_LOCK.equals(path) || (event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+          Log.d("Native libs changed, check again");
+          initialized = false;
+        }
+      }
+    };
+    libsObserver.startWatching();
+  }
+
+  private static boolean checkInitialized(Context ctx) {
     File dir = new File(getLibraryPath());
     if (dir.exists() && dir.isDirectory()) {
       String[] libs = dir.list();
@@ -155,6 +209,30 @@ public class Vitamio {
     return vitamioLibraryPath;
   }
 
+  /**
+   * Time in milliseconds spent to copy the compressed libs out of the APK by
+   * the last initialization, 0 if the copy was resumed, -1 if not run.
+   */
+  public static long getCopyTime() {
+    return copyTime;
+  }
+
+  /**
+   * Time in milliseconds spent to unpack the native libs by the last
+   * initialization, 0 if the unpack was resumed, -1 if not run.
+   */
+  public static long getUnpackTime() {
+    return unpackTime;
+  }
+
+  /**
+   * Time in milliseconds spent to verify or write the libs manifest by the
+   * last initialization, -1 if not run.
+   */
+  public static long getVerifyTime() {
+    return verifyTime;
+  }
+
   private static final List<String> getRequiredLibs() {
     List<String> libs = new ArrayList<String>();
     String[][] vitamioLibs = null;
@@ -184,17 +262,60 @@ public class Vitamio {
     return libs;
   }
 
+  /**
+   * Extract the native libs in stages, every stage leaves a checksum so that
+   * an extraction killed halfway can be resumed from the last finished stage:
+   * <ol>
+   * <li>copy R.raw.libarm to {@link #LIBS_COMPRESSED}, marked by
+   * {@link #LIBS_COMPRESSED_MARK}</li>
+   * <li>unpack the libs of {@link #getVitamioType()}, marked by
+   * {@link #LIBS_MANIFEST}</li>
+   * <li>write the {@link #LIBS_LOCK}</li>
+   * </ol>
+   */
   private static boolean extractLibs(Context ctx, int rawID) {
     long begin = System.currentTimeMillis();
     final int version = ContextUtils.getVersionCode(ctx);
     Log.d("loadLibs start " + version);
+    copyTime = unpackTime = verifyTime = -1;
     File lock = new File(getLibraryPath() + LIBS_LOCK);
+    initialized = false;
     if (lock.exists())
       lock.delete();
-    String libPath = copyCompressedLib(ctx, rawID, "libarm.so");
-    Log.d("copyCompressedLib time: " + (System.currentTimeMillis() - begin) / 1000.0);
-    boolean inited = native_initializeLibs(libPath, getLibraryPath(), String.valueOf(Vitamio.getVitamioType()));
-    new File(libPath).delete();
+
+    long stage = System.currentTimeMillis();
+    boolean inited = verifyManifest(version);
+    verifyTime = System.currentTimeMillis() - stage;
+    if (inited) {
+      Log.d("native libs verified, skip unpack");
+      copyTime = unpackTime = 0;
+    } else {
+      stage = System.currentTimeMillis();
+      String libPath = getLibraryPath() + LIBS_COMPRESSED;
+      if (verifyCompressedLib(libPath, version)) {
+        Log.d("compressed lib verified, skip copy");
+        copyTime = 0;
+      } else {
+        libPath = copyCompressedLib(ctx, rawID, LIBS_COMPRESSED, version);
+        copyTime = System.currentTimeMillis() - stage;
+      }
+      Log.d("copyCompressedLib time: " + copyTime / 1000.0);
+      if (libPath == null)
+        return false;
+
+      stage = System.currentTimeMillis();
+      inited = native_initializeLibs(libPath, getLibraryPath(), String.valueOf(Vitamio.getVitamioType()));
+      unpackTime = System.currentTimeMillis() - stage;
+      Log.d("initializeNativeLibs time: " + unpackTime / 1000.0);
+      if (inited) {
+        stage = System.currentTimeMillis();
+        writeManifest(version);
+        verifyTime += System.currentTimeMillis() - stage;
+        new File(libPath).delete();
+        new File(getLibraryPath() + LIBS_COMPRESSED_MARK).delete();
+      }
+    }
+
     FileWriter fw = null;
     try {
       lock.createNewFile();
@@ -211,49 +332,184 @@ public class Vitamio {
     return false;
   }
 
-  private static String copyCompressedLib(Context ctx, int rawID, String destName) {
-    byte[] buffer = new byte[1024];
+  /**
+   * Copy the raw resource in large chunks through {@link FileChannel}, the
+   * file is written to a temporary name and renamed when the copy completed.
+   *
+   * @return the path of the copied file, null if failed.
+   */
+  private static String copyCompressedLib(Context ctx, int rawID, String destName, int version) {
+    String destDir = getLibraryPath();
+    String destPath = destDir + destName;
+    File f = new File(destDir);
+    if (f.exists() && !f.isDirectory())
+      f.delete();
+    if (!f.exists())
+      f.mkdirs();
+    File tmp = new File(destPath + ".tmp");
+    tmp.delete();
+    new File(destDir + LIBS_COMPRESSED_MARK).delete();
+
+    AssetFileDescriptor afd = null;
     InputStream is = null;
-    BufferedInputStream bis = null;
     FileOutputStream fos = null;
-    String destPath = null;
-
     try {
+      fos = new FileOutputStream(tmp);
+      FileChannel out = fos.getChannel();
+      long position = 0;
       try {
-        String destDir = getLibraryPath();
-        destPath = destDir + destName;
-        File f = new File(destDir);
-        if (f.exists() && !f.isDirectory())
-          f.delete();
-        if (!f.exists())
-          f.mkdirs();
-        f = new File(destPath);
-        if (f.exists() && !f.isFile())
-          f.delete();
-        if (!f.exists())
-          f.createNewFile();
-      } catch (Exception fe) {
-        Log.e("loadLib", fe);
+        afd = ctx.getResources().openRawResourceFd(rawID);
+      } catch (Resources.NotFoundException e) {
+        // the resource is compressed in the APK, can only be read as a stream
+        afd = null;
       }
-
-      is = ctx.getResources().openRawResource(rawID);
-      bis = new BufferedInputStream(is);
-      fos = new FileOutputStream(destPath);
-      while (bis.read(buffer) != -1) {
-        fos.write(buffer);
+      if (afd != null) {
+        // the resource is stored uncompressed in the APK, copy it file to file
+        FileInputStream fis = afd.createInputStream();
+        is = fis;
+        FileChannel in = fis.getChannel();
+        long length = afd.getLength();
+        while (position < length) {
+          long n = in.transferTo(afd.getStartOffset() + position, Math.min(COPY_CHUNK_SIZE, length - position), out);
+          if (n <= 0)
+            break;
+          position += n;
+        }
+        // a full disk or a channel stopping early ends the copy short
+        if (position != length)
+          throw new IOException("copied " + position + " of " + length + " bytes");
+      } else {
+        is = ctx.getResources().openRawResource(rawID);
+        ReadableByteChannel in = Channels.newChannel(is);
+        long n;
+        while ((n = out.transferFrom(in, position, COPY_CHUNK_SIZE)) > 0) {
+          position += n;
+        }
+        // the length isn't known, the stream must be at its end
+        if (is.read() != -1)
+          throw new IOException("copy stopped at " + position + " bytes");
       }
+      out.force(false);
+      if (out.size() != position)
+        throw new IOException("wrote " + out.size() + " of " + position + " bytes");
     } catch (Exception e) {
       Log.e("loadLib", e);
+      tmp.delete();
       return null;
     } finally {
       IOUtils.closeSilently(fos);
-      IOUtils.closeSilently(bis);
       IOUtils.closeSilently(is);
+      IOUtils.closeSilently(afd);
     }
 
+    File dest = new File(destPath);
+    dest.delete();
+    if (!tmp.renameTo(dest)) {
+      Log.e("loadLib, rename %s failed", tmp.getPath());
+      tmp.delete();
+      return null;
+    }
+    writeEntries(destDir + LIBS_COMPRESSED_MARK, version, new String[]{destName});
     return destPath;
   }
 
+  private static boolean verifyCompressedLib(String libPath, int version) {
+    return new File(libPath).exists() && verifyEntries(getLibraryPath() + LIBS_COMPRESSED_MARK, version);
+  }
+
+  private static boolean verifyManifest(int version) {
+    return verifyEntries(getLibraryPath() + LIBS_MANIFEST, version);
+  }
+
+  private static void writeManifest(int version) {
+    List<String> libs = getRequiredLibs();
+    libs.remove(LIBS_LOCK);
+    writeEntries(getLibraryPath() + LIBS_MANIFEST, version, libs.toArray(new String[libs.size()]));
+  }
+
+  /**
+   * Write the version code, then one "name size crc32" line for each file.
+   */
+  private static void writeEntries(String path, int version, String[] names) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(version).append('\n');
+    for (String name : names) {
+      File f = new File(getLibraryPath() + name);
+      long crc = checksum(f);
+      if (crc < 0)
+        return;
+      sb.append(name).append(' ').append(f.length()).append(' ').append(crc).append('\n');
+    }
+    FileWriter fw = null;
+    try {
+      fw = new FileWriter(path);
+      fw.write(sb.toString());
+    } catch (IOException e) {
+      Log.e("Error writing " + path, e);
+      new File(path).delete();
+    } finally {
+      IOUtils.closeSilently(fw);
+    }
+  }
+
+  private static boolean verifyEntries(String path, int version) {
+    File file = new File(path);
+    if (!file.exists())
+      return false;
+    Map<String, long[]> entries = new HashMap<String, long[]>();
+    BufferedReader buffer = null;
+    try {
+      buffer = new BufferedReader(new FileReader(file));
+      if (Integer.parseInt(buffer.readLine()) != version)
+        return false;
+      String line;
+      while ((line = buffer.readLine()) != null) {
+        String[] entry = line.split(" ");
+        if (entry.length == 3)
+          entries.put(entry[0], new long[]{Long.parseLong(entry[1]), Long.parseLong(entry[2])});
+      }
+    } catch (IOException e) {
+      Log.e("verifyEntries", e);
+      return false;
+    } catch (NumberFormatException e) {
+      Log.e("verifyEntries", e);
+      return false;
+    } finally {
+      IOUtils.closeSilently(buffer);
+    }
+    if (entries.isEmpty())
+      return false;
+    for (Map.Entry<String, long[]> entry : entries.entrySet()) {
+      File f = new File(getLibraryPath() + entry.getKey());
+      // check the size first, it's much cheaper than the checksum
+      if (f.length() != entry.getValue()[0] || checksum(f) != entry.getValue()[1]) {
+        Log.e("Native lib %s is broken", entry.getKey());
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static long checksum(File f) {
+    CRC32 crc = new CRC32();
+    FileInputStream fis = null;
+    try {
+      fis = new FileInputStream(f);
+      FileChannel channel = fis.getChannel();
+      ByteBuffer buffer = ByteBuffer.allocate(COPY_CHUNK_SIZE);
+      while (channel.read(buffer) > 0) {
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.clear();
+      }
+      return crc.getValue();
+    } catch (IOException e) {
+      Log.e("checksum", e);
+      return -1;
+    } finally {
+      IOUtils.closeSilently(fis);
+    }
+  }
+
   static {
     System.loadLibrary("vinit");
   }
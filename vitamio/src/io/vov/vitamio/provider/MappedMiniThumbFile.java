@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio.provider;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+
+import io.vov.vitamio.utils.Log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link MiniThumbFile} which reads the thumb file through a read only
+ * memory mapping, so readers neither lock the file nor wait for each other.
+ * Writes still go through the single synchronized writer of
+ * {@link MiniThumbFile}. The file is mapped in chunks of fixed size, so when
+ * it grows only its last chunk is mapped again.
+ * <p/>
+ * A read is checked like a seqlock against a concurrent write of the same
+ * thumb: the writer clears the flag of the thumb before and sets it after the
+ * data, so the read is retried if the flag or the magic changed during the
+ * copy.
+ * <p/>
+ * The decoded thumbnails are kept in a LRU cache bounded by
+ * {@link #setCacheSize(int)}, the callers get copies of them.
+ */
+public class MappedMiniThumbFile extends MiniThumbFile {
+  private static final int DEFAULT_CACHE_SIZE = 4 * 1024 * 1024;
+  private static int sCacheSize = DEFAULT_CACHE_SIZE;
+  private static final int THUMBS_PER_CHUNK = 128;
+  private static final int CHUNK_SIZE = THUMBS_PER_CHUNK * BYTES_PER_MINTHUMB;
+  // the chunks from the file offset 0, a larger file is read without mapping
+  private static final long MAX_CHUNKS = Integer.MAX_VALUE / CHUNK_SIZE;
+  private static final int MAX_READ_TRIES = 3;
+
+  // replaced, never modified, when a chunk is mapped
+  private volatile ByteBuffer[] mChunks = new ByteBuffer[0];
+  private final ThumbCache mCache = new ThumbCache();
+
+  public MappedMiniThumbFile(Uri uri) {
+    super(uri);
+  }
+
+  /**
+   * Set the max bytes of decoded thumbnails kept in memory by each thumb file.
+   *
+   * @param bytes 0 to disable the cache
+   */
+  public static void setCacheSize(int bytes) {
+    sCacheSize = bytes < 0 ? 0 : bytes;
+  }
+
+  public static int getCacheSize() {
+    return sCacheSize;
+  }
+
+  /**
+   * Get the chunk holding the thumb of id, map it again if it doesn't cover
+   * the first bytes of the thumb yet.
+   *
+   * @param end the bytes needed from the start of the thumb
+   * @return null if the file is not available or too short
+   */
+  private ByteBuffer chunk(long id, int end) {
+    int index = (int) (id / THUMBS_PER_CHUNK);
+    int needed = offset(id) + end;
+    ByteBuffer[] chunks = mChunks;
+    if (index < chunks.length && chunks[index] != null && needed <= chunks[index].capacity())
+      return chunks[index];
+    synchronized (this) {
+      chunks = mChunks;
+      if (index < chunks.length && chunks[index] != null && needed <= chunks[index].capacity())
+        return chunks[index];
+      RandomAccessFile r = miniThumbDataFile();
+      if (r == null)
+        return null;
+      try {
+        long start = (long) index * CHUNK_SIZE;
+        long size = Math.min(r.length() - start, CHUNK_SIZE);
+        if (size < needed)
+          return null;
+        ByteBuffer chunk = r.getChannel().map(FileChannel.MapMode.READ_ONLY, start, size);
+        ByteBuffer[] grown = new ByteBuffer[Math.max(chunks.length, index + 1)];
+        System.arraycopy(chunks, 0, grown, 0, chunks.length);
+        grown[index] = chunk;
+        mChunks = grown;
+        return chunk;
+      } catch (IOException ex) {
+        Log.e("Got exception mapping the thumb file: ", ex);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the offset of the thumb of id in its chunk
+   */
+  private static int offset(long id) {
+    return (int) (id % THUMBS_PER_CHUNK) * BYTES_PER_MINTHUMB;
+  }
+
+  @Override
+  protected long getMagic(long id) {
+    if (id < 0 || id / THUMBS_PER_CHUNK >= MAX_CHUNKS)
+      return super.getMagic(id);
+    ByteBuffer chunk = chunk(id, 1 + 8);
+    int pos = offset(id);
+    // absolute gets don't touch the position, the buffer can be shared
+    if (chunk != null && chunk.get(pos) == 1)
+      return chunk.getLong(pos + 1);
+    return 0;
+  }
+
+  @Override
+  protected byte[] getMiniThumbFromFile(long id, byte[] data) {
+    byte[] thumb = readThumb(id, null);
+    if (thumb == null || data.length < thumb.length)
+      return null;
+    System.arraycopy(thumb, 0, data, 0, thumb.length);
+    return data;
+  }
+
+  @Override
+  protected Bitmap getMiniThumbBitmap(long id) {
+    Bitmap bitmap = mCache.get(id);
+    if (bitmap == null) {
+      long[] magic = new long[1];
+      byte[] thumb = readThumb(id, magic);
+      if (thumb == null)
+        return null;
+      bitmap = BitmapFactory.decodeByteArray(thumb, 0, thumb.length);
+      if (bitmap == null) {
+        Log.d("couldn't decode byte array.");
+        return null;
+      }
+      // not if the thumb was saved again while decoding, the writer may have
+      // evicted it already
+      mCache.putIfMagic(id, bitmap, magic[0], this);
+    }
+    // the cached bitmap is never given out, a caller may recycle its own
+    return bitmap.copy(bitmap.getConfig(), false);
+  }
+
+  @Override
+  protected void saveMiniThumbToFile(byte[] data, long id, long magic) throws IOException {
+    super.saveMiniThumbToFile(data, id, magic);
+    mCache.remove(id);
+  }
+
+  @Override
+  protected void deactivate() {
+    synchronized (this) {
+      mChunks = new ByteBuffer[0];
+      super.deactivate();
+    }
+    // not under the lock of this, putIfMagic() takes it inside the cache lock
+    mCache.clear();
+  }
+
+  /**
+   * @param magic if not null, the magic of the thumb read is put at 0
+   */
+  private byte[] readThumb(long id, long[] magic) {
+    if (id < 0 || id / THUMBS_PER_CHUNK >= MAX_CHUNKS) {
+      // read under the lock of the writer
+      synchronized (this) {
+        if (magic != null)
+          magic[0] = super.getMagic(id);
+        byte[] data = new byte[BYTES_PER_MINTHUMB];
+        return super.getMiniThumbFromFile(id, data);
+      }
+    }
+    for (int i = 0; i < MAX_READ_TRIES; i++) {
+      ByteBuffer chunk = chunk(id, 1 + 8 + 4);
+      int pos = offset(id);
+      if (chunk == null || chunk.get(pos) != 1)
+        return null;
+      long before = chunk.getLong(pos + 1);
+      int length = chunk.getInt(pos + 1 + 8);
+      if (length <= 0 || length > BYTES_PER_MINTHUMB - 1 - 8 - 4)
+        continue;
+      int start = pos + 1 + 8 + 4;
+      if (start + length > chunk.capacity()) {
+        chunk = chunk(id, 1 + 8 + 4 + length);
+        if (chunk == null)
+          return null;
+      }
+      byte[] thumb = new byte[length];
+      ByteBuffer slice = chunk.duplicate();
+      slice.position(start);
+      slice.get(thumb);
+      if (chunk.get(pos) == 1 && chunk.getLong(pos + 1) == before) {
+        if (magic != null)
+          magic[0] = before;
+        return thumb;
+      }
+    }
+    Log.d("thumb %d kept changing while read", id);
+    return null;
+  }
+
+  private static class ThumbCache {
+    private final LinkedHashMap<Long, Entry> mMap = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+    private int mSize;
+
+    synchronized Bitmap get(long id) {
+      Entry entry = mMap.get(id);
+      return entry == null ? null : entry.bitmap;
+    }
+
+    /**
+     * Put the bitmap if the thumb still has the magic it was read with, the
+     * check is under the lock taken by {@link #remove(long)} after a save.
+     */
+    synchronized void putIfMagic(long id, Bitmap bitmap, long magic, MappedMiniThumbFile file) {
+      if (file.getMagic(id) == magic)
+        put(id, bitmap);
+    }
+
+    synchronized void put(long id, Bitmap bitmap) {
+      Entry entry = new Entry(bitmap);
+      if (entry.size > sCacheSize)
+        return;
+      Entry old = mMap.put(id, entry);
+      if (old != null)
+        mSize -= old.size;
+      mSize += entry.size;
+      Iterator<Map.Entry<Long, Entry>> it = mMap.entrySet().iterator();
+      while (mSize > sCacheSize && it.hasNext()) {
+        mSize -= it.next().getValue().size;
+        it.remove();
+      }
+    }
+
+    synchronized void remove(long id) {
+      Entry old = mMap.remove(id);
+      if (old != null)
+        mSize -= old.size;
+    }
+
+    synchronized void clear() {
+      mMap.clear();
+      mSize = 0;
+    }
+
+    private static class Entry {
+      final Bitmap bitmap;
+      final int size;
+
+      Entry(Bitmap bitmap) {
+        this.bitmap = bitmap;
+        this.size = bitmap.getRowBytes() * bitmap.getHeight();
+      }
+    }
+  }
+}
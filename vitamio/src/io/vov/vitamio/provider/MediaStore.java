@@ -198,8 +198,6 @@ public final class MediaStore {
     private static final int MINI_KIND = 1;
     private static final int MICRO_KIND = 3;
     private static final String[] PROJECTION = new String[]{_ID, MediaColumns.DATA};
-    private static final Object sThumbBufLock = new Object();
-    private static byte[] sThumbBuf;
 
     private static Bitmap getMiniThumbFromFile(Cursor c, Uri baseUri, ContentResolver cr, BitmapFactory.Options options) {
       Bitmap bitmap = null;
@@ -253,16 +251,7 @@ public final class MediaStore {
       long magic = thumbFile.getMagic(origId);
       if (magic != 0) {
         if (kind == MICRO_KIND) {
-          synchronized (sThumbBufLock) {
-            if (sThumbBuf == null)
-              sThumbBuf = new byte[MiniThumbFile.BYTES_PER_MINTHUMB];
-            if (thumbFile.getMiniThumbFromFile(origId, sThumbBuf) != null) {
-              bitmap = BitmapFactory.decodeByteArray(sThumbBuf, 0, sThumbBuf.length);
-              if (bitmap == null)
-                Log.d("couldn't decode byte array.");
-            }
-          }
-          return bitmap;
+          return thumbFile.getMiniThumbBitmap(origId);
         } else if (kind == MINI_KIND) {
           String column = "video_id=";
           Cursor c = null;
@@ -288,15 +277,7 @@ public final class MediaStore {
           return null;
 
         if (kind == MICRO_KIND) {
-          synchronized (sThumbBufLock) {
-            if (sThumbBuf == null)
-              sThumbBuf = new byte[MiniThumbFile.BYTES_PER_MINTHUMB];
-            if (thumbFile.getMiniThumbFromFile(origId, sThumbBuf) != null) {
-              bitmap = BitmapFactory.decodeByteArray(sThumbBuf, 0, sThumbBuf.length);
-              if (bitmap == null)
-                Log.d("couldn't decode byte array.");
-            }
-          }
+          bitmap = thumbFile.getMiniThumbBitmap(origId);
         } else if (kind == MINI_KIND) {
           if (c.moveToFirst())
             bitmap = getMiniThumbFromFile(c, baseUri, cr, options);
@@ -17,6 +17,8 @@
 
 package io.vov.vitamio.provider;
 
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Environment;
 
@@ -56,7 +58,7 @@ public class MiniThumbFile {
     String type = uri.getPathSegments().get(0);
     MiniThumbFile file = sThumbFiles.get(type);
     if (file == null) {
-      file = new MiniThumbFile(Uri.parse(MediaStore.CONTENT_AUTHORITY_SLASH + type + "/media"));
+      file = new MappedMiniThumbFile(Uri.parse(MediaStore.CONTENT_AUTHORITY_SLASH + type + "/media"));
       sThumbFiles.put(type, file);
     }
 
@@ -79,7 +81,7 @@ public class MiniThumbFile {
     }
   }
 
-  private RandomAccessFile miniThumbDataFile() {
+  protected RandomAccessFile miniThumbDataFile() {
     if (mMiniThumbFile == null) {
       removeOldFile();
       String path = randomAccessFilePath(MINI_THUMB_DATA_FILE_VERSION);
@@ -156,15 +158,18 @@ public class MiniThumbFile {
         if (data.length > BYTES_PER_MINTHUMB - HEADER_SIZE)
           return;
 
+        lock = mChannel.lock(pos, BYTES_PER_MINTHUMB, false);
+        // clear the flag first and set it last, so a reader of the mapped
+        // file which sees the same flag and magic before and after its copy
+        // didn't race with this write
+        writeFlag(pos, (byte) 0);
         mBuffer.clear();
-        mBuffer.put((byte) 1);
         mBuffer.putLong(magic);
         mBuffer.putInt(data.length);
         mBuffer.put(data);
         mBuffer.flip();
-
-        lock = mChannel.lock(pos, BYTES_PER_MINTHUMB, false);
-        mChannel.write(mBuffer, pos);
+        mChannel.write(mBuffer, pos + 1);
+        writeFlag(pos, (byte) 1);
       }
     } catch (IOException ex) {
       Log.e("couldn't save mini thumbnail data for %d; %s", id, ex.getMessage());
@@ -180,6 +185,13 @@ public class MiniThumbFile {
     }
   }
 
+  private void writeFlag(long pos, byte flag) throws IOException {
+    mBuffer.clear();
+    mBuffer.put(flag);
+    mBuffer.flip();
+    mChannel.write(mBuffer, pos);
+  }
+
   protected synchronized byte[] getMiniThumbFromFile(long id, byte[] data) {
     RandomAccessFile r = miniThumbDataFile();
     if (r == null)
@@ -213,4 +225,19 @@ public class MiniThumbFile {
     }
     return null;
   }
+
+  /**
+   * Read and decode the thumbnail saved for the id.
+   *
+   * @return null if there is no thumbnail or it can't be decoded
+   */
+  protected synchronized Bitmap getMiniThumbBitmap(long id) {
+    byte[] data = new byte[BYTES_PER_MINTHUMB];
+    if (getMiniThumbFromFile(id, data) == null)
+      return null;
+    Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+    if (bitmap == null)
+      Log.d("couldn't decode byte array.");
+    return bitmap;
+  }
 }
\ No newline at end of file
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.vov.vitamio.provider;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import io.vov.vitamio.ThumbnailUtils;
+import io.vov.vitamio.provider.MediaStore.Video;
+import io.vov.vitamio.utils.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates the micro thumbnails of videos on a pool of worker threads.
+ * <p/>
+ * The same video requested twice is decoded once, the visible requests are
+ * decoded before the others, and the requests scrolled off the screen can be
+ * cancelled. The thumbnails are saved into the {@link MiniThumbFile}, so a
+ * video is only decoded the first time it's requested.
+ * <p/>
+ * <pre>
+ * mThumbnailService.request(id, path, true, new ThumbnailService.Callback() {
+ *   public void onThumbnail(long id, Bitmap thumb) {
+ *     ...
+ *   }
+ * });
+ * </pre>
+ */
+public class ThumbnailService {
+  private static final int JPEG_QUALITY = 75;
+  private static final int MAX_THUMB_BYTES = MiniThumbFile.BYTES_PER_MINTHUMB - 1 - 8 - 4;
+
+  private final Context mContext;
+  private final MiniThumbFile mThumbFile;
+  private final ThreadPoolExecutor mExecutor;
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+  private final HashMap<Long, Task> mTasks = new HashMap<Long, Task>();
+  private final AtomicLong mSequence = new AtomicLong();
+  private final Random mRandom = new Random();
+
+  public interface Callback {
+    /**
+     * Called on the main thread when the thumbnail is ready.
+     *
+     * @param id    the id passed to {@link ThumbnailService#request}
+     * @param thumb null if the video can't be decoded
+     */
+    public void onThumbnail(long id, Bitmap thumb);
+  }
+
+  public ThumbnailService(Context ctx) {
+    this(ctx, Runtime.getRuntime().availableProcessors());
+  }
+
+  public ThumbnailService(Context ctx, int threads) {
+    mContext = ctx.getApplicationContext();
+    mThumbFile = MiniThumbFile.instance(Video.Media.CONTENT_URI);
+    threads = Math.max(1, threads);
+    mExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+      private final AtomicInteger mCount = new AtomicInteger();
+
+      @Override
+      public Thread newThread(final Runnable r) {
+        return new Thread(new Runnable() {
+          @Override
+          public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            r.run();
+          }
+        }, "ThumbnailService #" + mCount.incrementAndGet());
+      }
+    });
+  }
+
+  /**
+   * Request the micro thumbnail of a video.
+   *
+   * @param id       the id of the video in {@link Video.Media#CONTENT_URI}, the
+   *                 thumbnail is saved by this id
+   * @param path     the path of the video file
+   * @param visible  whether the thumbnail is on the screen now, the visible
+   *                 ones are decoded first
+   * @param callback called on the main thread
+   */
+  public void request(long id, String path, boolean visible, Callback callback) {
+    synchronized (mTasks) {
+      Task task = mTasks.get(id);
+      if (task != null) {
+        task.callbacks.add(callback);
+        if (visible && !task.visible)
+          reschedule(task, true);
+        return;
+      }
+      task = new Task(id, path, visible);
+      task.callbacks.add(callback);
+      mTasks.put(id, task);
+      mExecutor.execute(task);
+    }
+  }
+
+  /**
+   * Change the priority of a pending request, e.g. when it's scrolled in or
+   * out of the screen.
+   */
+  public void setVisible(long id, boolean visible) {
+    synchronized (mTasks) {
+      Task task = mTasks.get(id);
+      if (task != null && task.visible != visible)
+        reschedule(task, visible);
+    }
+  }
+
+  /**
+   * Cancel a request not started yet, the callbacks will not be called. A
+   * request already decoding will still be saved, but not delivered.
+   */
+  public void cancel(long id) {
+    synchronized (mTasks) {
+      Task task = mTasks.remove(id);
+      if (task != null) {
+        task.cancelled = true;
+        mExecutor.remove(task);
+      }
+    }
+  }
+
+  public void cancelAll() {
+    synchronized (mTasks) {
+      for (Task task : mTasks.values())
+        task.cancelled = true;
+      mTasks.clear();
+      mExecutor.getQueue().clear();
+    }
+  }
+
+  public void shutdown() {
+    cancelAll();
+    mExecutor.shutdown();
+  }
+
+  private void reschedule(Task task, boolean visible) {
+    // the priority queue doesn't reorder an element, so take it out and put
+    // it back; a task already running is not in the queue
+    if (mExecutor.remove(task)) {
+      task.visible = visible;
+      task.sequence = mSequence.incrementAndGet();
+      mExecutor.execute(task);
+    } else {
+      task.visible = visible;
+    }
+  }
+
+  private Bitmap createThumbnail(long id, String path) {
+    if (mThumbFile.getMagic(id) != 0) {
+      Bitmap thumb = mThumbFile.getMiniThumbBitmap(id);
+      if (thumb != null)
+        return thumb;
+    }
+
+    Bitmap thumb = ThumbnailUtils.createVideoThumbnail(mContext, path, Video.Thumbnails.MICRO_KIND);
+    if (thumb != null)
+      saveThumbnail(id, thumb);
+    return thumb;
+  }
+
+  private void saveThumbnail(long id, Bitmap thumb) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(MAX_THUMB_BYTES);
+    thumb.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+    byte[] data = out.toByteArray();
+    if (data.length > MAX_THUMB_BYTES) {
+      Log.d("thumbnail of %d is too large to save: %d", id, data.length);
+      return;
+    }
+    long magic;
+    do {
+      magic = mRandom.nextLong();
+    } while (magic == 0);
+    try {
+      mThumbFile.saveMiniThumbToFile(data, id, magic);
+    } catch (IOException e) {
+      Log.e("saveThumbnail", e);
+    }
+  }
+
+  private class Task implements Runnable, Comparable<Task> {
+    final long id;
+    final String path;
+    final List<Callback> callbacks = new ArrayList<Callback>(1);
+    volatile boolean visible;
+    volatile boolean cancelled;
+    long sequence;
+
+    Task(long id, String path, boolean visible) {
+      this.id = id;
+      this.path = path;
+      this.visible = visible;
+      this.sequence = mSequence.incrementAndGet();
+    }
+
+    @Override
+    public int compareTo(Task another) {
+      if (visible != another.visible)
+        return visible ? -1 : 1;
+      return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+    }
+
+    @Override
+    public void run() {
+      if (cancelled)
+        return;
+      Bitmap thumb = null;
+      try {
+        thumb = createThumbnail(id, path);
+      } finally {
+        // also when the retriever or the compress throws, or the later
+        // requests of this video would wait on this task forever
+        deliver(thumb);
+      }
+    }
+
+    private void deliver(final Bitmap thumb) {
+      mHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          List<Callback> delivering;
+          synchronized (mTasks) {
+            if (cancelled)
+              return;
+            mTasks.remove(id);
+            delivering = new ArrayList<Callback>(callbacks);
+          }
+          for (Callback callback : delivering)
+            callback.onThumbnail(id, thumb);
+        }
+      });
+    }
+  }
+}
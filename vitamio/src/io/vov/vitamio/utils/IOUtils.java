@@ -15,6 +15,7 @@
  */
 package io.vov.vitamio.utils;
 
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
@@ -35,6 +36,16 @@ public class IOUtils {
 		}
 	}
 
+	public static void closeSilently(AssetFileDescriptor c) {
+		if (c == null)
+			return;
+		try {
+			c.close();
+		} catch (Throwable t) {
+			Log.w(TAG, "fail to close", t);
+		}
+	}
+
 	public static void closeSilently(ParcelFileDescriptor c) {
 		if (c == null)
 			return;
@@ -17,41 +17,166 @@ package io.vov.vitamio.utils;
 
 import io.vov.vitamio.BuildConfig;
 
-import java.util.MissingFormatArgumentException;
+import java.util.IllegalFormatException;
 
+/**
+ * The log of Vitamio. The level is checked before a message is formatted,
+ * and the overloads taking one or two longs or objects don't allocate an
+ * array or box the numbers, so a call below the level costs nothing but the
+ * check. The messages go to logcat unless another {@link Sink} is set.
+ */
 public class Log {
 	public static final String TAG = "Vitamio[Player]";
 
-	public static void i(String msg, Object... args) {
-		try {
-			if (BuildConfig.DEBUG) 
-				android.util.Log.i(TAG, String.format(msg, args));
-		} catch (MissingFormatArgumentException e) {
-			android.util.Log.e(TAG, "vitamio.Log", e);
-			android.util.Log.i(TAG, msg);
+	/**
+	 * Where the messages are written.
+	 */
+	public interface Sink {
+		/**
+		 * @param priority one of the levels of {@link android.util.Log}
+		 * @param tr may be null
+		 */
+		void println(int priority, String tag, String msg, Throwable tr);
+	}
+
+	private static final Sink LOGCAT = new Sink() {
+		@Override
+		public void println(int priority, String tag, String msg, Throwable tr) {
+			if (tr != null)
+				msg = msg + '\n' + android.util.Log.getStackTraceString(tr);
+			android.util.Log.println(priority, tag, msg);
 		}
+	};
+
+	private static volatile int sLevel = BuildConfig.DEBUG ? android.util.Log.DEBUG : android.util.Log.ERROR;
+	private static volatile Sink sSink = LOGCAT;
+
+	/**
+	 * Set the lowest level written, {@link android.util.Log#DEBUG} in debug
+	 * builds and {@link android.util.Log#ERROR} in release builds by default.
+	 */
+	public static void setLevel(int level) {
+		sLevel = level;
+	}
+
+	public static int getLevel() {
+		return sLevel;
+	}
+
+	/**
+	 * @param sink null to write to logcat
+	 */
+	public static void setSink(Sink sink) {
+		sSink = sink == null ? LOGCAT : sink;
+	}
+
+	public static boolean isLoggable(int priority) {
+		return priority >= sLevel;
+	}
+
+	public static void i(String msg) {
+		if (isLoggable(android.util.Log.INFO))
+			sSink.println(android.util.Log.INFO, TAG, msg, null);
+	}
+
+	public static void i(String msg, long arg) {
+		if (isLoggable(android.util.Log.INFO))
+			print(android.util.Log.INFO, msg, arg);
+	}
+
+	public static void i(String msg, long arg1, long arg2) {
+		if (isLoggable(android.util.Log.INFO))
+			print(android.util.Log.INFO, msg, arg1, arg2);
+	}
+
+	public static void i(String msg, Object arg) {
+		if (isLoggable(android.util.Log.INFO))
+			print(android.util.Log.INFO, msg, arg);
+	}
+
+	public static void i(String msg, Object arg1, Object arg2) {
+		if (isLoggable(android.util.Log.INFO))
+			print(android.util.Log.INFO, msg, arg1, arg2);
+	}
+
+	public static void i(String msg, Object... args) {
+		if (isLoggable(android.util.Log.INFO))
+			print(android.util.Log.INFO, msg, args);
+	}
+
+	public static void d(String msg) {
+		if (isLoggable(android.util.Log.DEBUG))
+			sSink.println(android.util.Log.DEBUG, TAG, msg, null);
+	}
+
+	public static void d(String msg, long arg) {
+		if (isLoggable(android.util.Log.DEBUG))
+			print(android.util.Log.DEBUG, msg, arg);
+	}
+
+	public static void d(String msg, long arg1, long arg2) {
+		if (isLoggable(android.util.Log.DEBUG))
+			print(android.util.Log.DEBUG, msg, arg1, arg2);
+	}
+
+	public static void d(String msg, Object arg) {
+		if (isLoggable(android.util.Log.DEBUG))
+			print(android.util.Log.DEBUG, msg, arg);
+	}
+
+	public static void d(String msg, Object arg1, Object arg2) {
+		if (isLoggable(android.util.Log.DEBUG))
+			print(android.util.Log.DEBUG, msg, arg1, arg2);
 	}
 
 	public static void d(String msg, Object... args) {
-		try {
-			if (BuildConfig.DEBUG) 
-				android.util.Log.d(TAG, String.format(msg, args));
-		} catch (MissingFormatArgumentException e) {
-			android.util.Log.e(TAG, "vitamio.Log", e);
-			android.util.Log.d(TAG, msg);
-		}
+		if (isLoggable(android.util.Log.DEBUG))
+			print(android.util.Log.DEBUG, msg, args);
+	}
+
+	public static void e(String msg) {
+		if (isLoggable(android.util.Log.ERROR))
+			sSink.println(android.util.Log.ERROR, TAG, msg, null);
+	}
+
+	public static void e(String msg, long arg) {
+		if (isLoggable(android.util.Log.ERROR))
+			print(android.util.Log.ERROR, msg, arg);
+	}
+
+	public static void e(String msg, long arg1, long arg2) {
+		if (isLoggable(android.util.Log.ERROR))
+			print(android.util.Log.ERROR, msg, arg1, arg2);
+	}
+
+	public static void e(String msg, Object arg) {
+		if (isLoggable(android.util.Log.ERROR))
+			print(android.util.Log.ERROR, msg, arg);
+	}
+
+	public static void e(String msg, Object arg1, Object arg2) {
+		if (isLoggable(android.util.Log.ERROR))
+			print(android.util.Log.ERROR, msg, arg1, arg2);
 	}
 
 	public static void e(String msg, Object... args) {
-		try {
-				android.util.Log.e(TAG, String.format(msg, args));
-		} catch (MissingFormatArgumentException e) {
-			android.util.Log.e(TAG, "vitamio.Log", e);
-			android.util.Log.e(TAG, msg);
-		}
+		if (isLoggable(android.util.Log.ERROR))
+			print(android.util.Log.ERROR, msg, args);
 	}
 
 	public static void e(String msg, Throwable t) {
-		android.util.Log.e(TAG, msg, t);
+		if (isLoggable(android.util.Log.ERROR))
+			sSink.println(android.util.Log.ERROR, TAG, msg, t);
+	}
+
+	// only called above the level, the boxing here is fine
+	private static void print(int priority, String msg, Object... args) {
+		Sink sink = sSink;
+		try {
+			sink.println(priority, TAG, String.format(msg, args), null);
+		} catch (IllegalFormatException e) {
+			sink.println(android.util.Log.ERROR, TAG, "vitamio.Log", e);
+			sink.println(priority, TAG, msg, null);
+		}
 	}
 }
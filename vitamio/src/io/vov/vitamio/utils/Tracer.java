@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vov.vitamio.utils;
+
+import android.os.Process;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An opt-in tracer of the playback stages, disabled by default. The events
+ * are stamped with {@link System#nanoTime()} into arrays allocated by
+ * {@link #enable(int)}, the oldest ones are overwritten when full, and
+ * {@link #writeJson(Writer)} dumps them in the Chrome trace event format to be
+ * opened by chrome://tracing.
+ * <p/>
+ * A disabled tracer costs a volatile read per call, so the names passed must
+ * be constants, not built for the call. An enabled one takes no lock: each
+ * event claims its slot with an atomic increment and publishes it when
+ * written, only {@link #writeJson(Writer)} and {@link #clear()} are
+ * synchronized.
+ * <p/>
+ * <pre>
+ * Tracer.enable(Tracer.DEFAULT_CAPACITY);
+ * ...
+ * Tracer.writeJson(new FileWriter(file));
+ * </pre>
+ */
+public final class Tracer {
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	private static final byte TYPE_BEGIN = 'B';
+	private static final byte TYPE_END = 'E';
+	private static final byte TYPE_INSTANT = 'i';
+	private static final byte TYPE_ASYNC_BEGIN = 'b';
+	private static final byte TYPE_ASYNC_END = 'e';
+
+	private static volatile boolean sEnabled;
+	private static volatile Buffer sBuffer;
+
+	private Tracer() {
+	}
+
+	/**
+	 * Start tracing into a new buffer, the events recorded before are dropped.
+	 *
+	 * @param capacity the events kept
+	 */
+	public static synchronized void enable(int capacity) {
+		sBuffer = new Buffer(Math.max(1, capacity));
+		sEnabled = true;
+	}
+
+	/**
+	 * Stop tracing, the events are kept for {@link #writeJson(Writer)}.
+	 */
+	public static void disable() {
+		sEnabled = false;
+	}
+
+	public static boolean isEnabled() {
+		return sEnabled;
+	}
+
+	/**
+	 * Begin a section on this thread, must be ended on the same thread.
+	 */
+	public static void beginSection(String name) {
+		if (sEnabled)
+			record(TYPE_BEGIN, name, 0);
+	}
+
+	public static void endSection(String name) {
+		if (sEnabled)
+			record(TYPE_END, name, 0);
+	}
+
+	/**
+	 * Begin a section which may end on another thread or callback, the id tells
+	 * the sections of the same name apart.
+	 */
+	public static void beginAsyncSection(String name, int id) {
+		if (sEnabled)
+			record(TYPE_ASYNC_BEGIN, name, id);
+	}
+
+	public static void endAsyncSection(String name, int id) {
+		if (sEnabled)
+			record(TYPE_ASYNC_END, name, id);
+	}
+
+	/**
+	 * Mark a moment, e.g. the first frame drawn.
+	 */
+	public static void instant(String name) {
+		if (sEnabled)
+			record(TYPE_INSTANT, name, 0);
+	}
+
+	private static void record(byte type, String name, int id) {
+		Buffer buffer = sBuffer;
+		if (buffer == null)
+			return;
+		long seq = buffer.next.getAndIncrement();
+		int i = (int) (seq % buffer.capacity);
+		// unpublish first, a reader skips the slot until it's written again
+		buffer.seqs.set(i, -1);
+		buffer.types[i] = type;
+		buffer.names[i] = name;
+		buffer.times[i] = System.nanoTime();
+		buffer.tids[i] = Process.myTid();
+		buffer.ids[i] = id;
+		buffer.seqs.set(i, seq);
+	}
+
+	/**
+	 * @return the events in the buffer
+	 */
+	public static int size() {
+		Buffer buffer = sBuffer;
+		return buffer == null ? 0 : (int) Math.min(buffer.next.get(), buffer.capacity);
+	}
+
+	/**
+	 * @return the events overwritten since enabled
+	 */
+	public static long getDroppedCount() {
+		Buffer buffer = sBuffer;
+		return buffer == null ? 0 : Math.max(0, buffer.next.get() - buffer.capacity);
+	}
+
+	public static synchronized void clear() {
+		Buffer buffer = sBuffer;
+		if (buffer != null)
+			sBuffer = new Buffer(buffer.capacity);
+	}
+
+	/**
+	 * Write the events from the oldest in the Chrome trace event format. The
+	 * timestamps are microseconds of {@link System#nanoTime()}. A section whose
+	 * begin was overwritten shows as an unmatched end.
+	 */
+	public static synchronized void writeJson(Writer out) throws IOException {
+		int pid = Process.myPid();
+		Buffer buffer = sBuffer;
+		long end = buffer == null ? 0 : buffer.next.get();
+		long first = buffer == null ? 0 : Math.max(0, end - buffer.capacity);
+		boolean written = false;
+		out.write("{\"traceEvents\":[");
+		for (long seq = first; seq < end; seq++) {
+			int i = (int) (seq % buffer.capacity);
+			// copy the slot, and drop it if it's being written or was overwritten
+			if (buffer.seqs.get(i) != seq)
+				continue;
+			byte type = buffer.types[i];
+			String name = buffer.names[i];
+			long time = buffer.times[i];
+			int tid = buffer.tids[i];
+			int id = buffer.ids[i];
+			if (buffer.seqs.get(i) != seq)
+				continue;
+			if (written)
+				out.write(",\n");
+			written = true;
+			out.write("{\"name\":\"");
+			writeEscaped(out, name);
+			out.write("\",\"cat\":\"vitamio\",\"ph\":\"");
+			out.write((char) type);
+			out.write("\",\"ts\":");
+			out.write(Long.toString(time / 1000));
+			out.write('.');
+			long fraction = time % 1000;
+			if (fraction < 100)
+				out.write('0');
+			if (fraction < 10)
+				out.write('0');
+			out.write(Long.toString(fraction));
+			out.write(",\"pid\":");
+			out.write(Integer.toString(pid));
+			out.write(",\"tid\":");
+			out.write(Integer.toString(tid));
+			if (type == TYPE_ASYNC_BEGIN || type == TYPE_ASYNC_END) {
+				out.write(",\"id\":\"0x");
+				out.write(Integer.toHexString(id));
+				out.write('"');
+			} else if (type == TYPE_INSTANT) {
+				out.write(",\"s\":\"t\"");
+			}
+			out.write('}');
+		}
+		out.write("]}");
+		out.flush();
+	}
+
+	public static String toJson() {
+		StringWriter writer = new StringWriter();
+		try {
+			writeJson(writer);
+		} catch (IOException e) {
+			// not thrown by StringWriter
+		}
+		return writer.toString();
+	}
+
+	/**
+	 * The ring of events, replaced by {@link #enable(int)} and {@link #clear()}
+	 * so a recording thread never sees it being cleared.
+	 */
+	private static final class Buffer {
+		final int capacity;
+		final byte[] types;
+		final String[] names;
+		final long[] times;
+		final int[] tids;
+		final int[] ids;
+		// the sequence of the event published in each slot, -1 while written
+		final AtomicLongArray seqs;
+		final AtomicLong next = new AtomicLong();
+
+		Buffer(int capacity) {
+			this.capacity = capacity;
+			types = new byte[capacity];
+			names = new String[capacity];
+			times = new long[capacity];
+			tids = new int[capacity];
+			ids = new int[capacity];
+			seqs = new AtomicLongArray(capacity);
+			for (int i = 0; i < capacity; i++)
+				seqs.set(i, -1);
+		}
+	}
+
+	private static void writeEscaped(Writer out, String s) throws IOException {
+		if (s == null)
+			return;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				out.write('\\');
+				out.write(c);
+			} else if (c < 0x20) {
+				out.write(String.format("\\u%04x", (int) c));
+			} else {
+				out.write(c);
+			}
+		}
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vov.vitamio;
+
+import android.os.Debug;
+
+/**
+ * The measures of the benchmarks in these tests. The timings and the heap
+ * depend on the device, its load and the collector, so the benchmarks only
+ * log them; a test asserts on what doesn't, such as the allocations of a
+ * path or a computed size.
+ */
+public final class Benchmarks {
+  public static final int ROUNDS = 5;
+
+  public interface Task {
+    void run() throws Exception;
+  }
+
+  private Benchmarks() {
+  }
+
+  /**
+   * Run the task once to warm it up, then {@link #ROUNDS} times.
+   *
+   * @return the nanoseconds of the fastest round
+   */
+  public static long time(Task task) throws Exception {
+    task.run();
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < ROUNDS; i++) {
+      long start = System.nanoTime();
+      task.run();
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    return best;
+  }
+
+  /**
+   * @return the objects allocated by this thread while the task ran, the
+   * counting may add a few of its own
+   */
+  public static int countAllocations(Task task) throws Exception {
+    Debug.startAllocCounting();
+    try {
+      Debug.resetThreadAllocCount();
+      task.run();
+      return Debug.getThreadAllocCount();
+    } finally {
+      Debug.stopAllocCounting();
+    }
+  }
+
+  /**
+   * @return the bytes of the heap in use after a collection was requested,
+   * with the native heap which holds the pixels of the bitmaps before 3.0
+   */
+  public static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    System.gc();
+    return runtime.totalMemory() - runtime.freeMemory() + Debug.getNativeHeapAllocatedSize();
+  }
+}
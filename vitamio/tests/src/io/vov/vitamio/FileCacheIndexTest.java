@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vov.vitamio;
+
+import io.vov.vitamio.utils.Log;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Checks the lookups of {@link FileCacheIndex}, and compares its memory with
+ * the map of one entry, one path and one key per video it replaces.
+ */
+public class FileCacheIndexTest extends TestCase {
+  private static final int[] VIDEOS = {10000, 50000, 100000};
+  private static final int DIRECTORIES = 200;
+
+  public void testFind() {
+    String[] paths = paths(1000);
+    FileCacheIndex index = new FileCacheIndex(10, true);
+    for (int i = 0; i < paths.length; i++)
+      index.add(paths[i], i, i * 1000L);
+    index.add(paths[0], 5000, 0);
+    assertEquals(paths.length, index.size());
+
+    for (int i = 0; i < paths.length; i++) {
+      int found = index.find(paths[i].toUpperCase(Locale.US));
+      assertEquals(i, index.getRowId(found));
+      assertEquals(i * 1000L, index.getLastModified(found));
+      assertEquals(paths[i], index.getPath(found));
+    }
+    assertEquals(-1, index.find("/mnt/sdcard/Movies/dir0/missing.mp4"));
+    assertEquals(-1, index.find("/mnt/sdcard/Movies/dir0/"));
+
+    FileCacheIndex sensitive = new FileCacheIndex(paths.length, false);
+    sensitive.add(paths[1], 1, 0);
+    assertEquals(0, sensitive.find(paths[1]));
+    assertEquals(-1, sensitive.find(paths[1].toUpperCase(Locale.US)));
+  }
+
+  public void testFindIgnoresDefaultLocale() {
+    Locale locale = Locale.getDefault();
+    Locale.setDefault(new Locale("tr", "TR"));
+    try {
+      FileCacheIndex index = new FileCacheIndex(1, true);
+      index.add("/mnt/sdcard/DCIM/Camera/VID_0001.mp4", 1, 0);
+      assertEquals(0, index.find("/mnt/sdcard/DCIM/Camera/VID_0001.mp4"));
+      assertEquals(0, index.find("/mnt/sdcard/dcim/camera/vid_0001.mp4"));
+    } finally {
+      Locale.setDefault(locale);
+    }
+  }
+
+  public void testFlags() {
+    FileCacheIndex index = new FileCacheIndex(2, true);
+    index.add("/sdcard/a.mp4", 1, 0);
+    assertFalse(index.isSeen(0));
+    index.setSeen(0);
+    assertTrue(index.isSeen(0));
+    assertFalse(index.isRemoved(0));
+    index.remove(0);
+    assertTrue(index.isRemoved(0));
+    assertTrue(index.isSeen(0));
+  }
+
+  /**
+   * Logs the heap held and the time per lookup for 10k, 50k and 100k videos.
+   * The heap depends on the collector, so only the computed size of the index
+   * is checked against the size of the map.
+   */
+  public void testBenchmark() throws Exception {
+    for (final int videos : VIDEOS) {
+      final String[] paths = paths(videos);
+
+      long heap = Benchmarks.usedHeap();
+      final HashMap<String, Entry> map = new HashMap<String, Entry>();
+      for (int i = 0; i < videos; i++) {
+        // prescan read a new path from the cursor and lower cased it for the key
+        String path = new String(paths[i]);
+        map.put(path.toLowerCase(Locale.US), new Entry(i, path, i));
+      }
+      long mapBytes = Benchmarks.usedHeap() - heap;
+
+      heap = Benchmarks.usedHeap();
+      final FileCacheIndex index = new FileCacheIndex(videos, true);
+      for (int i = 0; i < videos; i++)
+        index.add(paths[i], i, i);
+      long indexBytes = Benchmarks.usedHeap() - heap;
+
+      long mapTime = Benchmarks.time(new Benchmarks.Task() {
+        @Override
+        public void run() {
+          for (String path : paths)
+            assertNotNull(map.get(path.toLowerCase(Locale.US)));
+        }
+      });
+      long indexTime = Benchmarks.time(new Benchmarks.Task() {
+        @Override
+        public void run() {
+          for (String path : paths)
+            assertTrue(index.find(path) >= 0);
+        }
+      });
+
+      Log.i("prescan %d videos: map %d bytes (estimated %d) %dns, index %d bytes (estimated %d) %dns", videos, mapBytes, mapMemoryUsage(paths), mapTime / videos, indexBytes, index.getMemoryUsage(), indexTime / videos);
+      assertEquals(videos, index.size());
+      assertTrue(videos + " videos: index " + index.getMemoryUsage() + " bytes, map " + mapMemoryUsage(paths) + " bytes", index.getMemoryUsage() < mapMemoryUsage(paths) / 2);
+    }
+  }
+
+  /**
+   * The bytes prescan held per video with 32-bit references and 8 byte
+   * object headers, counted like {@link FileCacheIndex#getMemoryUsage()}.
+   */
+  private static long mapMemoryUsage(String[] paths) {
+    // the table of a map grown to the count by doubling
+    int table = 16;
+    while (table * 3 / 4 < paths.length)
+      table *= 2;
+    long bytes = table * 4L;
+    for (String path : paths) {
+      // the map entry: key, value, next and hash
+      bytes += 8 + 4 + 4 + 4 + 4;
+      // the key and the path: a string and its char array
+      bytes += 2 * (24 + 12 + path.length() * 2);
+      // the entry: row id, path, modified time and two flags
+      bytes += 8 + 8 + 4 + 8 + 1 + 1;
+    }
+    return bytes;
+  }
+
+  private static String[] paths(int count) {
+    String[] paths = new String[count];
+    for (int i = 0; i < count; i++)
+      paths[i] = "/mnt/sdcard/Movies/dir" + (i % DIRECTORIES) + "/Video_" + i + ".mp4";
+    return paths;
+  }
+
+  /**
+   * The fields prescan used to keep per video in a FileCacheEntry.
+   */
+  private static class Entry {
+    final long mRowId;
+    final String mPath;
+    long mLastModified;
+    boolean mLastModifiedChanged;
+    boolean mSeenInFileSystem;
+
+    Entry(long rowId, String path, long lastModified) {
+      mRowId = rowId;
+      mPath = path;
+      mLastModified = lastModified;
+    }
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vov.vitamio;
+
+import android.test.InstrumentationTestCase;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Posts bursts of buffering and download rate events as the native player
+ * does, and checks they are merged into one message by {@link MediaPlayer}.
+ */
+public class MediaPlayerEventTest extends InstrumentationTestCase {
+  private static final int EVENTS = 1000;
+
+  private MediaPlayer mPlayer;
+  private Method mPostEvent;
+  private final List<Integer> mPercents = new ArrayList<Integer>();
+  private final List<Integer> mRates = new ArrayList<Integer>();
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    assertTrue(Vitamio.initialize(getInstrumentation().getTargetContext()));
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        // the events are handled on the main looper
+        mPlayer = new MediaPlayer(getInstrumentation().getTargetContext());
+      }
+    });
+    mPlayer.setOnBufferingUpdateListener(new MediaPlayer.OnBufferingUpdateListener() {
+      @Override
+      public void onBufferingUpdate(MediaPlayer mp, int percent) {
+        mPercents.add(percent);
+      }
+    });
+    mPlayer.setOnInfoListener(new MediaPlayer.OnInfoListener() {
+      @Override
+      public boolean onInfo(MediaPlayer mp, int what, int extra) {
+        if (what == MediaPlayer.MEDIA_INFO_DOWNLOAD_RATE_CHANGED)
+          mRates.add(extra);
+        return true;
+      }
+    });
+    mPostEvent = MediaPlayer.class.getDeclaredMethod("postEventFromNative", Object.class, int.class, int.class, int.class, Object.class);
+    mPostEvent.setAccessible(true);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mPlayer.release();
+    super.tearDown();
+  }
+
+  public void testBurstIsCoalesced() throws Exception {
+    final int buffering = constant("MEDIA_BUFFERING_UPDATE");
+    final int info = constant("MEDIA_INFO");
+    final long messages = mPlayer.getEventMessageCount();
+    final long coalesced = mPlayer.getCoalescedEventCount();
+    final Exception[] error = new Exception[1];
+    // posted while the main looper is busy, so no message is handled meanwhile
+    getInstrumentation().runOnMainSync(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (int i = 1; i <= EVENTS; i++) {
+            mPostEvent.invoke(null, mPlayer, buffering, i % 101, 0, null);
+            mPostEvent.invoke(null, mPlayer, info, MediaPlayer.MEDIA_INFO_DOWNLOAD_RATE_CHANGED, i, null);
+          }
+        } catch (Exception e) {
+          error[0] = e;
+        }
+      }
+    });
+    if (error[0] != null)
+      throw error[0];
+    assertEquals(1, mPlayer.getEventMessageCount() - messages);
+    assertEquals(2 * EVENTS - 1, mPlayer.getCoalescedEventCount() - coalesced);
+
+    waitForDelivery();
+    assertEquals(1, mPercents.size());
+    assertEquals(EVENTS % 101, (int) mPercents.get(0));
+    assertEquals(1, mRates.size());
+    assertEquals(EVENTS, (int) mRates.get(0));
+  }
+
+  public void testEventAfterDeliveryQueuesAgain() throws Exception {
+    int buffering = constant("MEDIA_BUFFERING_UPDATE");
+    long messages = mPlayer.getEventMessageCount();
+    mPostEvent.invoke(null, mPlayer, buffering, 10, 0, null);
+    waitForDelivery();
+    mPostEvent.invoke(null, mPlayer, buffering, 20, 0, null);
+    waitForDelivery();
+    assertEquals(2, mPlayer.getEventMessageCount() - messages);
+    assertEquals(2, mPercents.size());
+    assertEquals(20, (int) mPercents.get(1));
+  }
+
+  // the coalesced message is delayed up to 16ms after the last one
+  private void waitForDelivery() throws InterruptedException {
+    Thread.sleep(50);
+    getInstrumentation().waitForIdleSync();
+  }
+
+  private static int constant(String name) throws Exception {
+    Field field = MediaPlayer.class.getDeclaredField(name);
+    field.setAccessible(true);
+    return field.getInt(null);
+  }
+}
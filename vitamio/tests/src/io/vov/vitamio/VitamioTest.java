@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vov.vitamio;
+
+import android.test.AndroidTestCase;
+
+import io.vov.vitamio.utils.ContextUtils;
+import io.vov.vitamio.utils.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that {@link Vitamio#isInitialized(android.content.Context)} caches the
+ * check of the library directory until the lock changes, with empty stand-ins
+ * of the libs in the directory of the test package.
+ */
+public class VitamioTest extends AndroidTestCase {
+  private static final String LOCK = ".lock";
+  private static final int CALLS = 100000;
+
+  private final List<File> mCreated = new ArrayList<File>();
+  private String mLock;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    // sets the library path
+    Vitamio.isInitialized(getContext());
+    File dir = new File(Vitamio.getLibraryPath());
+    dir.mkdirs();
+    for (String lib : requiredLibs()) {
+      File file = new File(dir, lib);
+      if (file.createNewFile())
+        mCreated.add(file);
+    }
+    File lock = new File(dir, LOCK);
+    if (lock.exists())
+      mLock = String.valueOf(read(lock));
+    else
+      mCreated.add(lock);
+    write(lock, Integer.toString(ContextUtils.getVersionCode(getContext())));
+    setInitialized(false);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (mLock != null)
+      write(new File(Vitamio.getLibraryPath(), LOCK), mLock);
+    for (File file : mCreated)
+      file.delete();
+    setInitialized(false);
+    super.tearDown();
+  }
+
+  public void testLockChanged() throws Exception {
+    assertTrue(Vitamio.isInitialized(getContext()));
+    write(new File(Vitamio.getLibraryPath(), LOCK), Integer.toString(ContextUtils.getVersionCode(getContext()) + 1));
+    // the change is seen by a FileObserver
+    long timeout = System.currentTimeMillis() + 2000;
+    while (Vitamio.isInitialized(getContext()) && System.currentTimeMillis() < timeout)
+      Thread.sleep(10);
+    assertFalse(Vitamio.isInitialized(getContext()));
+  }
+
+  public void testCachedCallSkipsTheDirectory() throws Exception {
+    List<String> libs = requiredLibs();
+    if (libs.isEmpty())
+      return;
+    assertTrue(Vitamio.isInitialized(getContext()));
+    // only a change of the lock is watched, a check would see the lib missing
+    File lib = new File(Vitamio.getLibraryPath(), libs.get(0));
+    File moved = new File(lib.getPath() + ".moved");
+    assertTrue(lib.renameTo(moved));
+    try {
+      assertTrue(Vitamio.isInitialized(getContext()));
+      setInitialized(false);
+      assertFalse(Vitamio.isInitialized(getContext()));
+    } finally {
+      moved.renameTo(lib);
+    }
+  }
+
+  /**
+   * Logs the time of a check of the directory and of a cached call.
+   */
+  public void testBenchmark() throws Exception {
+    long checked = Benchmarks.time(new Benchmarks.Task() {
+      @Override
+      public void run() throws Exception {
+        setInitialized(false);
+        assertTrue(Vitamio.isInitialized(getContext()));
+      }
+    });
+    long cached = Benchmarks.time(new Benchmarks.Task() {
+      @Override
+      public void run() {
+        for (int i = 0; i < CALLS; i++)
+          assertTrue(Vitamio.isInitialized(getContext()));
+      }
+    });
+    Log.i("isInitialized: checked %dns, cached %dns", checked, cached / CALLS);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<String> requiredLibs() throws Exception {
+    Method method = Vitamio.class.getDeclaredMethod("getRequiredLibs");
+    method.setAccessible(true);
+    List<String> libs = (List<String>) method.invoke(null);
+    libs.remove(LOCK);
+    return libs;
+  }
+
+  private static void setInitialized(boolean initialized) throws Exception {
+    Field field = Vitamio.class.getDeclaredField("initialized");
+    field.setAccessible(true);
+    field.setBoolean(null, initialized);
+  }
+
+  private static String read(File file) throws IOException {
+    BufferedReader reader = new BufferedReader(new FileReader(file));
+    try {
+      return reader.readLine();
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static void write(File file, String version) throws IOException {
+    FileWriter writer = new FileWriter(file);
+    try {
+      writer.write(version);
+    } finally {
+      writer.close();
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vov.vitamio.provider;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.net.Uri;
+
+import io.vov.vitamio.Benchmarks;
+import io.vov.vitamio.utils.Log;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checks the reads of {@link MappedMiniThumbFile} against concurrent writes,
+ * and logs their time against the locked reads of {@link MiniThumbFile}.
+ */
+public class MappedMiniThumbFileTest extends TestCase {
+  private static final Uri URI = Uri.parse("content://io.vov.vitamio.tests/video/media");
+  private static final int THUMBS = 512;
+
+  private MiniThumbFile mLocked;
+  private MappedMiniThumbFile mMapped;
+  private byte[] mJpeg;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mLocked = new MiniThumbFile(URI);
+    mMapped = new MappedMiniThumbFile(URI);
+    mJpeg = jpeg(Color.RED);
+    for (int id = 0; id < THUMBS; id++)
+      mMapped.saveMiniThumbToFile(mJpeg, id, id + 1);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    mLocked.deactivate();
+    mMapped.deactivate();
+    super.tearDown();
+  }
+
+  public void testReadsAreNeverTorn() throws Exception {
+    final byte[] red = jpeg(Color.RED);
+    final byte[] blue = jpeg(Color.BLUE);
+    final AtomicBoolean running = new AtomicBoolean(true);
+    Thread writer = new Thread() {
+      @Override
+      public void run() {
+        long magic = 1;
+        try {
+          while (running.get())
+            mMapped.saveMiniThumbToFile(magic % 2 == 0 ? red : blue, 0, magic++);
+        } catch (Exception e) {
+          Log.e("writer", e);
+        }
+      }
+    };
+    writer.start();
+    try {
+      byte[] data = new byte[MiniThumbFile.BYTES_PER_MINTHUMB];
+      for (int i = 0; i < 20000; i++) {
+        byte[] thumb = mMapped.getMiniThumbFromFile(0, data);
+        if (thumb == null)
+          continue;
+        // the bytes after the thumb are left from the longer one
+        assertTrue("torn read", startsWith(thumb, red) || startsWith(thumb, blue));
+      }
+    } finally {
+      running.set(false);
+      writer.join();
+    }
+  }
+
+  public void testNoStaleBitmapCachedAfterSave() throws Exception {
+    assertTrue(Color.red(mMapped.getMiniThumbBitmap(1).getPixel(0, 0)) > 200);
+    mMapped.saveMiniThumbToFile(jpeg(Color.BLUE), 1, 1000);
+    assertTrue(Color.blue(mMapped.getMiniThumbBitmap(1).getPixel(0, 0)) > 200);
+  }
+
+  /**
+   * Logs the time per read of the locked and the mapped file, and the time and
+   * memory of the bitmap cache.
+   */
+  public void testBenchmark() throws Exception {
+    final byte[] data = new byte[MiniThumbFile.BYTES_PER_MINTHUMB];
+    long locked = Benchmarks.time(new Benchmarks.Task() {
+      @Override
+      public void run() {
+        readAll(mLocked, data);
+      }
+    });
+    long mapped = Benchmarks.time(new Benchmarks.Task() {
+      @Override
+      public void run() {
+        readAll(mMapped, data);
+      }
+    });
+    Log.i("thumb read: locked %dns, mapped %dns", locked / THUMBS, mapped / THUMBS);
+
+    MappedMiniThumbFile.setCacheSize(1024 * 1024);
+    try {
+      long heap = Benchmarks.usedHeap();
+      long start = System.nanoTime();
+      for (int id = 0; id < THUMBS; id++)
+        mMapped.getMiniThumbBitmap(id).recycle();
+      long decoded = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (int id = THUMBS - 1; id >= 0; id--)
+        mMapped.getMiniThumbBitmap(id).recycle();
+      long cached = System.nanoTime() - start;
+      Log.i("thumb bitmap: decoded %dns, from cache %dns, cache memory %d bytes", decoded / THUMBS, cached / THUMBS, Benchmarks.usedHeap() - heap);
+    } finally {
+      MappedMiniThumbFile.setCacheSize(4 * 1024 * 1024);
+    }
+  }
+
+  private static void readAll(MiniThumbFile file, byte[] data) {
+    for (int id = 0; id < THUMBS; id++)
+      assertNotNull(file.getMiniThumbFromFile(id, data));
+  }
+
+  private static boolean startsWith(byte[] data, byte[] prefix) {
+    for (int i = 0; i < prefix.length; i++) {
+      if (data[i] != prefix[i])
+        return false;
+    }
+    return true;
+  }
+
+  private static byte[] jpeg(int color) {
+    Bitmap bitmap = Bitmap.createBitmap(96, 96, Bitmap.Config.ARGB_8888);
+    bitmap.eraseColor(color);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    bitmap.compress(Bitmap.CompressFormat.JPEG, 100, out);
+    bitmap.recycle();
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vov.vitamio.utils;
+
+import io.vov.vitamio.Benchmarks;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+/**
+ * Checks the levels and the sink of {@link Log}, and that a call below the
+ * level doesn't allocate.
+ */
+public class LogTest extends TestCase {
+	private static final int CALLS = 100000;
+
+	private final ArrayList<String> mMessages = new ArrayList<String>();
+	private final Log.Sink mSink = new Log.Sink() {
+		@Override
+		public void println(int priority, String tag, String msg, Throwable tr) {
+			mMessages.add(priority + " " + msg);
+		}
+	};
+	private int mLevel;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mLevel = Log.getLevel();
+		Log.setSink(mSink);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		Log.setLevel(mLevel);
+		Log.setSink(null);
+		super.tearDown();
+	}
+
+	public void testLevel() {
+		Log.setLevel(android.util.Log.INFO);
+		Log.d("scanFile: %s", "/sdcard/a.mp4");
+		Log.i("Info (%d, %d)", 701, 0);
+		Log.e("error %s %s %s", "a", "b", "c");
+		assertEquals(2, mMessages.size());
+		assertEquals(android.util.Log.INFO + " Info (701, 0)", mMessages.get(0));
+		assertEquals(android.util.Log.ERROR + " error a b c", mMessages.get(1));
+	}
+
+	public void testBadFormat() {
+		Log.setLevel(android.util.Log.DEBUG);
+		Log.d("scanFile: %d", "/sdcard/a.mp4");
+		assertEquals(2, mMessages.size());
+		assertEquals(android.util.Log.DEBUG + " scanFile: %d", mMessages.get(1));
+	}
+
+	/**
+	 * Checks that a call below the level doesn't allocate, and logs the time of
+	 * a call below and above the level.
+	 */
+	public void testBenchmark() throws Exception {
+		Log.setSink(new Log.Sink() {
+			@Override
+			public void println(int priority, String tag, String msg, Throwable tr) {
+			}
+		});
+		Benchmarks.Task calls = new Benchmarks.Task() {
+			@Override
+			public void run() {
+				callAll();
+			}
+		};
+		// warm up
+		callAll();
+
+		Log.setLevel(android.util.Log.ASSERT);
+		int allocations = Benchmarks.countAllocations(calls);
+		long disabled = Benchmarks.time(calls);
+		Log.setLevel(android.util.Log.DEBUG);
+		long enabled = Benchmarks.time(calls);
+
+		Log.setLevel(android.util.Log.INFO);
+		Log.setSink(null);
+		Log.i("log call: disabled %dns, enabled %dns, %d allocations", disabled / CALLS, enabled / CALLS, allocations);
+		// one allocation per call would count hundreds of thousands, the counting
+		// may add a few of its own
+		assertTrue(allocations + " allocations below the level", allocations < CALLS);
+	}
+
+	// the calls of the EventHandler and MediaScanner
+	private static void callAll() {
+		String path = "/sdcard/a.mp4";
+		for (int i = 0; i < CALLS; i++) {
+			Log.i("Info (%d, %d)", i, 0);
+			Log.d("scanFile: %s", path);
+			Log.e("Error (%d, %d)", i, -1);
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2013 YIXIA.COM
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.vov.vitamio.utils;
+
+import io.vov.vitamio.Benchmarks;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the events recorded by {@link Tracer} from several threads, and that
+ * a disabled tracer doesn't allocate.
+ */
+public class TracerTest extends TestCase {
+	private static final int CALLS = 100000;
+	private static final int THREADS = 4;
+
+	@Override
+	protected void tearDown() throws Exception {
+		Tracer.disable();
+		Tracer.clear();
+		super.tearDown();
+	}
+
+	public void testDisabled() {
+		Tracer.enable(16);
+		Tracer.disable();
+		Tracer.beginSection("open");
+		Tracer.endSection("open");
+		Tracer.instant("first frame");
+		assertEquals(0, Tracer.size());
+		assertEquals("{\"traceEvents\":[]}", Tracer.toJson());
+	}
+
+	public void testRing() {
+		Tracer.enable(4);
+		for (int i = 0; i < 6; i++)
+			Tracer.beginAsyncSection("prepare", i);
+		assertEquals(4, Tracer.size());
+		assertEquals(2, Tracer.getDroppedCount());
+		String json = Tracer.toJson();
+		assertEquals(-1, json.indexOf("\"0x1\""));
+		assertTrue(json.indexOf("\"0x2\"") < json.indexOf("\"0x5\""));
+	}
+
+	public void testConcurrentRecord() throws Exception {
+		Tracer.enable(THREADS * CALLS);
+		Thread[] threads = new Thread[THREADS];
+		for (int t = 0; t < THREADS; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < CALLS / 2; i++) {
+						Tracer.beginSection("render");
+						Tracer.endSection("render");
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(THREADS * CALLS, Tracer.size());
+		assertEquals(0, Tracer.getDroppedCount());
+		String json = Tracer.toJson();
+		int events = 0;
+		for (int i = json.indexOf("\"name\""); i >= 0; i = json.indexOf("\"name\"", i + 1))
+			events++;
+		assertEquals(THREADS * CALLS, events);
+	}
+
+	/**
+	 * Checks that a disabled call doesn't allocate, and logs the time of a call
+	 * disabled and enabled.
+	 */
+	public void testBenchmark() throws Exception {
+		Benchmarks.Task calls = new Benchmarks.Task() {
+			@Override
+			public void run() {
+				callAll();
+			}
+		};
+		Tracer.enable(Tracer.DEFAULT_CAPACITY);
+		long enabled = Benchmarks.time(calls);
+
+		Tracer.disable();
+		Tracer.clear();
+		int allocations = Benchmarks.countAllocations(calls);
+		long disabled = Benchmarks.time(calls);
+
+		Log.i("trace call: disabled %dns, enabled %dns, %d allocations", disabled / CALLS, enabled / CALLS, allocations);
+		assertEquals(0, Tracer.size());
+		// one allocation per call would count hundreds of thousands, the counting
+		// may add a few of its own
+		assertTrue(allocations + " allocations disabled", allocations < CALLS);
+	}
+
+	// the calls around a frame rendered
+	private static void callAll() {
+		for (int i = 0; i < CALLS; i++) {
+			Tracer.beginSection("render");
+			Tracer.endSection("render");
+			Tracer.instant("frame");
+		}
+	}
+}